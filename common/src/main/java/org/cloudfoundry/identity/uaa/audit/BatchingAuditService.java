@@ -0,0 +1,489 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Audit service that takes events off the request path. Events are put on a
+ * bounded queue and a single background thread writes them to a
+ * {@link JdbcAuditService} in JDBC batches. The same thread periodically
+ * calls {@link JdbcAuditService#purgeExpiredData()}, so old data is not
+ * deleted on every event.
+ * <p>
+ * {@link #find(String, long)} includes the events that are still queued or
+ * being written, so lockout policies see every failure as soon as it has been
+ * logged. It never waits for a batch to be written. What happens when the
+ * queue is full is decided by the {@link OverflowPolicy}. Events logged after
+ * {@link #destroy()} are written directly.
+ * <p>
+ * Also accumulates count data for exposure through JMX.
+ *
+ */
+@ManagedResource
+public class BatchingAuditService implements UaaAuditService, InitializingBean, DisposableBean {
+
+    /**
+     * What to do with an event when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the event.
+         */
+        DROP,
+        /**
+         * Wait for the writer to make room, for at most
+         * {@link BatchingAuditService#setBlockTimeoutMillis(long)
+         * blockTimeoutMillis}, then write the event to the log. This is the
+         * policy that loses the fewest events, so the lockout policy sees
+         * every failure unless the database cannot keep up at all.
+         */
+        BLOCK,
+        /**
+         * Write the event to the log instead of the database.
+         */
+        LOG
+    }
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final Log overflowLogger = LogFactory.getLog("UAA.Audit.Overflow");
+
+    private final JdbcAuditService delegate;
+
+    /**
+     * Held for writing while a batch moves from the queue to
+     * {@link #inFlight}, so that readers see it in exactly one of the two, and
+     * while the service is closed.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean closed;
+
+    /**
+     * Only one batch is in flight at a time.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * The batch that is being written, empty between writes.
+     */
+    private volatile List<AuditEvent> inFlight = Collections.emptyList();
+
+    /**
+     * The number of events ever taken off the queue. Events are taken in
+     * order, so the next queued event is the one at this position.
+     */
+    private volatile long drainedCount;
+
+    /**
+     * The number of events ever taken off the queue whose batch has been
+     * written or has failed, so that they are no longer pending.
+     */
+    private volatile long settledCount;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private BlockingQueue<AuditEvent> queue;
+
+    private int queueCapacity = 10000;
+
+    private int batchSize = 100;
+
+    private long flushIntervalMillis = 100;
+
+    private long purgeIntervalMillis = 60 * 1000;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    private long blockTimeoutMillis = 1000;
+
+    private volatile Thread writer;
+
+    private AtomicLong writtenCount = new AtomicLong();
+
+    private AtomicLong batchCount = new AtomicLong();
+
+    private AtomicLong droppedCount = new AtomicLong();
+
+    private AtomicLong loggedCount = new AtomicLong();
+
+    public BatchingAuditService(JdbcAuditService delegate) {
+        Assert.notNull(delegate);
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of events waiting to be written
+     *            (default 10000)
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param batchSize the maximum number of events in one JDBC batch
+     *            (default 100)
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param flushIntervalMillis how long the writer waits for more events
+     *            when the last batch was not full (default 100)
+     */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * @param purgeIntervalSeconds the period between two calls to
+     *            {@link JdbcAuditService#purgeExpiredData()}, 0 or less to
+     *            never purge (default 60)
+     */
+    public void setPurgeIntervalSeconds(int purgeIntervalSeconds) {
+        this.purgeIntervalMillis = purgeIntervalSeconds * 1000L;
+    }
+
+    /**
+     * @param overflowPolicy what to do when the queue is full (default
+     *            {@link OverflowPolicy#BLOCK BLOCK})
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        Assert.notNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK BLOCK}
+     *            waits for room before the event is written to the log
+     *            instead (default 1000)
+     */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Audit Queue Depth")
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Written Count")
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Batches Written Count")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Dropped Count")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Logged Instead Of Written Count")
+    public long getLoggedCount() {
+        return loggedCount.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.state(queueCapacity > 0, "queueCapacity must be positive");
+        Assert.state(batchSize > 0, "batchSize must be positive");
+        queue = new ArrayBlockingQueue<AuditEvent>(queueCapacity);
+        writer = new Thread(new Writer(), "uaa-audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer after it has written all queued events.
+     */
+    @Override
+    public void destroy() throws Exception {
+        Thread thread = writer;
+        if (thread == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        stopped.countDown();
+        thread.join(10000);
+        writer = null;
+        // Events logged while the writer was stopping are still queued
+        int count;
+        do {
+            count = flush();
+        } while (count > 0);
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        if (queue == null) {
+            delegate.log(auditEvent);
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            if (!closed && queue.offer(auditEvent)) {
+                return;
+            }
+            if (closed) {
+                delegate.log(auditEvent);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                // Not under the lock, the writer needs it to make room
+                boolean queued = false;
+                try {
+                    queued = queue.offer(auditEvent, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!queued) {
+                    spill(auditEvent);
+                } else if (isClosed()) {
+                    // destroy() may have drained the queue before the event
+                    // was added, so make sure it is written
+                    int count;
+                    do {
+                        count = flush();
+                    } while (count > 0);
+                }
+                break;
+            case LOG:
+                spill(auditEvent);
+                break;
+            default:
+                droppedCount.incrementAndGet();
+                break;
+        }
+    }
+
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        // Collect the pending events before the query, so that an event
+        // written in between is found in the database
+        List<AuditEvent> pending = new ArrayList<AuditEvent>();
+        List<Long> positions = new ArrayList<Long>();
+        lock.readLock().lock();
+        try {
+            List<AuditEvent> batch = inFlight;
+            long drained = drainedCount;
+            addPending(batch, drained - batch.size(), principal, after, pending, positions);
+            if (queue != null) {
+                addPending(queue, drained, principal, after, pending, positions);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long settledBefore = settledCount;
+        List<AuditEvent> stored = delegate.find(principal, after);
+        long drainedAfter = drainedCount;
+        if (pending.isEmpty()) {
+            return stored;
+        }
+        // Pending events are newer than stored ones and find() returns the
+        // most recent first. Those settled before the query are in the stored
+        // ones (or were lost) and those still queued after it cannot be.
+        // Only those written while the query ran have to be looked for.
+        boolean[] matched = new boolean[stored.size()];
+        List<AuditEvent> result = new ArrayList<AuditEvent>(pending.size() + stored.size());
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            long position = positions.get(i);
+            if (position < settledBefore) {
+                continue;
+            }
+            if (position >= drainedAfter || !isStored(pending.get(i), stored, matched)) {
+                result.add(pending.get(i));
+            }
+        }
+        result.addAll(stored);
+        return result;
+    }
+
+    /**
+     * Write one batch of queued events. Readers only wait while the batch is
+     * taken off the queue, not while it is written.
+     *
+     * @return the number of events taken from the queue
+     */
+    @ManagedOperation(description = "Write a batch of queued audit events")
+    public int flush() {
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (flushLock) {
+            List<AuditEvent> batch = new ArrayList<AuditEvent>(batchSize);
+            lock.writeLock().lock();
+            try {
+                queue.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    return 0;
+                }
+                inFlight = batch;
+                drainedCount += batch.size();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                delegate.logBatch(batch);
+                writtenCount.addAndGet(batch.size());
+                batchCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                logger.error("Could not write " + batch.size() + " audit events", e);
+                for (AuditEvent auditEvent : batch) {
+                    spill(auditEvent);
+                }
+            } finally {
+                settledCount += batch.size();
+                inFlight = Collections.emptyList();
+            }
+            return batch.size();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param position the position of the first of the events in the order
+     *            they are taken off the queue
+     */
+    private void addPending(Iterable<AuditEvent> events, long position, String principal, long after,
+                    List<AuditEvent> pending, List<Long> positions) {
+        for (AuditEvent auditEvent : events) {
+            if (principal.equals(auditEvent.getPrincipalId()) && auditEvent.getTime() > after) {
+                pending.add(auditEvent);
+                positions.add(position);
+            }
+            position++;
+        }
+    }
+
+    /**
+     * @param matched the stored events already matched to another pending
+     *            event, updated if this one matches
+     */
+    private boolean isStored(AuditEvent auditEvent, List<AuditEvent> stored, boolean[] matched) {
+        for (int i = 0; i < stored.size(); i++) {
+            AuditEvent candidate = stored.get(i);
+            if (!matched[i] && candidate.getType() == auditEvent.getType()
+                            && auditEvent.getPrincipalId().equals(candidate.getPrincipalId())
+                            && isStoredTime(auditEvent.getTime(), candidate.getTime())) {
+                matched[i] = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Databases without fractional seconds either truncate or round the time
+     * of an event.
+     */
+    private static boolean isStoredTime(long time, long storedTime) {
+        return storedTime == time || storedTime == time / 1000 * 1000 || storedTime == (time + 500) / 1000 * 1000;
+    }
+
+    private void purge() {
+        try {
+            int count = delegate.purgeExpiredData();
+            if (count > 0) {
+                logger.debug("Purged " + count + " expired audit records");
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not purge expired audit data", e);
+        }
+    }
+
+    private void spill(AuditEvent auditEvent) {
+        loggedCount.incrementAndGet();
+        overflowLogger.warn(auditEvent.getType() + " ('" + auditEvent.getData() + "'): principal="
+                        + auditEvent.getPrincipalId() + ", origin=[" + auditEvent.getOrigin() + "], time="
+                        + auditEvent.getTime());
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            long nextPurge = System.currentTimeMillis() + purgeIntervalMillis;
+            int count = 0;
+            while (true) {
+                // Only wait for more events when the last batch was not full
+                if (count < batchSize) {
+                    try {
+                        if (stopped.await(flushIntervalMillis, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                else if (stopped.getCount() == 0) {
+                    break;
+                }
+                try {
+                    count = flush();
+                    if (purgeIntervalMillis > 0 && System.currentTimeMillis() >= nextPurge) {
+                        purge();
+                        nextPurge = System.currentTimeMillis() + purgeIntervalMillis;
+                    }
+                } catch (Throwable e) {
+                    // Keep going, or logins would block on a full queue
+                    logger.error("Audit writer failed, continuing", e);
+                    count = 0;
+                }
+            }
+        }
+
+    }
+
+}
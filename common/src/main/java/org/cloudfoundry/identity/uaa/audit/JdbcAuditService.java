@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.audit;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -19,6 +20,7 @@ import java.util.List;
 
 import javax.sql.DataSource;
 
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -47,15 +49,54 @@ public class JdbcAuditService implements UaaAuditService {
 
     @Override
     public void log(AuditEvent auditEvent) {
-        String origin = auditEvent.getOrigin();
-        String data = auditEvent.getData();
-        origin = origin == null ? "" : origin;
-        origin = origin.length() > 255 ? origin.substring(0, 255) : origin;
-        data = data == null ? "" : data;
-        data = data.length() > 255 ? data.substring(0, 255) : data;
         template.update("insert into sec_audit (principal_id, event_type, origin, event_data) values (?,?,?,?)",
-                        auditEvent.getPrincipalId(), auditEvent.getType().getCode(), auditEvent.getOrigin(),
-                        auditEvent.getData());
+                        auditEvent.getPrincipalId(), auditEvent.getType().getCode(),
+                        truncate(auditEvent.getOrigin()), truncate(auditEvent.getData()));
+    }
+
+    /**
+     * Log a number of events in a single JDBC batch. Unlike
+     * {@link #log(AuditEvent)} the creation time of each row is the time of
+     * the event, not the time it was written.
+     * 
+     * @param auditEvents the audit events to log, oldest first
+     */
+    public void logBatch(final List<AuditEvent> auditEvents) {
+        if (auditEvents.isEmpty()) {
+            return;
+        }
+        template.batchUpdate(
+                        "insert into sec_audit (principal_id, event_type, origin, event_data, created) values (?,?,?,?,?)",
+                        new BatchPreparedStatementSetter() {
+                            @Override
+                            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                                AuditEvent auditEvent = auditEvents.get(i);
+                                ps.setString(1, auditEvent.getPrincipalId());
+                                ps.setInt(2, auditEvent.getType().getCode());
+                                ps.setString(3, truncate(auditEvent.getOrigin()));
+                                ps.setString(4, truncate(auditEvent.getData()));
+                                ps.setTimestamp(5, new Timestamp(auditEvent.getTime()));
+                            }
+
+                            @Override
+                            public int getBatchSize() {
+                                return auditEvents.size();
+                            }
+                        });
+    }
+
+    /**
+     * Remove data that is no longer needed. Nothing is ever removed by
+     * default.
+     * 
+     * @return the number of rows deleted
+     */
+    public int purgeExpiredData() {
+        return 0;
+    }
+
+    private String truncate(String value) {
+        return value != null && value.length() > 255 ? value.substring(0, 255) : value;
     }
 
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
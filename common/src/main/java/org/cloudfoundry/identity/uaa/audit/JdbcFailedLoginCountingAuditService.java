@@ -13,6 +13,8 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -20,6 +22,10 @@ import javax.sql.DataSource;
  * An audit service that subscribes to audit events but only saves enough data
  * to answer queries about consecutive
  * failed logins.
+ * <p>
+ * Each failed login deletes data older than the save period when it is
+ * logged on its own. Batches logged through {@link #logBatch(List)} leave that
+ * to whoever calls {@link #purgeExpiredData()} periodically.
  * 
  * @author Dave Syer
  */
@@ -46,9 +52,7 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
                 getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
                 break;
             case UserAuthenticationFailure:
-                getJdbcTemplate().update("delete from sec_audit where created < ?",
-                                new Timestamp(System.currentTimeMillis()
-                                                - saveDataPeriodMillis));
+                purgeExpiredData();
                 super.log(auditEvent);
                 break;
             default:
@@ -56,4 +60,33 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         }
     }
 
+    @Override
+    public void logBatch(List<AuditEvent> auditEvents) {
+        // A success resets the data for its principal, so the failures before
+        // it have to be written first to keep the order intact
+        List<AuditEvent> failures = new ArrayList<AuditEvent>();
+        for (AuditEvent auditEvent : auditEvents) {
+            switch (auditEvent.getType()) {
+                case UserAuthenticationSuccess:
+                case PasswordChangeSuccess:
+                    super.logBatch(failures);
+                    failures.clear();
+                    getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
+                    break;
+                case UserAuthenticationFailure:
+                    failures.add(auditEvent);
+                    break;
+                default:
+                    break;
+            }
+        }
+        super.logBatch(failures);
+    }
+
+    @Override
+    public int purgeExpiredData() {
+        return getJdbcTemplate().update("delete from sec_audit where created < ?",
+                        new Timestamp(System.currentTimeMillis() - saveDataPeriodMillis));
+    }
+
 }
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.SimpleApplicationEventMulticaster;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Event multicaster that takes the listeners of UAA events off the request
+ * path. Register it as the <code>applicationEventMulticaster</code> bean.
+ * <p>
+ * Listeners of an {@link AbstractUaaEvent} are called on one of
+ * {@link #setThreads(int) threads} background threads, unless they are a
+ * {@link SynchronousListener} that asks to be called synchronously. All
+ * events about the same principal (the principal of their audit record, not
+ * the caller that caused them) go to the same thread, so they are delivered
+ * in the order they were published. Each thread has a bounded queue and a
+ * publisher waits for room when the queue is full. Other events, and all
+ * events when there are no threads, are delivered on the publishing thread
+ * as usual.
+ * <p>
+ * A failing asynchronous listener is logged and counted, it cannot fail the
+ * request that published the event.
+ *
+ */
+@ManagedResource
+public class AsyncUaaEventMulticaster extends SimpleApplicationEventMulticaster implements InitializingBean,
+                DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private ThreadPoolExecutor[] lanes;
+
+    private int threads = 0;
+
+    private int queueCapacity = 1000;
+
+    private AtomicLong asyncCount = new AtomicLong();
+
+    private AtomicLong syncCount = new AtomicLong();
+
+    private AtomicLong failedCount = new AtomicLong();
+
+    private AtomicLong blockedCount = new AtomicLong();
+
+    /**
+     * @param threads the number of threads to deliver events on, 0 to
+     *            deliver all events on the publishing thread (the default)
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of events waiting for each
+     *            thread (default 1000)
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.state(queueCapacity > 0, "queueCapacity must be positive");
+        if (threads <= 0) {
+            return;
+        }
+        lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            final String name = "uaa-event-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                            queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new WaitForRoom());
+        }
+    }
+
+    /**
+     * Deliver the events that are still queued and stop the threads.
+     */
+    @Override
+    public void destroy() throws Exception {
+        ThreadPoolExecutor[] stopping = lanes;
+        if (stopping == null) {
+            return;
+        }
+        lanes = null;
+        for (ThreadPoolExecutor lane : stopping) {
+            lane.shutdown();
+        }
+        for (ThreadPoolExecutor lane : stopping) {
+            if (!lane.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Gave up waiting for " + lane.getQueue().size() + " queued events");
+            }
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Event Queue Depth")
+    public int getQueueDepth() {
+        ThreadPoolExecutor[] current = lanes;
+        int depth = 0;
+        if (current != null) {
+            for (ThreadPoolExecutor lane : current) {
+                depth += lane.getQueue().size();
+            }
+        }
+        return depth;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Event Max Queue Depth Per Thread")
+    public int getMaxQueueDepth() {
+        ThreadPoolExecutor[] current = lanes;
+        int depth = 0;
+        if (current != null) {
+            for (ThreadPoolExecutor lane : current) {
+                depth = Math.max(depth, lane.getQueue().size());
+            }
+        }
+        return depth;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Events Delivered Asynchronously Count")
+    public long getAsyncCount() {
+        return asyncCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Events Delivered Synchronously Count")
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Event Listener Failure Count")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Event Publisher Blocked On Full Queue Count")
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void multicastEvent(final ApplicationEvent event) {
+        ThreadPoolExecutor[] current = lanes;
+        if (current == null || !(event instanceof AbstractUaaEvent)) {
+            super.multicastEvent(event);
+            return;
+        }
+        final List<ApplicationListener> async = new ArrayList<ApplicationListener>();
+        for (ApplicationListener listener : getApplicationListeners(event)) {
+            if (listener instanceof SynchronousListener && ((SynchronousListener) listener).isSynchronous()) {
+                syncCount.incrementAndGet();
+                listener.onApplicationEvent(event);
+            }
+            else {
+                async.add(listener);
+            }
+        }
+        if (async.isEmpty()) {
+            return;
+        }
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                for (ApplicationListener listener : async) {
+                    try {
+                        listener.onApplicationEvent(event);
+                    } catch (RuntimeException e) {
+                        failedCount.incrementAndGet();
+                        logger.error("Listener " + listener + " failed on " + event, e);
+                    }
+                }
+            }
+        };
+        asyncCount.incrementAndGet();
+        current[laneFor((AbstractUaaEvent) event, current.length)].execute(delivery);
+    }
+
+    private int laneFor(AbstractUaaEvent event, int count) {
+        AuditEvent auditEvent = event.getAuditEvent();
+        String principal = auditEvent == null ? null : auditEvent.getPrincipalId();
+        return principal == null ? 0 : (principal.hashCode() & 0x7fffffff) % count;
+    }
+
+    /**
+     * Makes the publisher wait for room in a full queue, so that no event is
+     * lost or delivered out of order. Once the thread is stopping, or if the
+     * publisher is interrupted while it waits, the publisher delivers the
+     * event itself.
+     */
+    private class WaitForRoom implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable delivery, ThreadPoolExecutor lane) {
+            if (lane.isShutdown()) {
+                delivery.run();
+                return;
+            }
+            blockedCount.incrementAndGet();
+            try {
+                while (!lane.getQueue().offer(delivery, 100, TimeUnit.MILLISECONDS)) {
+                    if (lane.isShutdown()) {
+                        delivery.run();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                delivery.run();
+                return;
+            }
+            // The thread may have stopped before it could see the event
+            if (lane.isShutdown() && lane.getQueue().remove(delivery)) {
+                delivery.run();
+            }
+        }
+
+    }
+
+}
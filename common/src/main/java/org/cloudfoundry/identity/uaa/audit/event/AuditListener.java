@@ -25,9 +25,11 @@ import org.springframework.util.Assert;
  * @author Luke Taylor
  * @author Dave Syer
  */
-public class AuditListener implements ApplicationListener<AbstractUaaEvent> {
+public class AuditListener implements ApplicationListener<AbstractUaaEvent>, SynchronousListener {
     private final UaaAuditService uaaAuditService;
 
+    private boolean synchronous = false;
+
     public AuditListener() {
         uaaAuditService = new LoggingAuditService();
     }
@@ -37,6 +39,20 @@ public class AuditListener implements ApplicationListener<AbstractUaaEvent> {
         this.uaaAuditService = auditor;
     }
 
+    /**
+     * @param synchronous true if the audit service must see events before
+     *            the publisher carries on, e.g. because it feeds a lockout
+     *            policy (default false)
+     */
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
     @Override
     public void onApplicationEvent(AbstractUaaEvent event) {
         event.process(uaaAuditService);
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit.event;
+
+/**
+ * Implemented by listeners that decide whether they must see UAA events
+ * before the publisher carries on, e.g. because a lockout or a cache eviction
+ * depends on them. The {@link AsyncUaaEventMulticaster} calls synchronous
+ * listeners on the publishing thread and all others on a background thread.
+ *
+ */
+public interface SynchronousListener {
+
+    /**
+     * @return true if events must be delivered on the publishing thread
+     */
+    boolean isSynchronous();
+
+}
@@ -17,6 +17,10 @@ public class AccountNotVerifiedExceptionTranslator extends DefaultWebResponseExc
             return handleOAuth2Exception(new ForbiddenException(e.getMessage(), e));
         }
 
+        if (e instanceof AuthenticationThrottledException) {
+            return handleOAuth2Exception(new TemporarilyUnavailableException(e.getMessage(), e));
+        }
+
         return super.translate(e);
     }
 
@@ -26,6 +30,9 @@ public class AccountNotVerifiedExceptionTranslator extends DefaultWebResponseExc
         HttpHeaders headers = new HttpHeaders();
         headers.set("Cache-Control", "no-store");
         headers.set("Pragma", "no-cache");
+        if (status == HttpStatus.SERVICE_UNAVAILABLE.value()) {
+            headers.set("Retry-After", "1");
+        }
 
         ResponseEntity<OAuth2Exception> response = new ResponseEntity<OAuth2Exception>(e, headers,
             HttpStatus.valueOf(status));
@@ -49,4 +56,20 @@ public class AccountNotVerifiedExceptionTranslator extends DefaultWebResponseExc
         }
 
     }
+
+    private static class TemporarilyUnavailableException extends OAuth2Exception {
+
+        public TemporarilyUnavailableException(String msg, Throwable t) {
+            super(msg, t);
+        }
+
+        public String getOAuth2ErrorCode() {
+            return "temporarily_unavailable";
+        }
+
+        public int getHttpErrorCode() {
+            return 503;
+        }
+
+    }
 }
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.audit.event.AuditListener;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.Assert;
+
+/**
+ * Feeds the audit events to the account login policy in use if the policy
+ * counts them itself, like {@link SlidingWindowLockoutPolicy}. The listener
+ * is only registered in that case, so a policy that reads the audit data,
+ * like {@link PeriodLockoutPolicy}, adds nothing to the event path.
+ *
+ */
+public class AccountLoginPolicyListenerRegistrar implements ApplicationContextAware, InitializingBean {
+
+    private final AccountLoginPolicy accountLoginPolicy;
+
+    private ConfigurableApplicationContext applicationContext;
+
+    public AccountLoginPolicyListenerRegistrar(AccountLoginPolicy accountLoginPolicy) {
+        Assert.notNull(accountLoginPolicy);
+        this.accountLoginPolicy = accountLoginPolicy;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        Assert.isInstanceOf(ConfigurableApplicationContext.class, applicationContext);
+        this.applicationContext = (ConfigurableApplicationContext) applicationContext;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (accountLoginPolicy instanceof UaaAuditService) {
+            AuditListener listener = new AuditListener((UaaAuditService) accountLoginPolicy);
+            // a login must see the failures before it
+            listener.setSynchronous(true);
+            applicationContext.addApplicationListener(listener);
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * Locks an account out for a configured period based on the number of failed
+ * logins since a specific time in the past, like {@link PeriodLockoutPolicy},
+ * but counts the failures in memory instead of querying the audit data on
+ * every login.
+ * <p>
+ * Receives the authentication events as a {@link UaaAuditService} and keeps
+ * a fixed number of time buckets per user, so a lockout check only adds up a
+ * few counters. The oldest bucket is counted as a whole, so a failure may be
+ * counted for up to one bucket longer than the configured interval. Users
+ * without recent activity are dropped when the number of tracked users
+ * exceeds {@link #setMaxUsers(int) maxUsers}.
+ * <p>
+ * If an audit service is provided, the recent failures of a user are loaded
+ * from it the first time the user is seen, so counts survive a restart. The
+ * counters of users that are already tracked are never refreshed from the
+ * audit service, so failures on other servers are only seen when the user is
+ * loaded again.
+ *
+ */
+@ManagedResource
+public class SlidingWindowLockoutPolicy implements AccountLoginPolicy, UaaAuditService, InitializingBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private UaaAuditService auditService;
+
+    private ExpiringLruCache<String, FailureWindow> windows;
+
+    private int lockoutPeriodMs = 300000; // 5 mins
+
+    private int lockoutAfterFailures = 5;
+
+    private int countFailuresWithinMs = 3600 * 1000; // 1hr
+
+    private int bucketCount = 12;
+
+    private int maxUsers = 100000;
+
+    public SlidingWindowLockoutPolicy() {
+    }
+
+    /**
+     * @param auditService the audit service to load failures from when a
+     *            user is not tracked yet
+     */
+    public SlidingWindowLockoutPolicy(UaaAuditService auditService) {
+        this.auditService = auditService;
+    }
+
+    public void setLockoutPeriodSeconds(int lockoutPeriod) {
+        this.lockoutPeriodMs = lockoutPeriod * 1000;
+    }
+
+    public void setLockoutAfterFailures(int allowedFailures) {
+        this.lockoutAfterFailures = allowedFailures;
+    }
+
+    /**
+     * Only failures within the preceding interval will be considered
+     *
+     * @param interval the history period to consider (in seconds)
+     */
+    public void setCountFailuresWithin(int interval) {
+        this.countFailuresWithinMs = interval * 1000;
+    }
+
+    /**
+     * @param bucketCount the number of buckets the counting interval is
+     *            split into (default 12)
+     */
+    public void setBucketCount(int bucketCount) {
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * @param maxUsers the maximum number of users to track (default 100000)
+     */
+    public void setMaxUsers(int maxUsers) {
+        this.maxUsers = maxUsers;
+    }
+
+    public int getLockoutPeriodSeconds() {
+        return lockoutPeriodMs / 1000;
+    }
+
+    public int getLockoutAfterFailures() {
+        return lockoutAfterFailures;
+    }
+
+    public int getCountFailuresWithin() {
+        return countFailuresWithinMs / 1000;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Tracked Users")
+    public int getTrackedUsers() {
+        return windows == null ? 0 : windows.size();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        // A window holds nothing of interest once its last failure is older
+        // than the counting interval
+        windows = new ExpiringLruCache<String, FailureWindow>(maxUsers, countFailuresWithinMs);
+    }
+
+    @Override
+    public boolean isAllowed(UaaUser user, Authentication a) throws AuthenticationException {
+        long now = System.currentTimeMillis();
+        FailureWindow window = getWindow(user.getId(), now);
+        if (!window.isLocked(now)) {
+            return true;
+        }
+        logger.warn("User " + user.getUsername() + " and id " + user.getId() + " has "
+                        + window.count(now - countFailuresWithinMs) + " failed logins within the last checking period.");
+        return false;
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        switch (auditEvent.getType()) {
+            case UserAuthenticationSuccess:
+            case PasswordChangeSuccess:
+                // keep an empty window so the next login need not load
+                // anything from the audit service
+                windows.put(auditEvent.getPrincipalId(), new FailureWindow());
+                break;
+            case UserAuthenticationFailure:
+                FailureWindow window = getWindow(auditEvent.getPrincipalId(), auditEvent.getTime());
+                window.add(auditEvent.getTime());
+                // keep the window for another full interval
+                windows.put(auditEvent.getPrincipalId(), window);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The failures are only kept as counts, so there is nothing to find.
+     */
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param before only events before this time are loaded from the audit
+     *            service, later ones are being logged right now
+     */
+    private FailureWindow getWindow(String userId, long before) {
+        FailureWindow window = windows.get(userId);
+        if (window != null) {
+            return window;
+        }
+        window = new FailureWindow();
+        if (auditService != null) {
+            for (AuditEvent event : auditService.find(userId, System.currentTimeMillis() - countFailuresWithinMs)) {
+                if (event.getType() == AuditEventType.UserAuthenticationSuccess) {
+                    // the events are most recent first
+                    break;
+                }
+                if (event.getType() == AuditEventType.UserAuthenticationFailure && event.getTime() < before) {
+                    window.add(event.getTime());
+                }
+            }
+        }
+        FailureWindow existing = windows.putIfAbsent(userId, window);
+        return existing == null ? window : existing;
+    }
+
+    private class FailureWindow {
+
+        private final long bucketMillis = Math.max(1, countFailuresWithinMs / bucketCount);
+
+        private final long[] starts = new long[bucketCount];
+
+        private final int[] counts = new int[bucketCount];
+
+        private long lastFailure = 0;
+
+        public synchronized void add(long time) {
+            long start = time - time % bucketMillis;
+            int index = (int) ((time / bucketMillis) % bucketCount);
+            if (starts[index] > start) {
+                // older than anything we keep
+                return;
+            }
+            if (starts[index] < start) {
+                starts[index] = start;
+                counts[index] = 0;
+            }
+            counts[index]++;
+            lastFailure = Math.max(lastFailure, time);
+        }
+
+        public synchronized int count(long after) {
+            int count = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                if (starts[i] + bucketMillis > after) {
+                    count += counts[i];
+                }
+            }
+            return count;
+        }
+
+        public synchronized boolean isLocked(long now) {
+            return lastFailure > now - lockoutPeriodMs && count(now - countFailuresWithinMs) >= lockoutAfterFailures;
+        }
+
+    }
+
+}
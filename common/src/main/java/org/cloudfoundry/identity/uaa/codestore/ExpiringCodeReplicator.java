@@ -0,0 +1,56 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+/**
+ * Hook that lets an {@link InMemoryExpiringCodeStore} share its codes with
+ * the other servers of a deployment, so that a code can be redeemed on a
+ * server other than the one that generated it. An implementation forwards
+ * the changes to the stores of the other servers, which apply them with
+ * {@link InMemoryExpiringCodeStore#putReplica(ExpiringCode)} and
+ * {@link InMemoryExpiringCodeStore#removeReplica(String)}.
+ */
+public interface ExpiringCodeReplicator {
+
+    /**
+     * Replicator for a single server, which does nothing.
+     */
+    ExpiringCodeReplicator NONE = new ExpiringCodeReplicator() {
+
+        @Override
+        public void generated(ExpiringCode expiringCode) {
+        }
+
+        @Override
+        public void retrieved(String code) {
+        }
+
+    };
+
+    /**
+     * Called after a code has been generated, before it is handed out.
+     * 
+     * @param expiringCode the new code
+     * @throws RuntimeException if the code could not be replicated, the code
+     *             is then discarded and the exception passed on to the caller
+     */
+    void generated(ExpiringCode expiringCode);
+
+    /**
+     * Called after a code has been retrieved, and so can no longer be used.
+     * 
+     * @param code the code that was retrieved
+     */
+    void retrieved(String code);
+
+}
@@ -12,37 +12,185 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.codestore;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.util.StringUtils;
 
-public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
+/**
+ * Expiring code store that keeps the codes in memory instead of the database.
+ * On its own it suits a single server, where a code is always redeemed on the
+ * server that generated it. With an {@link ExpiringCodeReplicator} it can
+ * share its codes with the other servers of a deployment.
+ * <p>
+ * If a {@link #setSnapshotPath(String) snapshot path} is set, the codes that
+ * have not expired are written to that file when the store is destroyed and
+ * read back when it is initialized, so they survive a restart.
+ * <p>
+ * Codes that are never retrieved are dropped by a hashed timing wheel: every
+ * code is also queued in the slot of the wheel for the
+ * {@link #setTickMillis(long) tick} in which it expires, and whichever caller
+ * first notices that a tick has passed removes the expired codes of that slot
+ * only. Expiry therefore costs a constant amount of work per code and needs
+ * no background thread. A slot also holds codes that expire one or more turns
+ * of the wheel later, they are left in place until their turn comes.
+ */
+@ManagedResource
+public class InMemoryExpiringCodeStore implements ExpiringCodeStore, InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
 
     private RandomValueStringGenerator generator = new RandomValueStringGenerator(6);
 
     private ConcurrentMap<String, ExpiringCode> store = new ConcurrentHashMap<String, ExpiringCode>();
 
+    private long tickMillis = 1000;
+
+    private Queue<ExpiringCode>[] wheel = newWheel(512);
+
+    /**
+     * The last tick whose slot has been cleared of expired codes.
+     */
+    private final AtomicLong expiredTick = new AtomicLong(System.currentTimeMillis() / tickMillis - 1);
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private ExpiringCodeReplicator replicator = ExpiringCodeReplicator.NONE;
+
+    private File snapshotFile;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param tickMillis the time covered by one slot of the wheel in
+     *            milliseconds (default 1000)
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+        expiredTick.set(System.currentTimeMillis() / tickMillis - 1);
+    }
+
+    /**
+     * @param wheelSize the number of slots of the wheel (default 512)
+     */
+    public void setWheelSize(int wheelSize) {
+        this.wheel = newWheel(wheelSize);
+    }
+
+    /**
+     * @param replicator the hook that shares the codes with other servers
+     *            (default none)
+     */
+    public void setReplicator(ExpiringCodeReplicator replicator) {
+        this.replicator = replicator == null ? ExpiringCodeReplicator.NONE : replicator;
+    }
+
+    /**
+     * @param snapshotPath the file the codes are kept in while the server is
+     *            stopped, empty for none (the default)
+     */
+    public void setSnapshotPath(String snapshotPath) {
+        this.snapshotFile = StringUtils.hasText(snapshotPath) ? new File(snapshotPath) : null;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return;
+        }
+        List<ExpiringCode> codes = mapper.readValue(snapshotFile, new TypeReference<List<ExpiringCode>>() {
+        });
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (ExpiringCode expiringCode : codes) {
+            if (expiringCode.getExpiresAt().getTime() >= now && add(expiringCode)) {
+                count++;
+            }
+        }
+        logger.info("Read " + count + " expiring codes from " + snapshotFile);
+    }
+
+    /**
+     * Write the codes that have not expired to the snapshot file, if there is
+     * one.
+     */
+    @Override
+    public void destroy() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<ExpiringCode> codes = new ArrayList<ExpiringCode>(store.size());
+        for (ExpiringCode expiringCode : store.values()) {
+            if (expiringCode.getExpiresAt().getTime() >= now) {
+                codes.add(expiringCode);
+            }
+        }
+        // Replace the old snapshot only once the new one is complete
+        File file = new File(snapshotFile.getPath() + ".tmp");
+        mapper.writeValue(file, codes);
+        if (!file.renameTo(snapshotFile) && !(snapshotFile.delete() && file.renameTo(snapshotFile))) {
+            throw new IOException("Could not replace " + snapshotFile);
+        }
+        logger.info("Wrote " + codes.size() + " expiring codes to " + snapshotFile);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Expiring Code Count")
+    public int getSize() {
+        return store.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Expired Code Count")
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt) {
         if (data == null || expiresAt == null) {
             throw new NullPointerException();
         }
 
-        if (expiresAt.getTime() < System.currentTimeMillis()) {
+        long now = System.currentTimeMillis();
+        if (expiresAt.getTime() < now) {
             throw new IllegalArgumentException();
         }
+        expire(now);
 
         String code = generator.generate();
 
         ExpiringCode expiringCode = new ExpiringCode(code, expiresAt, data);
 
-        ExpiringCode duplicate = store.putIfAbsent(code, expiringCode);
-        if (duplicate != null) {
+        if (!add(expiringCode)) {
             throw new DataIntegrityViolationException("Duplicate code: " + code);
         }
+        try {
+            replicator.generated(expiringCode);
+        } catch (RuntimeException e) {
+            // the wheel entry is left for the sweep of its tick
+            store.remove(code, expiringCode);
+            throw e;
+        }
 
         return expiringCode;
     }
@@ -53,17 +201,96 @@ public class InMemoryExpiringCodeStore implements ExpiringCodeStore {
             throw new NullPointerException();
         }
 
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        // the entry in the wheel is left for the sweep of its tick
         ExpiringCode expiringCode = store.remove(code);
+        if (expiringCode == null) {
+            return null;
+        }
+        try {
+            replicator.retrieved(code);
+        } catch (RuntimeException e) {
+            // the other servers drop it when it expires
+            logger.warn("Could not replicate retrieval of an expiring code", e);
+        }
 
-        if (expiringCode == null || expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
+        if (expiringCode.getExpiresAt().getTime() < now) {
             expiringCode = null;
         }
 
         return expiringCode;
     }
 
+    /**
+     * Add a code generated by another server, without replicating it again.
+     */
+    public void putReplica(ExpiringCode expiringCode) {
+        expire(System.currentTimeMillis());
+        add(expiringCode);
+    }
+
+    /**
+     * Remove a code retrieved on another server, without replicating it
+     * again.
+     */
+    public void removeReplica(String code) {
+        store.remove(code);
+    }
+
     @Override
     public void setGenerator(RandomValueStringGenerator generator) {
         this.generator = generator;
     }
+
+    /**
+     * Remove the codes of all ticks that have passed since the last call.
+     * Concurrent callers claim disjoint ranges of ticks, so each slot is
+     * swept by one caller only.
+     */
+    private void expire(long now) {
+        long currentTick = now / tickMillis;
+        long last = expiredTick.get();
+        if (last >= currentTick - 1 || !expiredTick.compareAndSet(last, currentTick - 1)) {
+            return;
+        }
+        // after a long pause every slot needs sweeping once, but only once
+        long first = Math.max(last + 1, currentTick - wheel.length);
+        for (long tick = first; tick < currentTick; tick++) {
+            for (Iterator<ExpiringCode> iterator = slot(tick).iterator(); iterator.hasNext();) {
+                ExpiringCode expiringCode = iterator.next();
+                if (expiringCode.getExpiresAt().getTime() / tickMillis < currentTick) {
+                    iterator.remove();
+                    if (store.remove(expiringCode.getCode(), expiringCode)) {
+                        expiredCount.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if there already is a code with the same value
+     */
+    private boolean add(ExpiringCode expiringCode) {
+        if (store.putIfAbsent(expiringCode.getCode(), expiringCode) != null) {
+            return false;
+        }
+        slot(expiringCode.getExpiresAt().getTime() / tickMillis).add(expiringCode);
+        return true;
+    }
+
+    private Queue<ExpiringCode> slot(long tick) {
+        return wheel[(int) (tick % wheel.length)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<ExpiringCode>[] newWheel(int size) {
+        Queue<ExpiringCode>[] wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<ExpiringCode>();
+        }
+        return wheel;
+    }
 }
@@ -15,26 +15,36 @@ package org.cloudfoundry.identity.uaa.codestore;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.jdbc.ExpiredRowSweeper;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
-public class JdbcExpiringCodeStore implements ExpiringCodeStore {
+/**
+ * Expiring code store backed by a database table.
+ * <p>
+ * A code is consumed by deleting its row, and only the caller whose delete
+ * removed the row gets the code back, so a code can be used once even when
+ * it is presented twice at the same time. Expired rows are deleted by an
+ * {@link ExpiredRowSweeper} every {@link #setExpirationInterval(long)
+ * expirationInterval} milliseconds.
+ */
+public class JdbcExpiringCodeStore implements ExpiringCodeStore, InitializingBean, DisposableBean {
 
     public static final String tableName = "expiring_code_store";
     public static final String fields = "code, expiresat, data";
 
     public static final String insert = "insert into " + tableName + " (" + fields + ") values (?,?,?)";
     public static final String delete = "delete from " + tableName + " where code = ?";
-    public static final String deleteExpired = "delete from " + tableName + " where expiresat < ?";
     public static final String select = "select " + fields + " from " + tableName + " where code = ?";
 
     private Log logger = LogFactory.getLog(getClass());
@@ -43,15 +53,27 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private JdbcTemplate jdbcTemplate;
 
-    private AtomicLong lastExpired = new AtomicLong();
-    private long expirationInterval = 60 * 1000; // once a minute
+    private final ExpiredRowSweeper sweeper = new ExpiredRowSweeper(tableName, "code", "expiresat");
 
     public long getExpirationInterval() {
-        return expirationInterval;
+        return sweeper.getExpirationInterval();
     }
 
+    /**
+     * @param expirationInterval the period between two sweeps for expired
+     *            codes in milliseconds, 0 or less to never sweep (default
+     *            60000)
+     */
     public void setExpirationInterval(long expirationInterval) {
-        this.expirationInterval = expirationInterval;
+        sweeper.setExpirationInterval(expirationInterval);
+    }
+
+    /**
+     * @param sweepBatchSize the maximum number of expired codes deleted in
+     *            one statement (default 500)
+     */
+    public void setSweepBatchSize(int sweepBatchSize) {
+        sweeper.setSweepBatchSize(sweepBatchSize);
     }
 
     protected JdbcExpiringCodeStore() {
@@ -64,6 +86,17 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     public void setDataSource(DataSource dataSource) {
         jdbcTemplate = new JdbcTemplate(dataSource);
+        sweeper.setDataSource(dataSource);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        sweeper.afterPropertiesSet();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        sweeper.destroy();
     }
 
     @Override
@@ -100,27 +133,24 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     @Override
     public ExpiringCode retrieveCode(String code) {
-        cleanExpiredEntries();
-
         if (code == null) {
             throw new NullPointerException();
         }
 
+        ExpiringCode expiringCode;
         try {
-            ExpiringCode expiringCode = jdbcTemplate.queryForObject(select, new JdbcExpiringCodeMapper(), code);
-            try {
-                if (expiringCode != null) {
-                    jdbcTemplate.update(delete, code);
-                }
-                if (expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
-                    expiringCode = null;
-                }
-            } finally {
-                return expiringCode;
-            }
+            expiringCode = jdbcTemplate.queryForObject(select, new JdbcExpiringCodeMapper(), code);
         } catch (EmptyResultDataAccessException x) {
             return null;
         }
+        if (jdbcTemplate.update(delete, code) != 1) {
+            // consumed by someone else since we read it
+            return null;
+        }
+        if (expiringCode.getExpiresAt().getTime() < System.currentTimeMillis()) {
+            return null;
+        }
+        return expiringCode;
     }
 
     @Override
@@ -128,17 +158,14 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         this.generator = generator;
     }
 
+    /**
+     * Delete all codes that have expired, at most
+     * {@link #setSweepBatchSize(int) sweepBatchSize} at a time.
+     *
+     * @return the number of codes deleted
+     */
     public int cleanExpiredEntries() {
-        long now = System.currentTimeMillis();
-        long lastCheck = lastExpired.get();
-
-        if ((now - lastCheck) > expirationInterval && lastExpired.compareAndSet(lastCheck, now)) {
-            int count = jdbcTemplate.update(deleteExpired, now);
-            logger.debug("Expiring code sweeper complete, deleted " + count + " entries.");
-            return count;
-        }
-
-        return 0;
+        return sweeper.deleteExpiredRows();
     }
 
     protected static class JdbcExpiringCodeMapper implements RowMapper<ExpiringCode> {
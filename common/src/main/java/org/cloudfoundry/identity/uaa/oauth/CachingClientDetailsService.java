@@ -0,0 +1,163 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.SynchronousListener;
+import org.cloudfoundry.identity.uaa.oauth.event.AbstractClientAdminEvent;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.ClientRegistrationException;
+import org.springframework.util.Assert;
+
+/**
+ * Read-through cache in front of another {@link ClientDetailsService}.
+ * <p>
+ * Entries are evicted when a client admin event (create, update, delete,
+ * secret change) is published for the client on this node, and after
+ * {@link #setTimeToLiveSeconds(int) timeToLiveSeconds} to pick up changes
+ * made on other nodes. An optional {@link ClientDetailsCacheInvalidator} is
+ * told about local changes so they can be propagated faster. Lookups of
+ * unknown clients are not cached.
+ * 
+ */
+@ManagedResource
+public class CachingClientDetailsService implements ClientDetailsService, InitializingBean,
+                ApplicationListener<AbstractClientAdminEvent>, SynchronousListener {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ClientDetailsService delegate;
+
+    private ExpiringLruCache<String, ClientDetails> cache;
+
+    private int maxSize = 1000;
+
+    private int timeToLiveSeconds = 60;
+
+    private ClientDetailsCacheInvalidator invalidator;
+
+    public CachingClientDetailsService(ClientDetailsService delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param maxSize the maximum number of clients to keep (default 1000)
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLiveSeconds how long a client is kept before it is read
+     *            again (default 60)
+     */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    /**
+     * @param invalidator optional hook to tell other nodes about client
+     *            changes made on this node
+     */
+    public void setInvalidator(ClientDetailsCacheInvalidator invalidator) {
+        this.invalidator = invalidator;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(delegate, "delegate must be set");
+        cache = new ExpiringLruCache<String, ClientDetails>(maxSize, timeToLiveSeconds * 1000L);
+    }
+
+    @Override
+    public ClientDetails loadClientByClientId(String clientId) throws ClientRegistrationException {
+        if (clientId == null) {
+            return delegate.loadClientByClientId(clientId);
+        }
+        ClientDetails client = cache.get(clientId);
+        if (client == null) {
+            client = delegate.loadClientByClientId(clientId);
+            if (client != null) {
+                cache.put(clientId, client);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Remove a client from the cache of this node only.
+     * 
+     * @param clientId the client id
+     */
+    @ManagedOperation(description = "Remove a client from the cache")
+    public void evict(String clientId) {
+        cache.remove(clientId);
+    }
+
+    @ManagedOperation(description = "Remove all clients from the cache")
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * A changed client must not be served from the cache once the change has
+     * returned.
+     */
+    @Override
+    public boolean isSynchronous() {
+        return true;
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractClientAdminEvent event) {
+        ClientDetails client = event.getClient();
+        if (client == null || client.getClientId() == null) {
+            return;
+        }
+        logger.debug("Evicting cached client details for " + client.getClientId());
+        evict(client.getClientId());
+        if (invalidator != null) {
+            invalidator.invalidate(client.getClientId());
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Hit Count")
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Miss Count")
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Client Details Cache Eviction Count")
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Client Details Cache Size")
+    public int getSize() {
+        return cache.size();
+    }
+
+}
@@ -16,6 +16,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.oauth.token.UaaTokenServices;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
@@ -64,6 +65,14 @@ public class CheckTokenEndpoint implements InitializingBean {
     @ResponseBody
     public Map<String, ?> checkToken(@RequestParam("token") String value) {
 
+        if (resourceServerTokenServices instanceof UaaTokenServices) {
+            try {
+                return ((UaaTokenServices) resourceServerTokenServices).validateToken(value);
+            } catch (AuthenticationException x) {
+                throw new InvalidTokenException((x.getMessage()));
+            }
+        }
+
         OAuth2AccessToken token = resourceServerTokenServices.readAccessToken(value);
         if (token == null) {
             throw new InvalidTokenException("Token was not recognised");
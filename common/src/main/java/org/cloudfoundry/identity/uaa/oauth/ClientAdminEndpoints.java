@@ -33,10 +33,14 @@ import org.cloudfoundry.identity.uaa.message.SimpleMessage;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientDetailsModification;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory.Projection;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources.ChunkConverter;
 import org.cloudfoundry.identity.uaa.security.DefaultSecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
@@ -105,6 +109,8 @@ public class ClientAdminEndpoints implements InitializingBean {
     private AttributeNameMapper attributeNameMapper = new SimpleAttributeNameMapper(
                     Collections.<String, String> emptyMap());
 
+    private int streamingThreshold = 0;
+
     private SecurityContextAccessor securityContextAccessor = new DefaultSecurityContextAccessor();
 
     private final Map<String, AtomicInteger> errorCounts = new ConcurrentHashMap<String, AtomicInteger>();
@@ -141,6 +147,15 @@ public class ClientAdminEndpoints implements InitializingBean {
         this.attributeNameMapper = attributeNameMapper;
     }
 
+    /**
+     * @param streamingThreshold pages with more clients than this are
+     *            converted and written out in chunks of this size, 0 to always
+     *            build the whole page in memory (the default)
+     */
+    public void setStreamingThreshold(int streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
     /**
      * @param clientRegistrationService the clientRegistrationService to set
      */
@@ -421,6 +436,16 @@ public class ClientAdminEndpoints implements InitializingBean {
     }
 
 
+    public SearchResults<?> listClientDetails(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) throws Exception {
+        return listClientDetails(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * @param cursor if present, page by cursor instead of by start index: the
+     *            results do not include a total and include a next cursor to
+     *            send back for the next page, unless this is the last page
+     */
     @RequestMapping(value = "/oauth/clients", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listClientDetails(
@@ -429,30 +454,87 @@ public class ClientAdminEndpoints implements InitializingBean {
                     @RequestParam(required = false, defaultValue = "client_id") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) throws Exception {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) throws Exception {
         List<ClientDetails> result = new ArrayList<ClientDetails>();
         List<ClientDetails> clients;
-        try {
-            clients = clientDetailsService.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
-            if (count > clients.size()) {
-                count = clients.size();
+        int total;
+        String nextCursor = null;
+        if (cursor != null) {
+            startIndex = 1;
+            try {
+                KeysetPage<ClientDetails> page = clientDetailsService.query(filter, sortBy,
+                                "ascending".equalsIgnoreCase(sortOrder), cursor, count);
+                clients = page.getResources();
+                nextCursor = page.getNextCursor();
+                total = SearchResults.UNKNOWN_TOTAL;
+            } catch (IllegalArgumentException e) {
+                throw new UaaException("Invalid filter, sortBy or cursor: " + e.getMessage(),
+                                HttpStatus.BAD_REQUEST.value());
             }
-        } catch (IllegalArgumentException e) {
-            throw new UaaException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST.value());
         }
-        for (ClientDetails client : UaaPagingUtils.subList(clients, startIndex, count)) {
+        else {
+            try {
+                clients = clientDetailsService.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+                total = clients.size();
+            } catch (IllegalArgumentException e) {
+                throw new UaaException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST.value());
+            }
+        }
+        if (count > clients.size()) {
+            count = clients.size();
+        }
+        List<ClientDetails> page = UaaPagingUtils.subList(clients, startIndex, count);
+        if (streamingThreshold > 0 && page.size() > streamingThreshold) {
+            return streamClients(page, attributesCommaSeparated, startIndex, count, total, nextCursor);
+        }
+        for (ClientDetails client : page) {
             result.add(removeSecret(client));
         }
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             return new SearchResults<ClientDetails>(Arrays.asList(SCIM_CLIENTS_SCHEMA_URI), result, startIndex, count,
-                            clients.size());
+                            total, nextCursor);
         }
 
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(result, startIndex, count, clients.size(), attributes,
-                            attributeNameMapper, Arrays.asList(SCIM_CLIENTS_SCHEMA_URI));
+            return SearchResultsFactory.buildSearchResultFrom(result, startIndex, count, total, nextCursor,
+                            attributes, attributeNameMapper, Arrays.asList(SCIM_CLIENTS_SCHEMA_URI));
+        } catch (SpelParseException e) {
+            throw new UaaException("Invalid attributes: [" + attributesCommaSeparated + "]",
+                            HttpStatus.BAD_REQUEST.value());
+        } catch (SpelEvaluationException e) {
+            throw new UaaException("Invalid attributes: [" + attributesCommaSeparated + "]",
+                            HttpStatus.BAD_REQUEST.value());
+        }
+    }
+
+    /**
+     * Convert and write out a large page of clients one chunk at a time, so
+     * that only one chunk of converted clients is in memory at once.
+     */
+    private SearchResults<?> streamClients(List<ClientDetails> page, String attributesCommaSeparated,
+                    int startIndex, int count, int total, String nextCursor) {
+        try {
+            final Projection projection = StringUtils.hasLength(attributesCommaSeparated) ? SearchResultsFactory
+                            .buildProjection(attributesCommaSeparated.split(","), attributeNameMapper) : null;
+            Collection<Object> resources = new StreamingResources<ClientDetails, Object>(page, streamingThreshold,
+                            new ChunkConverter<ClientDetails, Object>() {
+                                @Override
+                                public List<Object> convert(List<ClientDetails> chunk) {
+                                    List<ClientDetails> clients = new ArrayList<ClientDetails>(chunk.size());
+                                    for (ClientDetails client : chunk) {
+                                        clients.add(removeSecret(client));
+                                    }
+                                    if (projection == null) {
+                                        return Collections.<Object> unmodifiableList(clients);
+                                    }
+                                    return Collections.<Object> unmodifiableList(projection.project(clients));
+                                }
+                            });
+            return new SearchResults<Object>(Arrays.asList(SCIM_CLIENTS_SCHEMA_URI), resources, startIndex, count,
+                            total, nextCursor);
         } catch (SpelParseException e) {
             throw new UaaException("Invalid attributes: [" + attributesCommaSeparated + "]",
                             HttpStatus.BAD_REQUEST.value());
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+/**
+ * Hook for propagating client changes made on this node to the client caches
+ * of other nodes. An implementation would typically broadcast the client id
+ * and have the receiving nodes call
+ * {@link CachingClientDetailsService#evict(String)}.
+ * 
+ */
+public interface ClientDetailsCacheInvalidator {
+
+    /**
+     * Called after a client was created, changed or deleted on this node.
+     * 
+     * @param clientId the id of the client that changed
+     */
+    void invalidate(String clientId);
+
+}
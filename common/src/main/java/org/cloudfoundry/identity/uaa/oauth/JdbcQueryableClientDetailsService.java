@@ -61,6 +61,11 @@ public class JdbcQueryableClientDetailsService extends AbstractQueryable<ClientD
         return CLIENT_DETAILS_TABLE;
     }
 
+    @Override
+    protected String getKeyColumn() {
+        return "client_id";
+    }
+
     @Override
     public List<ClientDetails> query(String filter) {
         return super.query(filter);
@@ -20,19 +20,37 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
@@ -51,17 +69,55 @@ import org.springframework.web.client.RestTemplate;
  * 
  * If the endpoint returns a 400 response, this indicates that the token is
  * invalid.
+ * <p>
+ * Optionally the default transport keeps a pool of up to
+ * {@link #setMaxConnections(int) maxConnections} persistent connections to
+ * the authorization server, and the contents of valid tokens are cached for
+ * {@link #setCacheTimeToLiveSeconds(int) cacheTimeToLiveSeconds}, but never
+ * beyond the expiry of the token. A token revoked on the server is still
+ * accepted from the cache until its entry expires.
+ * <p>
+ * If a {@link #setTokenKeyEndpointUrl(String) tokenKeyEndpointUrl} is set,
+ * tokens are not sent to /check_token at all. Their signature and expiry are
+ * checked locally with the key from /token_key, which is fetched again when a
+ * signature does not match, so a key rotation is picked up. Revoked tokens
+ * and deleted clients or users are not detected in this mode.
  * 
  * @author Dave Syer
  * @author Luke Taylor
  * 
  */
-public class RemoteTokenServices implements ResourceServerTokenServices {
+@ManagedResource
+public class RemoteTokenServices implements ResourceServerTokenServices, InitializingBean, DisposableBean {
+
+    /**
+     * Bounds how often a token with a bad signature can make us fetch the key
+     * again.
+     */
+    private static final long KEY_REFRESH_INTERVAL_MILLIS = 30000;
 
     protected final Log logger = LogFactory.getLog(getClass());
 
+    private final RestTemplate defaultRestTemplate;
+
     private RestOperations restTemplate;
 
+    private CloseableHttpClient httpClient;
+
+    private int maxConnections = 0;
+
+    private ExpiringLruCache<String, Map<String, Object>> cache;
+
+    private int cacheMaxSize = 10000;
+
+    private int cacheTimeToLiveSeconds = 0;
+
+    private String tokenKeyEndpointUrl;
+
+    private volatile SignatureVerifier verifier;
+
+    private volatile long verifierFetchedAt = 0;
+
     private String checkTokenEndpointUrl;
 
     private String clientId;
@@ -71,8 +127,9 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
     private ObjectMapper mapper = new ObjectMapper();
 
     public RemoteTokenServices() {
-        restTemplate = new RestTemplate();
-        ((RestTemplate) restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
+        defaultRestTemplate = new RestTemplate();
+        restTemplate = defaultRestTemplate;
+        defaultRestTemplate.setErrorHandler(new DefaultResponseErrorHandler() {
             @Override
             // Ignore 400
             public void handleError(ClientHttpResponse response) throws IOException {
@@ -99,18 +156,87 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         this.clientSecret = clientSecret;
     }
 
+    /**
+     * @param maxConnections the maximum number of pooled connections the
+     *            default transport keeps open to the authorization server, 0
+     *            to open a connection per request (the default). Has no
+     *            effect if a rest template is provided.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param cacheTimeToLiveSeconds how long the contents of a valid token
+     *            are reused, 0 to turn the cache off (the default)
+     */
+    public void setCacheTimeToLiveSeconds(int cacheTimeToLiveSeconds) {
+        this.cacheTimeToLiveSeconds = cacheTimeToLiveSeconds;
+    }
+
+    /**
+     * @param cacheMaxSize the maximum number of tokens to cache (default
+     *            10000)
+     */
+    public void setCacheMaxSize(int cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+    /**
+     * @param tokenKeyEndpointUrl the /token_key endpoint to get the
+     *            verification key from, to check tokens locally instead of
+     *            calling /check_token
+     */
+    public void setTokenKeyEndpointUrl(String tokenKeyEndpointUrl) {
+        this.tokenKeyEndpointUrl = tokenKeyEndpointUrl;
+    }
+
     @Override
-    public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+    public void afterPropertiesSet() {
+        if (maxConnections > 0 && restTemplate == defaultRestTemplate) {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(maxConnections);
+            // there is only one route, to the authorization server
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+            httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+            defaultRestTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+        }
+        cache = cacheTimeToLiveSeconds > 0 && cacheMaxSize > 0 ? new ExpiringLruCache<String, Map<String, Object>>(
+                        cacheMaxSize, cacheTimeToLiveSeconds * 1000L) : null;
+    }
 
-        MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
-        formData.add("token", accessToken);
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
-        Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+    @Override
+    public void destroy() throws Exception {
+        if (httpClient != null) {
+            httpClient.close();
+        }
+    }
 
-        if (map.containsKey("error")) {
-            logger.debug("check_token returned error: " + map.get("error"));
-            throw new InvalidTokenException(accessToken);
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Remote Token Cache Hit Count")
+    public long getCacheHitCount() {
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Remote Token Cache Miss Count")
+    public long getCacheMissCount() {
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Remote Token Cache Size")
+    public int getCacheSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+
+        String key = cache == null ? null : DigestUtils.sha256Hex(accessToken);
+        Map<String, Object> map = key == null ? null : cache.get(key);
+        if (map == null) {
+            map = tokenKeyEndpointUrl != null ? decodeToken(accessToken) : checkToken(accessToken);
+            if (key != null) {
+                cache.put(key, map, getExpiresAt(map));
+            }
         }
 
         Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
@@ -163,6 +289,95 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         return new OAuth2Authentication(clientAuthentication.createOAuth2Request(), userAuthentication);
     }
 
+    private Map<String, Object> checkToken(String accessToken) {
+        MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+        formData.add("token", accessToken);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+        Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+
+        if (map.containsKey("error")) {
+            logger.debug("check_token returned error: " + map.get("error"));
+            throw new InvalidTokenException(accessToken);
+        }
+        return map;
+    }
+
+    private Map<String, Object> decodeToken(String accessToken) {
+        Jwt jwt;
+        try {
+            jwt = JwtHelper.decode(accessToken);
+        } catch (RuntimeException e) {
+            logger.debug("Could not decode token: " + e.getMessage());
+            throw new InvalidTokenException(accessToken);
+        }
+        verify(jwt, accessToken);
+
+        Map<String, Object> map;
+        try {
+            map = mapper.readValue(jwt.getClaims(), new TypeReference<Map<String, Object>>() {
+            });
+        } catch (IOException e) {
+            throw new InvalidTokenException(accessToken);
+        }
+        if (getExpiresAt(map) <= System.currentTimeMillis()) {
+            logger.debug("Token has expired");
+            throw new InvalidTokenException(accessToken);
+        }
+        return map;
+    }
+
+    private void verify(Jwt jwt, String accessToken) {
+        SignatureVerifier verifier = this.verifier;
+        if (verifier == null) {
+            verifier = fetchVerifier();
+        }
+        try {
+            jwt.verifySignature(verifier);
+            return;
+        } catch (InvalidSignatureException e) {
+            if (System.currentTimeMillis() - verifierFetchedAt < KEY_REFRESH_INTERVAL_MILLIS) {
+                logger.debug("Token signature does not match: " + e.getMessage());
+                throw new InvalidTokenException(accessToken);
+            }
+        }
+        // the key may have been rotated since we fetched it
+        try {
+            jwt.verifySignature(fetchVerifier());
+        } catch (InvalidSignatureException e) {
+            logger.debug("Token signature does not match: " + e.getMessage());
+            throw new InvalidTokenException(accessToken);
+        }
+    }
+
+    private SignatureVerifier fetchVerifier() {
+        HttpHeaders headers = new HttpHeaders();
+        if (clientId != null) {
+            headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+        }
+        @SuppressWarnings("rawtypes")
+        Map map = restTemplate.exchange(tokenKeyEndpointUrl, HttpMethod.GET, new HttpEntity<Void>(headers),
+                        Map.class).getBody();
+        Object value = map == null ? null : map.get("value");
+        Assert.state(value instanceof String, "Verification key must be present in response from auth server");
+        String key = (String) value;
+        // the endpoint shows the public key of a key pair, or else the
+        // shared secret
+        SignatureVerifier result = key.startsWith("-----BEGIN") ? new RsaVerifier(key) : new MacSigner(key);
+        verifier = result;
+        verifierFetchedAt = System.currentTimeMillis();
+        return result;
+    }
+
+    /**
+     * @return the expiry time of the token in milliseconds, or
+     *         {@link Long#MAX_VALUE} if the claims do not include one
+     */
+    private long getExpiresAt(Map<String, Object> map) {
+        Object exp = map.get(Claims.EXP);
+        return exp instanceof Number ? ((Number) exp).longValue() * 1000 : Long.MAX_VALUE;
+    }
+
     private Authentication getUserAuthentication(Map<String, Object> map, Set<String> scope) {
         String username = (String) map.get("user_name");
         if (username == null) {
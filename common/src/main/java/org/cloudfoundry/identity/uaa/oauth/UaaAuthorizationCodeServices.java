@@ -0,0 +1,178 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import javax.sql.DataSource;
+
+import org.cloudfoundry.identity.uaa.rest.jdbc.ExpiredRowSweeper;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.support.SqlLobValue;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
+import org.springframework.util.Assert;
+
+/**
+ * Authorization code services that keep each code in a row of the
+ * <code>oauth_code</code> table, keyed by the code, until it is consumed or
+ * it expires.
+ * <p>
+ * A code can only be consumed once, even when it is presented twice at the
+ * same time: only the caller whose delete removed the row gets the
+ * authentication back. Codes that are never consumed are deleted by an
+ * {@link ExpiredRowSweeper} every {@link #setExpirationInterval(long)
+ * expirationInterval} milliseconds.
+ */
+public class UaaAuthorizationCodeServices implements AuthorizationCodeServices, InitializingBean, DisposableBean {
+
+    public static final String tableName = "oauth_code";
+
+    public static final String insert = "insert into " + tableName + " (code, expiresat, authentication) values (?,?,?)";
+    public static final String select = "select expiresat, authentication from " + tableName + " where code = ?";
+    public static final String delete = "delete from " + tableName + " where code = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private RandomValueStringGenerator generator = new RandomValueStringGenerator();
+
+    private int codeValiditySeconds = 300;
+
+    private final ExpiredRowSweeper sweeper = new ExpiredRowSweeper(tableName, "code", "expiresat");
+
+    public UaaAuthorizationCodeServices(DataSource dataSource) {
+        Assert.notNull(dataSource);
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.sweeper.setDataSource(dataSource);
+    }
+
+    public void setGenerator(RandomValueStringGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * @param codeValiditySeconds how long a code can be exchanged for a
+     *            token (default 300)
+     */
+    public void setCodeValiditySeconds(int codeValiditySeconds) {
+        this.codeValiditySeconds = codeValiditySeconds;
+    }
+
+    /**
+     * @param expirationInterval the period between two sweeps for expired
+     *            codes in milliseconds, 0 or less to never sweep (default
+     *            60000)
+     */
+    public void setExpirationInterval(long expirationInterval) {
+        sweeper.setExpirationInterval(expirationInterval);
+    }
+
+    /**
+     * @param sweepBatchSize the maximum number of expired codes deleted in
+     *            one statement (default 500)
+     */
+    public void setSweepBatchSize(int sweepBatchSize) {
+        sweeper.setSweepBatchSize(sweepBatchSize);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        sweeper.afterPropertiesSet();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        sweeper.destroy();
+    }
+
+    @Override
+    public String createAuthorizationCode(OAuth2Authentication authentication) {
+        byte[] serialized = SerializationUtils.serialize(authentication);
+        long expiresAt = System.currentTimeMillis() + codeValiditySeconds * 1000L;
+        int count = 0;
+        while (true) {
+            String code = generator.generate();
+            try {
+                jdbcTemplate.update(insert, new Object[] { code, expiresAt, new SqlLobValue(serialized) }, new int[] {
+                                Types.VARCHAR, Types.BIGINT, Types.BLOB });
+                return code;
+            } catch (DataIntegrityViolationException x) {
+                // the code is already in use, try another one
+                if (++count == 3) {
+                    throw x;
+                }
+            }
+        }
+    }
+
+    @Override
+    public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
+        StoredCode stored;
+        try {
+            stored = jdbcTemplate.queryForObject(select, new StoredCodeMapper(), code);
+        } catch (EmptyResultDataAccessException x) {
+            throw new InvalidGrantException("Invalid authorization code: " + code);
+        }
+        if (jdbcTemplate.update(delete, code) != 1) {
+            // consumed by someone else since we read it
+            throw new InvalidGrantException("Invalid authorization code: " + code);
+        }
+        if (stored.expiresAt < System.currentTimeMillis()) {
+            throw new InvalidGrantException("Expired authorization code: " + code);
+        }
+        return SerializationUtils.deserialize(stored.authentication);
+    }
+
+    /**
+     * Delete all codes that have expired, at most
+     * {@link #setSweepBatchSize(int) sweepBatchSize} at a time.
+     *
+     * @return the number of codes deleted
+     */
+    public int cleanExpiredEntries() {
+        return sweeper.deleteExpiredRows();
+    }
+
+    private static class StoredCode {
+
+        private final long expiresAt;
+
+        private final byte[] authentication;
+
+        public StoredCode(long expiresAt, byte[] authentication) {
+            this.expiresAt = expiresAt;
+            this.authentication = authentication;
+        }
+
+    }
+
+    private static class StoredCodeMapper implements RowMapper<StoredCode> {
+
+        @Override
+        public StoredCode mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new StoredCode(rs.getLong(1), rs.getBytes(2));
+        }
+
+    }
+
+}
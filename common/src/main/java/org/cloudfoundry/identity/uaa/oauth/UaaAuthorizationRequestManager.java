@@ -20,11 +20,10 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.cloudfoundry.identity.uaa.security.DefaultSecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
-import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.ScopeMatcher;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
@@ -217,10 +216,10 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
             if ("client_credentials".equals(parameters.get("grant_type"))) {
                 validScope = AuthorityUtils.authorityListToSet(clientDetails.getAuthorities());
             }
-            Set<Pattern> validWildcards = constructWildcards(validScope);
+            ScopeMatcher validWildcards = ScopeMatcher.of(validScope);
             Set<String> scopes = OAuth2Utils.parseParameterList(parameters.get("scope"));
             for (String scope : scopes) {
-                if (!matches(validWildcards, scope)) {
+                if (!validWildcards.matches(scope)) {
                     throw new InvalidScopeException("Invalid scope: " + scope
                                     + ". Did you know that you can get default requestedScopes by simply sending no value?",
                                     validScope);
@@ -262,19 +261,19 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
     protected Set<String> intersectScopes(Set<String> requestedScopes, Set<String> clientScopes, Set<String> userScopes) {
         Set<String> result = new HashSet<>(userScopes);
 
-        Set<Pattern> clientWildcards = constructWildcards(clientScopes);
+        ScopeMatcher clientWildcards = ScopeMatcher.of(clientScopes);
         for (Iterator<String> iter = result.iterator(); iter.hasNext();) {
             String scope = iter.next();
-            if (!matches(clientWildcards, scope)) {
+            if (!clientWildcards.matches(scope)) {
                 iter.remove();
             }
         }
 
-        Set<Pattern> requestedWildcards = constructWildcards(requestedScopes);
+        ScopeMatcher requestedWildcards = ScopeMatcher.of(requestedScopes);
         // Weed out disallowed requestedScopes:
         for (Iterator<String> iter = result.iterator(); iter.hasNext();) {
             String scope = iter.next();
-            if (!matches(requestedWildcards, scope)) {
+            if (!requestedWildcards.matches(scope)) {
                 iter.remove();
             }
         }
@@ -282,14 +281,6 @@ public class UaaAuthorizationRequestManager implements OAuth2RequestFactory {
         return result;
     }
 
-    protected Set<Pattern> constructWildcards(Set<String> scopes) {
-        return UaaStringUtils.constructWildcards(scopes);
-    }
-
-    protected boolean matches(Set<Pattern> wildcards, String scope) {
-        return UaaStringUtils.matches(wildcards, scope);
-    }
-
     private Set<String> getResourceIds(ClientDetails clientDetails, Set<String> scopes) {
         Set<String> resourceIds = new LinkedHashSet<String>();
         //at a minimum - the resourceIds should contain the client this is intended for
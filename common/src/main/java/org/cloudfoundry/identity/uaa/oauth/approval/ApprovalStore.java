@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ApprovalStore {
@@ -25,4 +26,10 @@ public interface ApprovalStore {
     public List<Approval> getApprovals(String filter);
 
     public List<Approval> getApprovals(String userId, String clientId);
+
+    /**
+     * @param userIds the users to get the approvals of
+     * @return the approvals of all the users, in no particular order
+     */
+    public List<Approval> getApprovalsForUsers(Collection<String> userIds);
 }
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.SynchronousListener;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.util.Assert;
+
+/**
+ * Read-through cache of the approvals of each user in front of another
+ * {@link ApprovalStore}. Only {@link #getApprovals(String, String)} is
+ * cached, filtered and bulk queries always go to the delegate.
+ * <p>
+ * The approvals of a user are evicted when an {@link ApprovalModifiedEvent}
+ * is published for the user on this node, and the whole cache is cleared
+ * when approvals are revoked through this store, because a revocation filter
+ * may match any number of users. Entries also expire after
+ * {@link #setTimeToLiveSeconds(int) timeToLiveSeconds} to pick up changes made
+ * on other nodes. A {@link #setMaxSize(int) maxSize} of 0 turns the cache off.
+ *
+ */
+@ManagedResource
+public class CachingApprovalStore implements ApprovalStore, InitializingBean,
+                ApplicationListener<ApprovalModifiedEvent>, SynchronousListener {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final ApprovalStore delegate;
+
+    private ExpiringLruCache<String, ConcurrentMap<String, List<Approval>>> cache;
+
+    /**
+     * Changes whenever entries are evicted, so that a lookup that raced with
+     * an eviction does not cache what it read.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private int maxSize = 10000;
+
+    private int timeToLiveSeconds = 30;
+
+    public CachingApprovalStore(ApprovalStore delegate) {
+        Assert.notNull(delegate);
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param maxSize the maximum number of users to keep approvals for, 0 to
+     *            turn the cache off (default 10000)
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLiveSeconds how long the approvals of a user are kept
+     *            before they are read again (default 30)
+     */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        cache = maxSize > 0 ? new ExpiringLruCache<String, ConcurrentMap<String, List<Approval>>>(maxSize,
+                        timeToLiveSeconds * 1000L) : null;
+    }
+
+    @Override
+    public boolean addApproval(Approval approval) {
+        try {
+            return delegate.addApproval(approval);
+        } finally {
+            evict(approval.getUserId());
+        }
+    }
+
+    @Override
+    public boolean revokeApproval(Approval approval) {
+        try {
+            return delegate.revokeApproval(approval);
+        } finally {
+            evict(approval.getUserId());
+        }
+    }
+
+    @Override
+    public boolean revokeApprovals(String filter) {
+        try {
+            return delegate.revokeApprovals(filter);
+        } finally {
+            clear();
+        }
+    }
+
+    @Override
+    public List<Approval> getApprovals(String filter) {
+        return delegate.getApprovals(filter);
+    }
+
+    @Override
+    public List<Approval> getApprovals(String userId, String clientId) {
+        if (cache == null || userId == null || clientId == null) {
+            return delegate.getApprovals(userId, clientId);
+        }
+        ConcurrentMap<String, List<Approval>> clients = cache.get(userId);
+        List<Approval> approvals = clients == null ? null : clients.get(clientId);
+        if (approvals == null) {
+            long before = generation.get();
+            approvals = Collections.unmodifiableList(new ArrayList<Approval>(delegate.getApprovals(userId, clientId)));
+            if (generation.get() == before) {
+                if (clients == null) {
+                    clients = new ConcurrentHashMap<String, List<Approval>>();
+                    ConcurrentMap<String, List<Approval>> existing = cache.putIfAbsent(userId, clients);
+                    clients = existing == null ? clients : existing;
+                }
+                clients.put(clientId, approvals);
+            }
+        }
+        // callers may modify the list they get
+        return new ArrayList<Approval>(approvals);
+    }
+
+    @Override
+    public List<Approval> getApprovalsForUsers(Collection<String> userIds) {
+        return delegate.getApprovalsForUsers(userIds);
+    }
+
+    /**
+     * Remove the approvals of a user from the cache of this node only.
+     *
+     * @param userId the user id
+     */
+    @ManagedOperation(description = "Remove the approvals of a user from the cache")
+    public void evict(String userId) {
+        if (cache != null && userId != null) {
+            generation.incrementAndGet();
+            cache.remove(userId);
+        }
+    }
+
+    @ManagedOperation(description = "Remove all approvals from the cache")
+    public void clear() {
+        if (cache != null) {
+            generation.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * A revoked approval must not be served from the cache once the
+     * revocation has returned.
+     */
+    @Override
+    public boolean isSynchronous() {
+        return true;
+    }
+
+    @Override
+    public void onApplicationEvent(ApprovalModifiedEvent event) {
+        logger.debug("Evicting cached approvals for " + event.getSource().getUserId());
+        evict(event.getSource().getUserId());
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Hit Count")
+    public long getHitCount() {
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Miss Count")
+    public long getMissCount() {
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Approval Cache Eviction Count")
+    public long getEvictionCount() {
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Approval Cache Size")
+    public int getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+}
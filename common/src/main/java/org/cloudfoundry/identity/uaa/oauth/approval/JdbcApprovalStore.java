@@ -18,6 +18,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +27,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus;
+import org.cloudfoundry.identity.uaa.rest.jdbc.InClauseQueries;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter;
 import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFilter;
@@ -68,6 +70,10 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    private static final String GET_USER_CLIENT_AUTHZ_SQL = GET_AUTHZ_SQL + " where user_id=? and client_id=?";
+
+    private static final String GET_USERS_AUTHZ_SQL = GET_AUTHZ_SQL + " where user_id in (:ids)";
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -196,9 +202,20 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         }
     }
 
+    /**
+     * Looks up the approvals with a plain prepared statement, because this is
+     * called for every token and authorization check and needs neither filter
+     * parsing nor paging.
+     */
     @Override
     public List<Approval> getApprovals(String userId, String clientId) {
-        return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
+        return jdbcTemplate.query(GET_USER_CLIENT_AUTHZ_SQL, rowMapper, userId, clientId);
+    }
+
+    @Override
+    public List<Approval> getApprovalsForUsers(Collection<String> userIds) {
+        NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        return InClauseQueries.queryInChunks(namedJdbcTemplate, GET_USERS_AUTHZ_SQL, userIds, rowMapper);
     }
 
     @Override
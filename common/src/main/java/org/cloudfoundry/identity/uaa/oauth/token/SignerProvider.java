@@ -37,10 +37,11 @@ import org.springframework.util.Assert;
 public class SignerProvider implements InitializingBean {
 
     private final Log logger = LogFactory.getLog(getClass());
-    private String verifierKey = new RandomValueStringGenerator().generate();
-    private String signingKey = verifierKey;
-    private Signer signer = new MacSigner(verifierKey);
+    private volatile String verifierKey = new RandomValueStringGenerator().generate();
+    private volatile String signingKey = verifierKey;
+    private volatile Signer signer = new MacSigner(verifierKey);
     private String type = "MAC";
+    private volatile CachedVerifier verifier;
 
     @Override
     public void afterPropertiesSet() throws Exception {
@@ -89,13 +90,31 @@ public class SignerProvider implements InitializingBean {
         return verifierKey.startsWith("-----BEGIN");
     }
 
+    /**
+     * The verifier is built lazily from the configured keys and reused while
+     * they do not change, so that the key material is not parsed again for
+     * every token.
+     * 
+     * @return a verifier for tokens signed by this provider
+     */
     public SignatureVerifier getVerifier() {
-        if (isAssymetricKey(signingKey)) {
-            return new RsaVerifier(verifierKey);
-        }
-        else {
-            return new MacSigner(verifierKey);
+        String signingKey = this.signingKey;
+        String verifierKey = this.verifierKey;
+        CachedVerifier cached = verifier;
+        // A verifier cached by a caller that read the keys before they
+        // changed is not for these keys, and is replaced
+        if (cached == null || !cached.isFor(signingKey, verifierKey)) {
+            SignatureVerifier result;
+            if (isAssymetricKey(signingKey)) {
+                result = new RsaVerifier(verifierKey);
+            }
+            else {
+                result = new MacSigner(verifierKey);
+            }
+            cached = new CachedVerifier(signingKey, verifierKey, result);
+            verifier = cached;
         }
+        return cached.verifier;
     }
 
     /**
@@ -156,6 +175,31 @@ public class SignerProvider implements InitializingBean {
         this.verifierKey = verifierKey;
     }
 
+    /**
+     * A verifier together with the keys it was built from.
+     */
+    private static class CachedVerifier {
 
+        private final String signingKey;
+
+        private final String verifierKey;
+
+        private final SignatureVerifier verifier;
+
+        public CachedVerifier(String signingKey, String verifierKey, SignatureVerifier verifier) {
+            this.signingKey = signingKey;
+            this.verifierKey = verifierKey;
+            this.verifier = verifier;
+        }
+
+        /**
+         * The keys are compared by identity, a key set again to the same
+         * value only costs one more verifier.
+         */
+        public boolean isFor(String signingKey, String verifierKey) {
+            return this.signingKey == signingKey && this.verifierKey == verifierKey;
+        }
+
+    }
 
 }
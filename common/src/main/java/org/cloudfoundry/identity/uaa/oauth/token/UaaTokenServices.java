@@ -24,6 +24,8 @@ import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.springframework.beans.factory.InitializingBean;
@@ -60,6 +62,8 @@ import org.springframework.security.oauth2.provider.token.ResourceServerTokenSer
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -109,6 +113,8 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private ObjectMapper mapper = new ObjectMapper();
 
+    private final JwtEncoder jwtEncoder = new JwtEncoder();
+
     private ClientDetailsService clientDetailsService = null;
 
     private SignerProvider signerProvider = new SignerProvider();
@@ -123,6 +129,8 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
     private ApplicationEventPublisher applicationEventPublisher;
 
+    private VerifiedTokenCache tokenCache = null;
+
     @Override
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
@@ -296,14 +304,14 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
         accessToken.setAdditionalInformation(info);
 
-        String content;
+        byte[] content;
         try {
-            content = mapper.writeValueAsString(createJWTAccessToken(accessToken, userId, username, userEmail,
-                            clientScopes, requestedScopes, clientId, resourceIds, grantType, refreshToken));
+            content = writeJWTAccessToken(accessToken, userId, username, userEmail, clientScopes, requestedScopes,
+                            clientId, resourceIds, grantType);
         } catch (Exception e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String token = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        String token = jwtEncoder.encode(content, signerProvider.getSigner());
 
         // This setter copies the value and returns. Don't change.
         accessToken.setValue(token);
@@ -320,51 +328,63 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         }
     }
 
-    private Map<String, ?> createJWTAccessToken(OAuth2AccessToken token, String userId, String username,
-                    String userEmail, Collection<GrantedAuthority> clientScopes, Set<String> requestedScopes,
-                    String clientId,
-                    Set<String> resourceIds, String grantType, String refreshToken) {
+    /**
+     * Write the claims of an access token straight to JSON, without building
+     * a map of them first.
+     */
+    private byte[] writeJWTAccessToken(OAuth2AccessToken token, String userId, String username, String userEmail,
+                    Collection<GrantedAuthority> clientScopes, Set<String> requestedScopes, String clientId,
+                    Set<String> resourceIds, String grantType) throws IOException {
 
-        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        JsonGenerator json = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        json.writeStartObject();
 
-        response.put(JTI, token.getAdditionalInformation().get(JTI));
-        response.putAll(token.getAdditionalInformation());
+        Map<String, Object> info = token.getAdditionalInformation();
+        json.writeObjectField(JTI, info.get(JTI));
+        for (Map.Entry<String, Object> entry : info.entrySet()) {
+            if (!JTI.equals(entry.getKey())) {
+                json.writeObjectField(entry.getKey(), entry.getValue());
+            }
+        }
 
-        response.put(SUB, userId);
+        json.writeObjectField(SUB, userId);
         if (null != clientScopes) {
-            response.put(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
+            json.writeObjectField(AUTHORITIES, AuthorityUtils.authorityListToSet(clientScopes));
         }
 
-        response.put(OAuth2AccessToken.SCOPE, requestedScopes);
-        response.put(CLIENT_ID, clientId);
-        response.put(CID, clientId);
-        response.put(AZP, clientId); //openId Connect
+        json.writeObjectField(OAuth2AccessToken.SCOPE, requestedScopes);
+        json.writeObjectField(CLIENT_ID, clientId);
+        json.writeObjectField(CID, clientId);
+        json.writeObjectField(AZP, clientId); //openId Connect
 
         if (null != grantType) {
-            response.put(GRANT_TYPE, grantType);
+            json.writeObjectField(GRANT_TYPE, grantType);
         }
         if (!"client_credentials".equals(grantType)) {
-            response.put(USER_ID, userId);
-            response.put(USER_NAME, username == null ? userId : username);
+            json.writeObjectField(USER_ID, userId);
+            json.writeObjectField(USER_NAME, username == null ? userId : username);
             if (null != userEmail) {
-                response.put(EMAIL, userEmail);
+                json.writeObjectField(EMAIL, userEmail);
             }
         }
 
-        response.put(IAT, System.currentTimeMillis() / 1000);
+        json.writeNumberField(IAT, System.currentTimeMillis() / 1000);
         if (token.getExpiration() != null) {
-            response.put(EXP, token.getExpiration().getTime() / 1000);
+            json.writeNumberField(EXP, token.getExpiration().getTime() / 1000);
         }
 
         if (tokenEndpoint != null) {
-            response.put(ISS, tokenEndpoint);
+            json.writeObjectField(ISS, tokenEndpoint);
         }
 
         // TODO: different values for audience in the AT and RT. Need to sync
         // them up
-        response.put(AUD, resourceIds);
+        json.writeObjectField(AUD, resourceIds);
 
-        return response;
+        json.writeEndObject();
+        json.close();
+        return out.toByteArray();
     }
 
     @Override
@@ -489,9 +509,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         String userId = getUserId(authentication);
         UaaUser user = userDatabase.retrieveUserById(userId);
 
-        String content;
+        byte[] content;
         try {
-            content = mapper.writeValueAsString(
+            content = mapper.writeValueAsBytes(
                 createJWTRefreshToken(
                     token, user, authentication.getOAuth2Request().getScope(),
                     authentication.getOAuth2Request().getClientId(),
@@ -501,7 +521,7 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         } catch (Exception e) {
             throw new IllegalStateException("Cannot convert access token to JSON", e);
         }
-        String jwtToken = JwtHelper.encode(content, signerProvider.getSigner()).getEncoded();
+        String jwtToken = jwtEncoder.encode(content, signerProvider.getSigner());
 
         ExpiringOAuth2RefreshToken refreshToken = new DefaultExpiringOAuth2RefreshToken(jwtToken, token.getExpiration());
 
@@ -591,10 +611,10 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.userDatabase = userDatabase;
     }
 
-    private void validateClient(String clientId) throws AuthenticationException {
+    private ClientDetails validateClient(String clientId) throws AuthenticationException {
         if (clientId!=null) {
             try {
-                clientDetailsService.loadClientByClientId(clientId);
+                return clientDetailsService.loadClientByClientId(clientId);
             } catch (NoSuchClientException x) {
                 throw new OAuth2AccessDeniedException("Invalid client:"+clientId);
             } catch (ClientRegistrationException x) {
@@ -603,18 +623,66 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
                 throw new OAuth2AccessDeniedException("Invalid client:"+clientId);
             }
         }
+        return null;
     }
 
-    @Override
-    public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
-        Map<String, Object> claims = getClaimsForToken(accessToken);
-
-        // Check token expiry
+    private void checkExpiry(String accessToken, Map<String, Object> claims) {
         Integer expiration = (Integer) claims.get(EXP);
         if (expiration != null && new Date(expiration * 1000l).before(new Date())) {
             throw new InvalidTokenException("Invalid access token (expired): " + accessToken + " expired at "
                             + new Date(expiration * 1000l));
         }
+    }
+
+    /**
+     * Validates an access token in a single pass. The signature is verified
+     * and the claims are parsed once, and the expiry, client, user
+     * modification and approval checks of {@link #readAccessToken(String)}
+     * and {@link #loadAuthentication(String)} are all made against them.
+     * 
+     * @param accessToken the encoded access token
+     * @return the verified claims of the token
+     * @throws AuthenticationException if the client of the token is not valid
+     * @throws InvalidTokenException if the token is not valid
+     */
+    public Map<String, Object> validateToken(String accessToken) throws AuthenticationException {
+        Map<String, Object> claims = getClaimsForToken(accessToken);
+
+        checkExpiry(accessToken, claims);
+
+        String clientId = (String) claims.get(CLIENT_ID);
+        ClientDetails client = validateClient(clientId);
+        String cid = (String) claims.get(CID);
+        if (cid != null && !cid.equals(clientId)) {
+            validateClient(cid);
+        }
+
+        // Only check user access tokens
+        if (null != claims.get(EMAIL)) {
+            if (client == null) {
+                throw new InvalidTokenException("Invalid access token (no client): " + accessToken);
+            }
+            checkUserToken(accessToken, claims, client);
+        }
+
+        return claims;
+    }
+
+    @Override
+    public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+        Object verifier = null;
+        if (tokenCache != null) {
+            verifier = signerProvider.getVerifier();
+            OAuth2Authentication cached = tokenCache.get(accessToken, verifier);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Map<String, Object> claims = getClaimsForToken(accessToken);
+
+        // Check token expiry
+        checkExpiry(accessToken, claims);
 
         // Check client ID is valid
         validateClient((String) claims.get(CLIENT_ID));
@@ -663,6 +731,12 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), userAuthentication);
         authentication.setAuthenticated(true);
+
+        if (tokenCache != null) {
+            Integer expiration = (Integer) claims.get(EXP);
+            tokenCache.put(accessToken, verifier, expiration == null ? null : expiration * 1000l, authentication,
+                            (String) claims.get(CLIENT_ID), (String) claims.get(CID));
+        }
         return authentication;
     }
 
@@ -692,36 +766,39 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
 
         // Only check user access tokens
         if (null != email) {
-            String userId = (String)claims.get(USER_ID);
+            String clientId = (String) claims.get(CLIENT_ID);
+            ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+            checkUserToken(accessToken, claims, client);
+        }
 
-            UaaUser user = userDatabase.retrieveUserById(userId);
+        return token;
+    }
 
-            Integer accessTokenIssuedAt = (Integer) claims.get(IAT);
-            long accessTokenIssueDate = accessTokenIssuedAt.longValue() * 1000l;
+    private void checkUserToken(String accessToken, Map<String, Object> claims, ClientDetails client) {
+        String userId = (String)claims.get(USER_ID);
 
-            // If the user changed their password, expire the access token
-            if (user.getModified().after(new Date(accessTokenIssueDate))) {
-                logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
-                                + new Date(accessTokenIssueDate));
-                throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
-            }
+        UaaUser user = userDatabase.retrieveUserById(userId);
 
-            // Check approvals to make sure they're all valid, approved and not
-            // more recent
-            // than the token itself
-            String clientId = (String) claims.get(CLIENT_ID);
-            ClientDetails client = clientDetailsService.loadClientByClientId(clientId);
+        Integer accessTokenIssuedAt = (Integer) claims.get(IAT);
+        long accessTokenIssueDate = accessTokenIssuedAt.longValue() * 1000l;
 
-            @SuppressWarnings("unchecked")
-            ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
-            Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
-            if (autoApprovedScopes.containsAll(tokenScopes)) {
-                return token;
-            }
-            checkForApproval(userId, clientId, tokenScopes, autoApprovedScopes, new Date(accessTokenIssueDate));
+        // If the user changed their password, expire the access token
+        if (user.getModified().after(new Date(accessTokenIssueDate))) {
+            logger.debug("User was last modified at " + user.getModified() + " access token was issued at "
+                            + new Date(accessTokenIssueDate));
+            throw new InvalidTokenException("Invalid access token (password changed): " + accessToken);
         }
 
-        return token;
+        // Check approvals to make sure they're all valid, approved and not
+        // more recent
+        // than the token itself
+        @SuppressWarnings("unchecked")
+        ArrayList<String> tokenScopes = (ArrayList<String>) claims.get(SCOPE);
+        Set<String> autoApprovedScopes = getAutoApprovedScopes(claims.get(GRANT_TYPE), tokenScopes, client);
+        if (autoApprovedScopes.containsAll(tokenScopes)) {
+            return;
+        }
+        checkForApproval(userId, client.getClientId(), tokenScopes, autoApprovedScopes, new Date(accessTokenIssueDate));
     }
 
     private Set<String> getAutoApprovedScopes(Object grantType, Collection<String> tokenScopes, ClientDetails client) {
@@ -808,6 +885,14 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         this.approvalStore = approvalStore;
     }
 
+    /**
+     * @param tokenCache optional cache of verified authentications used by
+     *            {@link #loadAuthentication(String)}
+     */
+    public void setTokenCache(VerifiedTokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
     private void publish(TokenIssuedEvent event) {
         if (applicationEventPublisher != null) {
             applicationEventPublisher.publishEvent(event);
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.SynchronousListener;
+import org.cloudfoundry.identity.uaa.oauth.event.ClientDeleteEvent;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * Bounded cache of the authentications that {@link UaaTokenServices} has
+ * already verified, keyed by a hash of the token value.
+ * <p>
+ * An entry lives until the token expires (or at most
+ * {@link #setMaxTimeToLiveSeconds(int) maxTimeToLiveSeconds}), until one of
+ * the clients in the token is deleted, or until the signature verifier it was
+ * checked with is replaced after a key rotation. When the cache is full the
+ * least recently used tokens are dropped.
+ * <p>
+ * Also accumulates count data for exposure through JMX.
+ *
+ */
+@ManagedResource
+public class VerifiedTokenCache implements InitializingBean, ApplicationListener<ClientDeleteEvent>,
+                SynchronousListener {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private ExpiringLruCache<String, Entry> cache;
+
+    private int maxSize = 10000;
+
+    private int maxTimeToLiveSeconds = 300;
+
+    private AtomicLong hitCount = new AtomicLong();
+
+    private AtomicLong missCount = new AtomicLong();
+
+    private AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of tokens to keep, 0 disables the
+     *            cache (default 10000)
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxTimeToLiveSeconds the maximum time a token stays cached even
+     *            if it expires later. Bounds how long a client deleted on
+     *            another node is still accepted here (default 300).
+     */
+    public void setMaxTimeToLiveSeconds(int maxTimeToLiveSeconds) {
+        this.maxTimeToLiveSeconds = maxTimeToLiveSeconds;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        cache = maxSize > 0 ? new ExpiringLruCache<String, Entry>(maxSize, maxTimeToLiveSeconds * 1000L) : null;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Verified Token Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Verified Token Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Verified Token Cache Eviction Count")
+    public long getEvictionCount() {
+        return evictionCount.get() + (cache == null ? 0 : cache.getEvictionCount());
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Verified Token Cache Size")
+    public int getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    /**
+     * @param token the encoded token
+     * @param verifier the verifier currently in use
+     * @return a copy of the cached authentication or null if the token is not
+     *         cached, has expired or was verified with a different verifier
+     */
+    public OAuth2Authentication get(String token, Object verifier) {
+        if (cache == null) {
+            return null;
+        }
+        String key = getKey(token);
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (entry.verifier != verifier) {
+            if (cache.remove(key) != null) {
+                evictionCount.incrementAndGet();
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        // The caller may set details on the result, so never hand out the
+        // cached instance itself
+        OAuth2Authentication result = new OAuth2Authentication(entry.authentication.getOAuth2Request(),
+                        entry.authentication.getUserAuthentication());
+        result.setAuthenticated(true);
+        return result;
+    }
+
+    /**
+     * @param token the encoded token
+     * @param verifier the verifier the token was checked with
+     * @param expiresAt the expiry of the token in milliseconds, or null if it
+     *            does not expire
+     * @param authentication the authentication loaded from the token
+     * @param clientIds the clients the token was issued for
+     */
+    public void put(String token, Object verifier, Long expiresAt, OAuth2Authentication authentication,
+                    String... clientIds) {
+        if (cache == null || expiresAt != null && expiresAt.longValue() <= System.currentTimeMillis()) {
+            return;
+        }
+        // the cache itself caps the expiry at maxTimeToLiveSeconds
+        cache.put(getKey(token), new Entry(verifier, authentication, clientIds),
+                        expiresAt == null ? Long.MAX_VALUE : expiresAt.longValue());
+    }
+
+    @ManagedOperation(description = "Remove all tokens from the cache")
+    public void clear() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Remove all tokens issued to or on behalf of the given client.
+     *
+     * @param clientId the client id
+     */
+    public void evictClient(final String clientId) {
+        if (cache == null) {
+            return;
+        }
+        evictionCount.addAndGet(cache.removeValues(new ExpiringLruCache.Filter<Entry>() {
+            @Override
+            public boolean matches(Entry entry) {
+                return entry.hasClient(clientId);
+            }
+        }));
+    }
+
+    /**
+     * Tokens of a deleted client must be rejected once the delete has
+     * returned.
+     */
+    @Override
+    public boolean isSynchronous() {
+        return true;
+    }
+
+    @Override
+    public void onApplicationEvent(ClientDeleteEvent event) {
+        if (event.getClient() != null) {
+            logger.debug("Evicting cached tokens for deleted client " + event.getClient().getClientId());
+            evictClient(event.getClient().getClientId());
+        }
+    }
+
+    private String getKey(String token) {
+        return DigestUtils.sha256Hex(token);
+    }
+
+    private static class Entry {
+
+        private final Object verifier;
+
+        private final OAuth2Authentication authentication;
+
+        private final String[] clientIds;
+
+        public Entry(Object verifier, OAuth2Authentication authentication, String[] clientIds) {
+            this.verifier = verifier;
+            this.authentication = authentication;
+            this.clientIds = clientIds;
+        }
+
+        public boolean hasClient(String clientId) {
+            for (String id : clientIds) {
+                if (clientId.equals(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -20,6 +20,24 @@ public interface Queryable<T> {
 
     List<T> query(String filter, String sortBy, boolean ascending);
 
+    /**
+     * Query one page at a time in cursor (keyset) mode. Each page seeks past
+     * the last resource of the previous one, so a page deep into the results
+     * costs the same as the first, and the total number of results is never
+     * counted.
+     *
+     * @param filter the filter
+     * @param sortBy the attribute to sort by, null to sort by id only
+     * @param ascending the sort order
+     * @param cursor the next cursor of the previous page, null or empty for
+     *            the first page
+     * @param count the maximum number of resources in the page
+     * @return the page
+     * @throws IllegalArgumentException if the filter, the sort attribute or
+     *             the cursor is invalid
+     */
+    KeysetPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count);
+
     int delete(String filter);
 
 }
@@ -15,25 +15,44 @@ package org.cloudfoundry.identity.uaa.rest;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+
 /**
  * @author Dave Syer
  * 
  */
 public class SearchResults<T> {
 
+    /**
+     * The total of results in cursor mode, where they are not counted. The
+     * total is then left out of the JSON.
+     */
+    public static final int UNKNOWN_TOTAL = -1;
+
     private final Collection<T> resources;
     private final int startIndex;
     private final int itemsPerPage;
     private final int totalResults;
     private final Collection<String> schemas;
+    private final String nextCursor;
 
     public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
                     int totalResults) {
+        this(schemas, resources, startIndex, itemsPerPage, totalResults, null);
+    }
+
+    public SearchResults(Collection<String> schemas, Collection<T> resources, int startIndex, int itemsPerPage,
+                    int totalResults, String nextCursor) {
         this.schemas = new ArrayList<String>(schemas);
-        this.resources = new ArrayList<T>(resources);
+        // streaming resources are only read while they are written out
+        this.resources = resources instanceof StreamingResources ? resources : new ArrayList<T>(resources);
         this.startIndex = startIndex;
         this.itemsPerPage = itemsPerPage;
         this.totalResults = totalResults;
+        this.nextCursor = nextCursor;
     }
 
     public Collection<String> getSchemas() {
@@ -48,10 +67,26 @@ public class SearchResults<T> {
         return itemsPerPage;
     }
 
+    @JsonIgnore
     public int getTotalResults() {
         return totalResults;
     }
 
+    @JsonProperty("totalResults")
+    @JsonSerialize(include = Inclusion.NON_NULL)
+    private Integer getKnownTotalResults() {
+        return totalResults == UNKNOWN_TOTAL ? null : totalResults;
+    }
+
+    /**
+     * @return the cursor for the next page in cursor mode, null if this is the
+     *         last page or the results are not paged by cursor
+     */
+    @JsonSerialize(include = Inclusion.NON_NULL)
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
     public Collection<T> getResources() {
         return resources;
     }
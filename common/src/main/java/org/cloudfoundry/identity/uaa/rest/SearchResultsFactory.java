@@ -12,18 +12,30 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest;
 
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
+import org.springframework.beans.BeanUtils;
 import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.ast.PropertyOrFieldReference;
+import org.springframework.expression.spel.standard.SpelExpression;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
 
 public class SearchResultsFactory {
     public static <T> SearchResults<Map<String, Object>> cropAndBuildSearchResultFrom(
@@ -89,30 +101,141 @@ public class SearchResultsFactory {
         AttributeNameMapper mapper,
         List<String> schemas) {
 
+        return buildSearchResultFrom(input, startIndex, count, total, null, attributes, mapper, schemas);
+    }
+
+    public static <T> SearchResults<Map<String, Object>> buildSearchResultFrom(
+        List<T> input,
+        int startIndex,
+        int count,
+        int total,
+        String nextCursor,
+        String[] attributes,
+        AttributeNameMapper mapper,
+        List<String> schemas) {
+
         Assert.state(input.size() <= count,
                         "Cannot build search results from parent list. Use subList before you call this method.");
-        Map<String, Expression> expressions = buildExpressions(attributes, mapper);
-        StandardEvaluationContext context = new StandardEvaluationContext();
-        Collection<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
-        for (T object : input) {
-            Map<String, Object> map = new LinkedHashMap<String, Object>();
-            for (String attribute : expressions.keySet()) {
-                map.put(attribute, expressions.get(attribute).getValue(context, object));
-            }
-            results.add(map);
-        }
+        Collection<Map<String, Object>> results = buildProjection(attributes, mapper).project(input);
 
-        return new SearchResults<Map<String, Object>>(schemas, results, startIndex, count, total);
+        return new SearchResults<Map<String, Object>>(schemas, results, startIndex, count, total, nextCursor);
     }
 
-    private static Map<String, Expression> buildExpressions(String[] attributes, AttributeNameMapper mapper) {
-        Map<String, Expression> expressions = new LinkedHashMap<String, Expression>();
+    private static final ExpiringLruCache<String, Projection> projections = new ExpiringLruCache<String, Projection>(
+                    256, 0);
+
+    /**
+     * Parse the attributes once, so that the projection can be applied to any
+     * number of resources, e.g. one chunk at a time while a response is
+     * written. Projections are cached by their attributes, so repeated
+     * requests for the same attributes skip the parsing.
+     *
+     * @throws org.springframework.expression.ParseException if an attribute
+     *             is not a valid expression
+     */
+    public static Projection buildProjection(String[] attributes, AttributeNameMapper mapper) {
+        Map<String, String> internal = new LinkedHashMap<String, String>();
+        StringBuilder key = new StringBuilder();
         for (String attribute : attributes) {
             String spel = mapper != null ? mapper.mapToInternal(attribute) : attribute;
-            Expression expression = new SpelExpressionParser().parseExpression(spel);
-            expressions.put(attribute, expression);
+            if (!internal.containsKey(attribute)) {
+                internal.put(attribute, spel);
+                key.append(attribute).append('\u0000').append(spel).append('\u0000');
+            }
+        }
+        Projection projection = projections.get(key.toString());
+        if (projection == null) {
+            projection = new Projection(internal);
+            projections.put(key.toString(), projection);
         }
-        return expressions;
+        return projection;
+    }
+
+    /**
+     * Selects the requested attributes of resources into maps.
+     * <p>
+     * An attribute that is a plain property name is read through the getter
+     * of the resource type, which is looked up once per type. Other
+     * attributes are evaluated as SpEL expressions.
+     */
+    public static class Projection {
+
+        private static final Method[] NO_ACCESSORS = new Method[0];
+
+        private final String[] names;
+
+        private final Expression[] expressions;
+
+        private final String[] properties;
+
+        private final ConcurrentMap<Class<?>, Method[]> accessors = new ConcurrentHashMap<Class<?>, Method[]>();
+
+        private Projection(Map<String, String> attributes) {
+            int size = attributes.size();
+            names = new String[size];
+            expressions = new Expression[size];
+            properties = new String[size];
+            SpelExpressionParser parser = new SpelExpressionParser();
+            int i = 0;
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                names[i] = entry.getKey();
+                SpelExpression expression = parser.parseRaw(entry.getValue());
+                expressions[i] = expression;
+                if (expression.getAST() instanceof PropertyOrFieldReference) {
+                    properties[i] = ((PropertyOrFieldReference) expression.getAST()).getName();
+                }
+                i++;
+            }
+        }
+
+        public List<Map<String, Object>> project(Collection<?> resources) {
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(resources.size());
+            for (Object resource : resources) {
+                Method[] getters = resource == null ? NO_ACCESSORS : getAccessors(resource.getClass());
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < names.length; i++) {
+                    Method getter = i < getters.length ? getters[i] : null;
+                    Object value = getter != null ? invoke(getter, resource, i) : expressions[i].getValue(context,
+                                    resource);
+                    map.put(names[i], value);
+                }
+                results.add(map);
+            }
+            return results;
+        }
+
+        private Method[] getAccessors(Class<?> type) {
+            Method[] result = accessors.get(type);
+            if (result == null) {
+                result = new Method[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    if (properties[i] != null) {
+                        PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(type, properties[i]);
+                        Method getter = descriptor == null ? null : descriptor.getReadMethod();
+                        if (getter != null) {
+                            ReflectionUtils.makeAccessible(getter);
+                            result[i] = getter;
+                        }
+                    }
+                }
+                accessors.put(type, result);
+            }
+            return result;
+        }
+
+        private Object invoke(Method getter, Object resource, int index) {
+            try {
+                return getter.invoke(resource);
+            } catch (InvocationTargetException e) {
+                throw new SpelEvaluationException(e.getTargetException(), SpelMessage.EXCEPTION_DURING_PROPERTY_READ,
+                                properties[index], e.getTargetException().getMessage());
+            } catch (IllegalAccessException e) {
+                throw new SpelEvaluationException(e, SpelMessage.EXCEPTION_DURING_PROPERTY_READ, properties[index],
+                                e.getMessage());
+            }
+        }
+
     }
 
 }
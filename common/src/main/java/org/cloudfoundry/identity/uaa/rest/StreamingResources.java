@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.springframework.util.Assert;
+
+/**
+ * Resources of a search result that are read and converted one chunk at a
+ * time while the response is written, so that a large page of results is
+ * never held in memory as a whole. Works best with a source that is itself
+ * paged, like a {@link org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingList}.
+ * <p>
+ * The first chunk is converted when the collection is created, so that most
+ * problems with the query or the requested attributes are raised before the
+ * response is committed. A failure in a later chunk can only cut the
+ * response short.
+ *
+ * @param <S> the type of the source resources
+ * @param <T> the type of the converted resources
+ */
+public class StreamingResources<S, T> extends AbstractCollection<T> {
+
+    private final List<S> source;
+
+    private final int chunkSize;
+
+    private final ChunkConverter<S, T> converter;
+
+    private final List<T> firstChunk;
+
+    private final int firstChunkSourceSize;
+
+    private Iterator<S> remaining;
+
+    /**
+     * @param source the resources to convert
+     * @param chunkSize the number of resources to convert at once
+     * @param converter the conversion
+     */
+    public StreamingResources(List<S> source, int chunkSize, ChunkConverter<S, T> converter) {
+        Assert.isTrue(chunkSize > 0, "chunkSize must be positive");
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.converter = converter;
+        this.remaining = source.iterator();
+        List<S> chunk = nextChunk(remaining);
+        this.firstChunkSourceSize = chunk.size();
+        this.firstChunk = converter.convert(chunk);
+    }
+
+    @Override
+    public int size() {
+        return source.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        Iterator<S> sources = remaining;
+        remaining = null;
+        if (sources == null) {
+            sources = source.iterator();
+            for (int i = 0; i < firstChunkSourceSize && sources.hasNext(); i++) {
+                sources.next();
+            }
+        }
+        return new ChunkIterator(sources);
+    }
+
+    private List<S> nextChunk(Iterator<S> sources) {
+        List<S> chunk = new ArrayList<S>(chunkSize);
+        while (chunk.size() < chunkSize && sources.hasNext()) {
+            chunk.add(sources.next());
+        }
+        return chunk;
+    }
+
+    /**
+     * Converts a chunk of resources at once, e.g. to load related data for
+     * all of them in one query.
+     */
+    public interface ChunkConverter<S, T> {
+        List<T> convert(List<S> chunk);
+    }
+
+    private class ChunkIterator implements Iterator<T> {
+
+        private final Iterator<S> sources;
+
+        private Iterator<T> chunk = firstChunk.iterator();
+
+        public ChunkIterator(Iterator<S> sources) {
+            this.sources = sources;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!chunk.hasNext() && sources.hasNext()) {
+                chunk = converter.convert(nextChunk(sources)).iterator();
+            }
+            return chunk.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported: read only iterator");
+        }
+
+    }
+
+}
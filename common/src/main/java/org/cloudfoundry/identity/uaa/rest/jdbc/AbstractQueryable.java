@@ -13,17 +13,22 @@
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.util.StringUtils;
 
 public abstract class AbstractQueryable<T> implements Queryable<T> {
 
+    private static final Pattern COLUMN_NAME = Pattern.compile("([a-zA-Z_][a-zA-Z0-9_]*\\.)?[a-zA-Z_][a-zA-Z0-9_]*");
+
     private NamedParameterJdbcTemplate jdbcTemplate;
 
     private JdbcPagingListFactory pagingListFactory;
@@ -101,12 +106,45 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         }
     }
 
+    @Override
+    public KeysetPage<T> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        String sortColumn = sortBy == null ? null : queryConverter.mapToInternal(sortBy);
+        if (sortColumn != null && !COLUMN_NAME.matcher(sortColumn).matches()) {
+            throw new IllegalArgumentException("Invalid sort attribute: " + sortBy);
+        }
+        if (sortColumn != null && sortColumn.equalsIgnoreCase(getKeyColumn())) {
+            sortColumn = null;
+        }
+        KeysetCursor after = StringUtils.hasText(cursor) ? KeysetCursor.decode(cursor) : null;
+        if (after != null && !after.matches(sortColumn, ascending)) {
+            throw new IllegalArgumentException("The cursor is for a different sort order");
+        }
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, null, ascending);
+        try {
+            String completeSql = getQuerySQL(filter, where);
+            logger.debug("keyset sql: " + completeSql + ", params: " + where.getParams() + ", after: " + cursor);
+            return pagingListFactory.createKeysetPage(completeSql, where.getParams(), sortColumn, getKeyColumn(),
+                            ascending, after, rowMapper, count);
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
     protected String getQuerySQL(String filter, SearchQueryConverter.ProcessedFilter where) {
         return filter == null || filter.trim().length()==0 ?
         getBaseSqlQuery() :
         getBaseSqlQuery() + " where " + where.getSql();
     }
 
+    /**
+     * @return a unique, not null column of the base query, used to page in
+     *         cursor mode (default "id")
+     */
+    protected String getKeyColumn() {
+        return "id";
+    }
+
     protected abstract String getBaseSqlQuery();
     protected abstract String getTableName();
 
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Deletes the rows of a table whose expiry column (milliseconds since the
+ * epoch) is in the past. A daemon thread started by
+ * {@link #afterPropertiesSet()} sweeps every
+ * {@link #setExpirationInterval(long) expirationInterval} milliseconds,
+ * deleting at most {@link #setSweepBatchSize(int) sweepBatchSize} rows per
+ * statement so that no request has to wait for a purge of the whole table.
+ * Rows are deleted by key and only if they are still expired, so a row that
+ * is consumed or renewed in the meantime is left alone.
+ */
+public class ExpiredRowSweeper implements InitializingBean, DisposableBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final String tableName;
+
+    private final String selectExpired;
+
+    private final String deleteExpired;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private long expirationInterval = 60 * 1000; // once a minute
+
+    private int sweepBatchSize = 500;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private volatile Thread sweeper;
+
+    /**
+     * @param tableName the table to sweep
+     * @param keyColumn the column that identifies a row
+     * @param expiryColumn the column holding the expiry time of a row
+     */
+    public ExpiredRowSweeper(String tableName, String keyColumn, String expiryColumn) {
+        this.tableName = tableName;
+        this.selectExpired = "select " + keyColumn + " from " + tableName + " where " + expiryColumn + " < ?";
+        this.deleteExpired = "delete from " + tableName + " where " + keyColumn + " = ? and " + expiryColumn
+                        + " < ?";
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    public long getExpirationInterval() {
+        return expirationInterval;
+    }
+
+    /**
+     * @param expirationInterval the period between two sweeps in
+     *            milliseconds, 0 or less to never sweep (default 60000)
+     */
+    public void setExpirationInterval(long expirationInterval) {
+        this.expirationInterval = expirationInterval;
+    }
+
+    /**
+     * @param sweepBatchSize the maximum number of expired rows deleted in one
+     *            statement (default 500)
+     */
+    public void setSweepBatchSize(int sweepBatchSize) {
+        this.sweepBatchSize = sweepBatchSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (expirationInterval > 0) {
+            sweeper = new Thread(new Sweeper(), "uaa-" + tableName + "-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        Thread thread = sweeper;
+        if (thread != null) {
+            stopped.countDown();
+            thread.join(10000);
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Delete all rows that have expired, at most
+     * {@link #setSweepBatchSize(int) sweepBatchSize} at a time.
+     *
+     * @return the number of rows deleted
+     */
+    public int deleteExpiredRows() {
+        long now = System.currentTimeMillis();
+        int total = 0;
+        int count;
+        do {
+            count = deleteExpired(now);
+            total += count;
+        } while (count >= sweepBatchSize && stopped.getCount() > 0);
+        logger.debug("Sweep of " + tableName + " complete, deleted " + total + " entries.");
+        return total;
+    }
+
+    /**
+     * @return the number of expired rows that were found and deleted
+     */
+    private int deleteExpired(final long now) {
+        List<String> keys = jdbcTemplate.query(new PreparedStatementCreator() {
+            @Override
+            public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+                PreparedStatement statement = con.prepareStatement(selectExpired);
+                statement.setMaxRows(sweepBatchSize);
+                statement.setLong(1, now);
+                return statement;
+            }
+        }, new RowMapper<String>() {
+            @Override
+            public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return rs.getString(1);
+            }
+        });
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<Object[]> args = new ArrayList<Object[]>(keys.size());
+        for (String key : keys) {
+            args.add(new Object[] { key, now });
+        }
+        jdbcTemplate.batchUpdate(deleteExpired, args);
+        return keys.size();
+    }
+
+    private class Sweeper implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped.await(expirationInterval, TimeUnit.MILLISECONDS)) {
+                    try {
+                        deleteExpiredRows();
+                    } catch (RuntimeException e) {
+                        logger.warn("Unable to delete expired rows from " + tableName, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
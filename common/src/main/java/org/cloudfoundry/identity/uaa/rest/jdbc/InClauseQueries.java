@@ -0,0 +1,76 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Runs a query with an "in (:ids)" clause for any number of ids, binding at
+ * most {@link #MAX_IDS_PER_QUERY} of them at a time so the statement stays
+ * within the limits of every database.
+ *
+ */
+public final class InClauseQueries {
+
+    /**
+     * The maximum number of ids bound to a single "in" clause
+     */
+    public static final int MAX_IDS_PER_QUERY = 100;
+
+    private InClauseQueries() {
+    }
+
+    /**
+     * @param sql a query with an "in (:ids)" clause
+     * @return the rows for all ids, in the order of the chunks
+     */
+    public static <T> List<T> queryInChunks(NamedParameterJdbcTemplate template, String sql,
+                    Collection<String> ids, RowMapper<T> rowMapper) {
+        List<T> result = new ArrayList<T>();
+        for (List<String> chunk : chunks(ids)) {
+            result.addAll(template.query(sql, Collections.singletonMap("ids", chunk), rowMapper));
+        }
+        return result;
+    }
+
+    /**
+     * @param sql a query with an "in (:ids)" clause
+     */
+    public static void queryInChunks(NamedParameterJdbcTemplate template, String sql, Collection<String> ids,
+                    RowCallbackHandler handler) {
+        for (List<String> chunk : chunks(ids)) {
+            template.query(sql, Collections.singletonMap("ids", chunk), handler);
+        }
+    }
+
+    private static List<List<String>> chunks(Collection<String> ids) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> chunk = null;
+        for (String id : ids) {
+            if (chunk == null || chunk.size() == MAX_IDS_PER_QUERY) {
+                chunk = new ArrayList<String>(Math.min(ids.size(), MAX_IDS_PER_QUERY));
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+        return chunks;
+    }
+
+}
@@ -12,10 +12,16 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 
@@ -27,6 +33,10 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
  */
 public class JdbcPagingListFactory {
 
+    private static final String CURSOR_VALUE_PARAMETER = "__cursor_value";
+
+    private static final String CURSOR_KEY_PARAMETER = "__cursor_key";
+
     private NamedParameterJdbcTemplate jdbcTemplate;
     private LimitSqlAdapter limitSqlAdapter;
 
@@ -38,4 +48,84 @@ public class JdbcPagingListFactory {
     public <T> List<T> createJdbcPagingList(String sql, Map<String, ?> args, RowMapper<T> mapper, int pageSize) {
         return new JdbcPagingList<T>(jdbcTemplate, limitSqlAdapter, sql, args, mapper, pageSize);
     }
+
+    /**
+     * Query one page in keyset mode: the rows are sorted by the sort column
+     * and the key, and the page starts right after the row the cursor points
+     * to, so the database can seek to it through an index instead of reading
+     * and skipping all the rows before it. No count query is run.
+     * <p>
+     * Rows with a null sort column are left out, because databases do not
+     * agree on where nulls are sorted.
+     *
+     * @param sql the query without an order by clause
+     * @param sortColumn the column to sort by, null to sort by key only
+     * @param keyColumn a unique, not null column
+     * @param after the cursor to start after, null for the first page
+     * @param count the maximum number of rows in the page
+     */
+    public <T> KeysetPage<T> createKeysetPage(String sql, Map<String, ?> args, final String sortColumn,
+                    final String keyColumn, boolean ascending, KeysetCursor after, final RowMapper<T> mapper,
+                    final int count) {
+        if (count < 1) {
+            return new KeysetPage<T>(new ArrayList<T>(), after == null ? "" : after.encode());
+        }
+        Map<String, Object> params = new HashMap<String, Object>(args);
+        List<String> conditions = new ArrayList<String>();
+        String operator = ascending ? " > " : " < ";
+        String order = ascending ? " ASC" : " DESC";
+        if (sortColumn != null) {
+            conditions.add(sortColumn + " IS NOT NULL");
+        }
+        if (after != null) {
+            params.put(CURSOR_KEY_PARAMETER, after.getKey());
+            if (sortColumn == null) {
+                conditions.add(keyColumn + operator + ":" + CURSOR_KEY_PARAMETER);
+            }
+            else {
+                params.put(CURSOR_VALUE_PARAMETER, after.getSortValue());
+                conditions.add("(" + sortColumn + operator + ":" + CURSOR_VALUE_PARAMETER + " OR (" + sortColumn
+                                + " = :" + CURSOR_VALUE_PARAMETER + " AND " + keyColumn + operator + ":"
+                                + CURSOR_KEY_PARAMETER + "))");
+            }
+        }
+        StringBuilder query = new StringBuilder(sql);
+        boolean where = sql.toLowerCase().contains(" where ");
+        for (String condition : conditions) {
+            query.append(where ? " and " : " where ").append(condition);
+            where = true;
+        }
+        query.append(" order by ");
+        if (sortColumn != null) {
+            query.append(sortColumn).append(order).append(", ");
+        }
+        query.append(keyColumn).append(order);
+        final boolean ascendingOrder = ascending;
+        // one extra row tells whether there is a next page
+        return jdbcTemplate.query(limitSqlAdapter.getLimitSql(query.toString(), 0, count + 1), params,
+                        new ResultSetExtractor<KeysetPage<T>>() {
+                            @Override
+                            public KeysetPage<T> extractData(ResultSet rs) throws SQLException {
+                                List<T> resources = new ArrayList<T>();
+                                KeysetCursor last = null;
+                                while (rs.next()) {
+                                    if (resources.size() == count) {
+                                        return new KeysetPage<T>(resources, last.encode());
+                                    }
+                                    resources.add(mapper.mapRow(rs, resources.size()));
+                                    last = new KeysetCursor(sortColumn, ascendingOrder,
+                                                    sortColumn == null ? null : rs.getObject(getLabel(sortColumn)),
+                                                    rs.getObject(getLabel(keyColumn)));
+                                }
+                                return new KeysetPage<T>(resources, null);
+                            }
+                        });
+    }
+
+    /**
+     * @return the column name without the table alias
+     */
+    private static String getLabel(String column) {
+        return column.substring(column.lastIndexOf('.') + 1);
+    }
 }
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Position after the last row of a page in keyset paging: the value of the
+ * sort column and the unique key of that row. Clients get it as an opaque
+ * string and send it back unchanged to get the next page.
+ * <p>
+ * The sort column and order are part of the cursor, so a cursor cannot be
+ * used with a different sort.
+ *
+ */
+public class KeysetCursor {
+
+    private static final String UTF8 = "UTF-8";
+
+    private final String sortColumn;
+
+    private final boolean ascending;
+
+    private final Object sortValue;
+
+    private final Object key;
+
+    /**
+     * @param sortColumn the sort column, null if the rows are sorted by key
+     *            only
+     * @param ascending the sort order
+     * @param sortValue the value of the sort column in the last row
+     * @param key the key of the last row
+     */
+    public KeysetCursor(String sortColumn, boolean ascending, Object sortValue, Object key) {
+        this.sortColumn = sortColumn;
+        this.ascending = ascending;
+        this.sortValue = sortValue;
+        this.key = key;
+    }
+
+    public String getSortColumn() {
+        return sortColumn;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public Object getSortValue() {
+        return sortValue;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if the cursor was created for the same sort
+     */
+    public boolean matches(String sortColumn, boolean ascending) {
+        return this.ascending == ascending
+                        && (this.sortColumn == null ? sortColumn == null : this.sortColumn.equalsIgnoreCase(sortColumn));
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        append(builder, sortColumn == null ? "" : sortColumn);
+        append(builder, ascending ? "a" : "d");
+        append(builder, sortColumn == null ? "" : encodeValue(sortValue));
+        append(builder, encodeValue(key));
+        try {
+            return Base64.encodeBase64URLSafeString(builder.toString().getBytes(UTF8));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param cursor a cursor created by {@link #encode()}
+     * @throws IllegalArgumentException if the cursor cannot be decoded
+     */
+    public static KeysetCursor decode(String cursor) {
+        try {
+            List<String> parts = split(new String(Base64.decodeBase64(cursor), UTF8));
+            if (parts.size() != 4 || !parts.get(1).matches("[ad]")) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            String sortColumn = parts.get(0).length() == 0 ? null : parts.get(0);
+            Object sortValue = sortColumn == null ? null : decodeValue(parts.get(2));
+            return new KeysetCursor(sortColumn, "a".equals(parts.get(1)), sortValue, decodeValue(parts.get(3)));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+    private static String encodeValue(Object value) {
+        if (value instanceof String) {
+            return "s" + value;
+        }
+        if (value instanceof Timestamp) {
+            Timestamp timestamp = (Timestamp) value;
+            return "t" + timestamp.getTime() + "." + timestamp.getNanos();
+        }
+        if (value instanceof Date) {
+            return "t" + ((Date) value).getTime() + ".-1";
+        }
+        if (value instanceof Number) {
+            return "n" + value;
+        }
+        if (value instanceof Boolean) {
+            return "b" + value;
+        }
+        throw new IllegalArgumentException("Cannot page by a column of type "
+                        + (value == null ? "null" : value.getClass().getName()));
+    }
+
+    private static Object decodeValue(String value) {
+        String text = value.substring(1);
+        switch (value.charAt(0)) {
+            case 's':
+                return text;
+            case 't':
+                int dot = text.indexOf('.');
+                Timestamp timestamp = new Timestamp(Long.parseLong(text.substring(0, dot)));
+                int nanos = Integer.parseInt(text.substring(dot + 1));
+                if (nanos >= 0) {
+                    timestamp.setNanos(nanos);
+                }
+                return timestamp;
+            case 'n':
+                return new BigDecimal(text);
+            case 'b':
+                return Boolean.valueOf(text);
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + value.charAt(0));
+        }
+    }
+
+    /**
+     * Each part is prefixed with its length, so that it may contain any
+     * character.
+     */
+    private static void append(StringBuilder builder, String part) {
+        builder.append(part.length()).append(':').append(part);
+    }
+
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<String>();
+        int index = 0;
+        while (index < value.length()) {
+            int colon = value.indexOf(':', index);
+            int length = Integer.parseInt(value.substring(index, colon));
+            index = colon + 1 + length;
+            parts.add(value.substring(colon + 1, index));
+        }
+        return parts;
+    }
+
+}
@@ -55,4 +55,10 @@ public interface SearchQueryConverter {
 
     ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper);
 
+    /**
+     * @param attribute an attribute name, e.g. to sort by
+     * @return the column name for the attribute
+     */
+    String mapToInternal(String attribute);
+
 }
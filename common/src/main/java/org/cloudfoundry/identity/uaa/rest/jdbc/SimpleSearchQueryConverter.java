@@ -16,8 +16,11 @@ package org.cloudfoundry.identity.uaa.rest.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.unboundid.scim.sdk.SCIMException;
@@ -26,16 +29,56 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.StringUtils;
 
+/**
+ * Converts SCIM filters into SQL where clauses with named parameters.
+ * <p>
+ * Filters that only differ in their quoted values share the same SQL, so the
+ * SQL and the positions of the parameters are kept in a bounded cache keyed by
+ * the filter with its quoted values blanked out. A repeated filter shape is
+ * then only bound to its values instead of being parsed again, and the stable
+ * SQL text lets the database reuse its prepared statements. Legacy filters
+ * with single quoted values and values with escape sequences are always
+ * parsed.
+ */
 public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
+    private static final String DEFAULT_PARAMETER_PREFIX = "__value_";
+
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        }
+    };
+
     private static Log logger = LogFactory.getLog(SimpleSearchQueryConverter.class);
     private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> emptyMap());
 
+    private int maxCachedFilters = 1000;
+
+    private volatile ExpiringLruCache<String, FilterTemplate> templates = newTemplateCache();
+
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
+        // the cached SQL contains the mapped attribute names
+        this.templates = newTemplateCache();
+    }
+
+    /**
+     * @param maxCachedFilters the maximum number of filter shapes to keep the
+     *            SQL for, 0 to parse every filter (default 1000)
+     */
+    public void setMaxCachedFilters(int maxCachedFilters) {
+        this.maxCachedFilters = maxCachedFilters;
+        this.templates = newTemplateCache();
+    }
+
+    private ExpiringLruCache<String, FilterTemplate> newTemplateCache() {
+        return maxCachedFilters > 0 ? new ExpiringLruCache<String, FilterTemplate>(maxCachedFilters, 0) : null;
     }
 
     @Override
@@ -45,15 +88,37 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     @Override
     public ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
-        String paramPrefix = generateParameterPrefix(filter);
-        Map<String, Object> values = new HashMap<String, Object>();
-        String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix) : null;
-        ProcessedFilter pf = new ProcessedFilter(where, values);
-        pf.setParamPrefix(paramPrefix);
+        if (!StringUtils.hasText(filter)) {
+            ProcessedFilter pf = new ProcessedFilter(null, new HashMap<String, Object>());
+            pf.setParamPrefix(generateParameterPrefix(filter));
+            return pf;
+        }
+        ExpiringLruCache<String, FilterTemplate> templates = mapper == this.mapper ? this.templates : null;
+        FilterValues filterValues = templates == null ? null : getFilterValues(filter);
+        String key = filterValues == null ? null : filterValues.getKey(sortBy, ascending);
+        FilterTemplate template = key == null ? null : templates.get(key);
+        if (template != null) {
+            return template.bind(filterValues);
+        }
+        Compilation compilation = new Compilation(generateParameterPrefix(filter), mapper, filterValues);
+        String where = getWhereClause(filter, sortBy, ascending, compilation);
+        if (key != null && compilation.isCacheable()) {
+            templates.put(key, new FilterTemplate(where, compilation.paramPrefix, compilation.slots));
+        }
+        ProcessedFilter pf = new ProcessedFilter(where, compilation.values);
+        pf.setParamPrefix(compilation.paramPrefix);
         return pf;
     }
 
+    @Override
+    public String mapToInternal(String attribute) {
+        return mapper.mapToInternal(attribute);
+    }
+
     protected String generateParameterPrefix(String filter) {
+        if (filter == null || !filter.contains(DEFAULT_PARAMETER_PREFIX)) {
+            return DEFAULT_PARAMETER_PREFIX;
+        }
         while (true) {
             String s = new RandomValueStringGenerator().generate().toLowerCase();
             if (!filter.contains(s)) {
@@ -62,13 +127,13 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         }
     }
 
-    private String getWhereClause(String filter, String sortBy, boolean ascending, Map<String, Object> values, AttributeNameMapper mapper, String paramPrefix) {
+    private String getWhereClause(String filter, String sortBy, boolean ascending, Compilation compilation) {
 
         try {
-            SCIMFilter scimFilter = scimFilter(filter);
-            String whereClause = createFilter(scimFilter, values, mapper, paramPrefix);
+            SCIMFilter scimFilter = scimFilter(filter, compilation);
+            String whereClause = createFilter(scimFilter, compilation);
             if (sortBy != null) {
-                sortBy = mapper.mapToInternal(sortBy);
+                sortBy = compilation.mapper.mapToInternal(sortBy);
                 // Need to add "asc" or "desc" explicitly to ensure that the pattern
                 // splitting below works
                 whereClause += " ORDER BY " + sortBy + (ascending ? " ASC" : " DESC");
@@ -80,7 +145,7 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         }
     }
 
-    private SCIMFilter scimFilter(String filter) throws SCIMException {
+    private SCIMFilter scimFilter(String filter, Compilation compilation) throws SCIMException {
         SCIMFilter scimFilter;
         try {
             scimFilter = SCIMFilter.parse(filter);
@@ -88,43 +153,47 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
             logger.debug("Attempting legacy scim filter conversion for [" + filter + "]", e);
             filter = filter.replaceAll("'","\"");
             scimFilter = SCIMFilter.parse(filter);
+            // the quoted values we found are not the ones that were parsed
+            compilation.cacheable = false;
         }
         return scimFilter;
     }
 
-    private String createFilter(SCIMFilter filter, Map<String,Object> values, AttributeNameMapper mapper, String paramPrefix) {
+    private String createFilter(SCIMFilter filter, Compilation compilation) {
         switch (filter.getFilterType()) {
             case AND:
-                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix) + " AND " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix) + ")";
+                return "(" + createFilter(filter.getFilterComponents().get(0), compilation) + " AND " + createFilter(filter.getFilterComponents().get(1), compilation) + ")";
             case OR:
-                return "(" + createFilter(filter.getFilterComponents().get(0), values, mapper, paramPrefix) + " OR " + createFilter(filter.getFilterComponents().get(1), values, mapper, paramPrefix) + ")";
+                return "(" + createFilter(filter.getFilterComponents().get(0), compilation) + " OR " + createFilter(filter.getFilterComponents().get(1), compilation) + ")";
             case EQUALITY:
-                return comparisonClause(filter, "=", values, "", "", paramPrefix);
+                return comparisonClause(filter, "=", "", "", compilation);
             case CONTAINS:
-                return comparisonClause(filter, "LIKE", values, "%", "%", paramPrefix);
+                return comparisonClause(filter, "LIKE", "%", "%", compilation);
             case STARTS_WITH:
-                return comparisonClause(filter, "LIKE", values, "", "%", paramPrefix);
+                return comparisonClause(filter, "LIKE", "", "%", compilation);
             case PRESENCE:
-                return getAttributeName(filter, mapper) + " IS NOT NULL";
+                return getAttributeName(filter, compilation.mapper) + " IS NOT NULL";
             case GREATER_THAN:
-                return comparisonClause(filter, ">", values, "", "", paramPrefix);
+                return comparisonClause(filter, ">", "", "", compilation);
             case GREATER_OR_EQUAL:
-                return comparisonClause(filter, ">=", values, "", "", paramPrefix);
+                return comparisonClause(filter, ">=", "", "", compilation);
             case LESS_THAN:
-                return comparisonClause(filter, "<", values, "", "", paramPrefix);
+                return comparisonClause(filter, "<", "", "", compilation);
             case LESS_OR_EQUAL:
-                return comparisonClause(filter, "<=", values, "", "", paramPrefix);
+                return comparisonClause(filter, "<=", "", "", compilation);
         }
         return null;
     }
 
-    protected String comparisonClause(SCIMFilter filter, String comparator, Map<String, Object> values, String valuePrefix, String valueSuffix, String paramPrefix) {
-        String pName = getParamName(filter, values, paramPrefix);
+    private String comparisonClause(SCIMFilter filter, String comparator, String valuePrefix, String valueSuffix, Compilation compilation) {
+        Map<String, Object> values = compilation.values;
+        String pName = getParamName(filter, values, compilation.paramPrefix);
         String paramName = ":"+pName;
         if (filter.getFilterValue() == null) {
             return getAttributeName(filter, mapper) + " IS NULL";
         } else if (filter.isQuoteFilterValue()) {
-            Object value = getStringOrDate(filter.getFilterValue());
+            Object value = compilation.nextQuotedValue(filter.getFilterValue());
+            compilation.slots.add(new Slot(pName, compilation.quotedValueCount - 1, valuePrefix, valueSuffix));
             if (value instanceof String) {
                 //TODO - why lower?
                 values.put(pName, valuePrefix+value+valueSuffix);
@@ -146,6 +215,8 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
                         " : "+filter.getFilterValue()+"]");
                 }
             }
+            // unquoted values are part of the cache key
+            compilation.slots.add(new Slot(pName, values.get(pName)));
             return getAttributeName(filter, mapper) + " "+comparator+" " + paramName;
         }
     }
@@ -166,13 +237,170 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     protected Object getStringOrDate(String s) {
         try {
-            DateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            return TIMESTAMP_FORMAT.parse(s);
+            return TIMESTAMP_FORMAT.get().parse(s);
         } catch (ParseException x) {
             return s;
         }
     }
 
+    /**
+     * Finds the double quoted values of a filter without parsing it.
+     *
+     * @return the values or null if the filter cannot be cached
+     */
+    private FilterValues getFilterValues(String filter) {
+        StringBuilder shape = new StringBuilder(filter.length());
+        List<String> raw = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+        int start = 0;
+        for (int open = filter.indexOf('"'); open >= 0; open = filter.indexOf('"', start)) {
+            int close = filter.indexOf('"', open + 1);
+            if (close < 0) {
+                return null;
+            }
+            String value = filter.substring(open + 1, close);
+            if (value.indexOf('\\') >= 0) {
+                // leave unescaping to the parser
+                return null;
+            }
+            Object converted = getStringOrDate(value);
+            // a date is compared differently from a string
+            shape.append(filter, start, open).append(converted instanceof Date ? "\"D\"" : "\"S\"");
+            raw.add(value);
+            values.add(converted);
+            start = close + 1;
+        }
+        shape.append(filter, start, filter.length());
+        return new FilterValues(shape.toString(), raw, values);
+    }
+
+    private static class FilterValues {
+
+        private final String shape;
+
+        private final List<String> raw;
+
+        private final List<Object> values;
+
+        public FilterValues(String shape, List<String> raw, List<Object> values) {
+            this.shape = shape;
+            this.raw = raw;
+            this.values = values;
+        }
+
+        public String getKey(String sortBy, boolean ascending) {
+            if (sortBy == null) {
+                return ascending + ":" + shape;
+            }
+            return ascending + ":" + sortBy.length() + ":" + sortBy + ":" + shape;
+        }
+
+    }
+
+    /**
+     * The state of converting one filter.
+     */
+    private class Compilation {
+
+        private final String paramPrefix;
+
+        private final AttributeNameMapper mapper;
+
+        private final FilterValues filterValues;
+
+        private final Map<String, Object> values = new HashMap<String, Object>();
 
+        private final List<Slot> slots = new ArrayList<Slot>();
+
+        private int quotedValueCount = 0;
+
+        private boolean cacheable;
+
+        public Compilation(String paramPrefix, AttributeNameMapper mapper, FilterValues filterValues) {
+            this.paramPrefix = paramPrefix;
+            this.mapper = mapper;
+            this.filterValues = filterValues;
+            this.cacheable = filterValues != null;
+        }
+
+        public Object nextQuotedValue(String value) {
+            int index = quotedValueCount++;
+            if (cacheable && index < filterValues.raw.size() && filterValues.raw.get(index).equals(value)) {
+                return filterValues.values.get(index);
+            }
+            cacheable = false;
+            return getStringOrDate(value);
+        }
+
+        public boolean isCacheable() {
+            return cacheable && quotedValueCount == filterValues.raw.size();
+        }
+
+    }
+
+    /**
+     * A named parameter of a cached filter, either a quoted value of the
+     * filter or a constant.
+     */
+    private static class Slot {
+
+        private final String name;
+
+        private final int index;
+
+        private final String valuePrefix;
+
+        private final String valueSuffix;
+
+        private final Object constant;
+
+        public Slot(String name, int index, String valuePrefix, String valueSuffix) {
+            this.name = name;
+            this.index = index;
+            this.valuePrefix = valuePrefix;
+            this.valueSuffix = valueSuffix;
+            this.constant = null;
+        }
+
+        public Slot(String name, Object constant) {
+            this.name = name;
+            this.index = -1;
+            this.valuePrefix = null;
+            this.valueSuffix = null;
+            this.constant = constant;
+        }
+
+    }
+
+    private static class FilterTemplate {
+
+        private final String sql;
+
+        private final String paramPrefix;
+
+        private final Slot[] slots;
+
+        public FilterTemplate(String sql, String paramPrefix, List<Slot> slots) {
+            this.sql = sql;
+            this.paramPrefix = paramPrefix;
+            this.slots = slots.toArray(new Slot[slots.size()]);
+        }
+
+        public ProcessedFilter bind(FilterValues filterValues) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            for (Slot slot : slots) {
+                if (slot.index < 0) {
+                    values.put(slot.name, slot.constant);
+                    continue;
+                }
+                Object value = filterValues.values.get(slot.index);
+                values.put(slot.name, value instanceof String ? slot.valuePrefix + value + slot.valueSuffix : value);
+            }
+            ProcessedFilter pf = new ProcessedFilter(sql, values);
+            pf.setParamPrefix(paramPrefix);
+            return pf;
+        }
+
+    }
 
 }
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.util.ExpiringLruCache;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+
+/**
+ * Read-through cache of users in front of another {@link UaaUserDatabase}, so
+ * that token grants and checks do not query the user and its authorities
+ * every time. Users that are not found are not cached.
+ * <p>
+ * Receives the audit events as a {@link UaaAuditService}. A user is evicted
+ * when it is created, modified, verified or deleted, or when its password is
+ * changed, on this node. The whole cache is cleared when a group changes,
+ * because the authorities of any number of users may depend on it. Entries
+ * also expire after {@link #setTimeToLiveSeconds(int) timeToLiveSeconds} to
+ * pick up changes made on other nodes or directly in the database. A
+ * {@link #setMaxSize(int) maxSize} of 0 turns the cache off.
+ *
+ */
+@ManagedResource
+public class CachingUaaUserDatabase implements UaaUserDatabase, UaaAuditService, InitializingBean {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final UaaUserDatabase delegate;
+
+    private ExpiringLruCache<String, UaaUser> users;
+
+    /**
+     * User ids by origin and lower case user name. A user name only leads to
+     * a cached user if the user still has that name.
+     */
+    private ExpiringLruCache<String, String> ids;
+
+    /**
+     * Changes whenever entries are evicted, so that a lookup that raced with
+     * an eviction does not cache what it read.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private int maxSize = 10000;
+
+    private int timeToLiveSeconds = 30;
+
+    public CachingUaaUserDatabase(UaaUserDatabase delegate) {
+        Assert.notNull(delegate);
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param maxSize the maximum number of users to keep, 0 to turn the
+     *            cache off (default 10000)
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param timeToLiveSeconds how long a user is kept before it is read
+     *            again (default 30)
+     */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (maxSize > 0) {
+            users = new ExpiringLruCache<String, UaaUser>(maxSize, timeToLiveSeconds * 1000L);
+            ids = new ExpiringLruCache<String, String>(maxSize, timeToLiveSeconds * 1000L);
+        }
+        else {
+            users = null;
+            ids = null;
+        }
+    }
+
+    @Override
+    public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
+        if (users == null || username == null) {
+            return delegate.retrieveUserByName(username, origin);
+        }
+        String key = origin + "\u0000" + username.toLowerCase(Locale.US);
+        String id = ids.get(key);
+        UaaUser user = id == null ? null : users.get(id);
+        if (user != null && user.getUsername().equalsIgnoreCase(username)
+                        && (origin == null ? user.getOrigin() == null : origin.equals(user.getOrigin()))) {
+            hitCount.incrementAndGet();
+            return copy(user);
+        }
+        missCount.incrementAndGet();
+        long before = generation.get();
+        user = delegate.retrieveUserByName(username, origin);
+        if (generation.get() == before) {
+            users.put(user.getId(), user);
+            ids.put(key, user.getId());
+        }
+        return copy(user);
+    }
+
+    @Override
+    public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+        if (users == null || id == null) {
+            return delegate.retrieveUserById(id);
+        }
+        UaaUser user = users.get(id);
+        if (user != null) {
+            hitCount.incrementAndGet();
+        }
+        else {
+            missCount.incrementAndGet();
+            long before = generation.get();
+            user = delegate.retrieveUserById(id);
+            if (generation.get() == before) {
+                users.put(id, user);
+            }
+        }
+        return copy(user);
+    }
+
+    /**
+     * Callers may change the verified flag of the user they get.
+     */
+    private UaaUser copy(UaaUser user) {
+        return user.modifySource(user.getOrigin(), user.getExternalId());
+    }
+
+    @Override
+    public void log(AuditEvent auditEvent) {
+        switch (auditEvent.getType()) {
+            case UserCreatedEvent:
+            case UserModifiedEvent:
+            case UserVerifiedEvent:
+            case UserDeletedEvent:
+            case EmailChangedEvent:
+            case PasswordChangeSuccess:
+                evict(auditEvent.getPrincipalId());
+                break;
+            case GroupCreatedEvent:
+            case GroupModifiedEvent:
+            case GroupDeletedEvent:
+                clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Nothing is stored, so there is nothing to find.
+     */
+    @Override
+    public List<AuditEvent> find(String principal, long after) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Remove a user from the cache of this node only.
+     *
+     * @param id the user id
+     */
+    @ManagedOperation(description = "Remove a user from the cache")
+    public void evict(String id) {
+        if (users != null && id != null) {
+            logger.debug("Evicting cached user " + id);
+            generation.incrementAndGet();
+            users.remove(id);
+        }
+    }
+
+    @ManagedOperation(description = "Remove all users from the cache")
+    public void clear() {
+        if (users != null) {
+            generation.incrementAndGet();
+            users.clear();
+            ids.clear();
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "User Cache Hit Ratio")
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "User Cache Eviction Count")
+    public long getEvictionCount() {
+        return users == null ? 0 : users.getEvictionCount();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "User Cache Size")
+    public int getSize() {
+        return users == null ? 0 : users.size();
+    }
+
+}
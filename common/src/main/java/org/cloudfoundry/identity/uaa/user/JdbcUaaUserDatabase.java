@@ -15,17 +15,27 @@ package org.cloudfoundry.identity.uaa.user;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
@@ -45,6 +55,20 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
     public static final String DEFAULT_USER_BY_ID_QUERY = "select " + USER_FIELDS + "from users "
         + "where id = ? and active=?";
 
+    public static final String USER_WITH_GROUPS_FIELDS = "u.id,u.username,u.password,u.email,u.givenName,u.familyName,u.created,u.lastModified,u.authorities,u.origin,u.external_id,u.verified,g.id,g.displayName ";
+
+    public static final String USER_WITH_GROUPS_TABLES = "from users u left outer join group_membership m on m.member_id = u.id "
+                    + "left outer join groups g on g.id = m.group_id ";
+
+    public static final String USER_WITH_GROUPS_BY_USERNAME_QUERY = "select " + USER_WITH_GROUPS_FIELDS
+                    + USER_WITH_GROUPS_TABLES + "where lower(u.username) = ? and u.active=? and u.origin=?";
+
+    public static final String USER_WITH_GROUPS_BY_ID_QUERY = "select " + USER_WITH_GROUPS_FIELDS
+                    + USER_WITH_GROUPS_TABLES + "where u.id = ? and u.active=?";
+
+    public static final String NESTED_GROUPS_QUERY = "select m.member_id, g.id, g.displayName from groups g, group_membership m "
+                    + "where g.id = m.group_id and m.member_type = 'GROUP'";
+
     private String userAuthoritiesQuery = null;
 
     private String userByUserNameQuery = DEFAULT_USER_BY_USERNAME_QUERY;
@@ -55,6 +79,20 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
     private Set<String> defaultAuthorities = new HashSet<String>();
 
+    private boolean loadGroupsWithUser = false;
+
+    private boolean includeNestedGroups = false;
+
+    private long nestedGroupsRefreshMillis = 30000;
+
+    private volatile GroupHierarchy groupHierarchy;
+
+    /**
+     * Authorities are shared by all users that have them, there are only as
+     * many as there are groups.
+     */
+    private final ConcurrentMap<String, GrantedAuthority> authorities = new ConcurrentHashMap<String, GrantedAuthority>();
+
     public void setUserByUserNameQuery(String userByUserNameQuery) {
         this.userByUserNameQuery = userByUserNameQuery;
     }
@@ -67,6 +105,42 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         this.defaultAuthorities = defaultAuthorities;
     }
 
+    /**
+     * Load a user and the names of its groups with one query that joins the
+     * users table to the group membership, instead of running the
+     * {@link #setUserAuthoritiesQuery(String) userAuthoritiesQuery} after the
+     * {@link #setUserByUserNameQuery(String) userByUserNameQuery}. Both of
+     * those are ignored if this is set.
+     *
+     * @param loadGroupsWithUser true to load users and groups together
+     *            (default false)
+     */
+    public void setLoadGroupsWithUser(boolean loadGroupsWithUser) {
+        this.loadGroupsWithUser = loadGroupsWithUser;
+    }
+
+    /**
+     * Also give users the authorities of the groups that their groups are
+     * members of, at any depth, like the SCIM endpoints do. Only applies when
+     * {@link #setLoadGroupsWithUser(boolean) loadGroupsWithUser} is set. The
+     * nesting of groups is read for all groups at once and kept for
+     * {@link #setNestedGroupsRefreshSeconds(int) nestedGroupsRefreshSeconds}.
+     *
+     * @param includeNestedGroups true to resolve nested groups (default
+     *            false)
+     */
+    public void setIncludeNestedGroups(boolean includeNestedGroups) {
+        this.includeNestedGroups = includeNestedGroups;
+    }
+
+    /**
+     * @param nestedGroupsRefreshSeconds how long the nesting of groups is
+     *            kept before it is read again (default 30)
+     */
+    public void setNestedGroupsRefreshSeconds(int nestedGroupsRefreshSeconds) {
+        this.nestedGroupsRefreshMillis = nestedGroupsRefreshSeconds * 1000L;
+    }
+
     public JdbcUaaUserDatabase(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
@@ -74,6 +148,14 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
     @Override
     public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
+        if (loadGroupsWithUser) {
+            UaaUser user = jdbcTemplate.query(USER_WITH_GROUPS_BY_USERNAME_QUERY, new UaaUserWithGroupsExtractor(),
+                            username.toLowerCase(Locale.US), true, origin);
+            if (user == null) {
+                throw new UsernameNotFoundException(username);
+            }
+            return user;
+        }
         try {
             return jdbcTemplate.queryForObject(userByUserNameQuery, mapper, username.toLowerCase(Locale.US), true, origin);
         } catch (EmptyResultDataAccessException e) {
@@ -83,6 +165,13 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
     @Override
     public UaaUser retrieveUserById(String id) throws UsernameNotFoundException {
+        if (loadGroupsWithUser) {
+            UaaUser user = jdbcTemplate.query(USER_WITH_GROUPS_BY_ID_QUERY, new UaaUserWithGroupsExtractor(), id, true);
+            if (user == null) {
+                throw new UsernameNotFoundException(id);
+            }
+            return user;
+        }
         try {
             return jdbcTemplate.queryForObject(DEFAULT_USER_BY_ID_QUERY, mapper, id, true);
         } catch (EmptyResultDataAccessException e) {
@@ -90,40 +179,139 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         }
     }
 
+    private List<GrantedAuthority> toAuthorities(Collection<String> names) {
+        Set<String> all = new LinkedHashSet<String>(names);
+        all.addAll(defaultAuthorities);
+        List<GrantedAuthority> result = new ArrayList<GrantedAuthority>(all.size());
+        for (String name : all) {
+            GrantedAuthority authority = authorities.get(name);
+            if (authority == null) {
+                authority = new SimpleGrantedAuthority(name);
+                GrantedAuthority existing = authorities.putIfAbsent(name, authority);
+                authority = existing == null ? authority : existing;
+            }
+            result.add(authority);
+        }
+        return result;
+    }
+
+    private UaaUser mapUser(ResultSet rs, List<GrantedAuthority> authorities) throws SQLException {
+        return new UaaUser(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        authorities, rs.getString(5), rs.getString(6),
+                        rs.getTimestamp(7), rs.getTimestamp(8), rs.getString(10), rs.getString(11), rs.getBoolean(12));
+    }
+
+    private GroupHierarchy getGroupHierarchy() {
+        GroupHierarchy hierarchy = groupHierarchy;
+        if (hierarchy == null || hierarchy.isStale()) {
+            synchronized (this) {
+                hierarchy = groupHierarchy;
+                if (hierarchy == null || hierarchy.isStale()) {
+                    hierarchy = new GroupHierarchy();
+                    groupHierarchy = hierarchy;
+                }
+            }
+        }
+        return hierarchy;
+    }
+
     private final class UaaUserRowMapper implements RowMapper<UaaUser> {
         @Override
         public UaaUser mapRow(ResultSet rs, int rowNum) throws SQLException {
             String id = rs.getString(1);
             if (userAuthoritiesQuery == null) {
-                return new UaaUser(id, rs.getString(2), rs.getString(3), rs.getString(4),
-                                getDefaultAuthorities(rs.getString(9)), rs.getString(5), rs.getString(6),
-                                rs.getTimestamp(7), rs.getTimestamp(8), rs.getString(10), rs.getString(11), rs.getBoolean(12));
+                String[] names = StringUtils.tokenizeToStringArray(rs.getString(9), ",");
+                return mapUser(rs, toAuthorities(names == null ? Collections.<String> emptyList() : Arrays.asList(names)));
             } else {
-                List<GrantedAuthority> authorities = AuthorityUtils
-                                .commaSeparatedStringToAuthorityList(getAuthorities(id));
-                return new UaaUser(id, rs.getString(2), rs.getString(3), rs.getString(4),
-                                authorities, rs.getString(5), rs.getString(6),
-                                rs.getTimestamp(7), rs.getTimestamp(8), rs.getString(10), rs.getString(11), rs.getBoolean(12));
+                return mapUser(rs, toAuthorities(getAuthorities(id)));
             }
         }
 
-        private List<GrantedAuthority> getDefaultAuthorities(String defaultAuth) {
-            List<String> authorities = new ArrayList<String>();
-            authorities.addAll(StringUtils.commaDelimitedListToSet(defaultAuth));
-            authorities.addAll(defaultAuthorities);
-            String authsString = StringUtils.collectionToCommaDelimitedString(new HashSet<String>(authorities));
-            return AuthorityUtils.commaSeparatedStringToAuthorityList(authsString);
-        }
-
-        private String getAuthorities(final String userId) {
-            List<String> authorities;
+        private List<String> getAuthorities(final String userId) {
             try {
-                authorities = jdbcTemplate.queryForList(userAuthoritiesQuery, String.class, userId);
+                return jdbcTemplate.queryForList(userAuthoritiesQuery, String.class, userId);
             } catch (EmptyResultDataAccessException ex) {
-                authorities = Collections.<String> emptyList();
+                return Collections.<String> emptyList();
+            }
+        }
+    }
+
+    /**
+     * Builds a user from the rows of the join of the user with its groups,
+     * one row per group or a single row with null group columns.
+     */
+    private final class UaaUserWithGroupsExtractor implements ResultSetExtractor<UaaUser> {
+        @Override
+        public UaaUser extractData(ResultSet rs) throws SQLException, DataAccessException {
+            if (!rs.next()) {
+                return null;
+            }
+            // the user columns are the same in every row
+            UaaUser user = mapUser(rs, Collections.<GrantedAuthority> emptyList());
+            Map<String, String> groups = new HashMap<String, String>();
+            do {
+                if (rs.getString(13) != null) {
+                    groups.put(rs.getString(13), rs.getString(14));
+                }
+            } while (rs.next());
+            Collection<String> names = groups.values();
+            if (includeNestedGroups && !groups.isEmpty()) {
+                names = getGroupHierarchy().withAncestors(groups);
             }
-            authorities.addAll(defaultAuthorities);
-            return StringUtils.collectionToCommaDelimitedString(new HashSet<String>(authorities));
+            user = new UaaUser(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(),
+                            toAuthorities(names), user.getGivenName(), user.getFamilyName(), user.getCreated(),
+                            user.getModified(), user.getOrigin(), user.getExternalId(), user.isVerified());
+            return user;
         }
     }
+
+    /**
+     * The groups that each group is a direct member of.
+     */
+    private final class GroupHierarchy {
+
+        private final long loadedAt = System.currentTimeMillis();
+
+        private final Map<String, Map<String, String>> parents = new HashMap<String, Map<String, String>>();
+
+        public GroupHierarchy() {
+            jdbcTemplate.query(NESTED_GROUPS_QUERY, new RowCallbackHandler() {
+                @Override
+                public void processRow(ResultSet rs) throws SQLException {
+                    Map<String, String> groups = parents.get(rs.getString(1));
+                    if (groups == null) {
+                        groups = new HashMap<String, String>();
+                        parents.put(rs.getString(1), groups);
+                    }
+                    groups.put(rs.getString(2), rs.getString(3));
+                }
+            });
+        }
+
+        public boolean isStale() {
+            return System.currentTimeMillis() - loadedAt > nestedGroupsRefreshMillis;
+        }
+
+        /**
+         * @param groups group names by id
+         * @return the names of the groups and of all groups they are nested in
+         */
+        public Set<String> withAncestors(Map<String, String> groups) {
+            Map<String, String> result = new HashMap<String, String>(groups);
+            List<String> pending = new ArrayList<String>(groups.keySet());
+            while (!pending.isEmpty()) {
+                Map<String, String> next = parents.get(pending.remove(pending.size() - 1));
+                if (next != null) {
+                    for (Map.Entry<String, String> entry : next.entrySet()) {
+                        // groups may be nested in a cycle
+                        if (result.put(entry.getKey(), entry.getValue()) == null) {
+                            pending.add(entry.getKey());
+                        }
+                    }
+                }
+            }
+            return new HashSet<String>(result.values());
+        }
+
+    }
 }
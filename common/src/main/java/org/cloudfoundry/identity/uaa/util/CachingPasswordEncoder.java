@@ -14,12 +14,16 @@ package org.cloudfoundry.identity.uaa.util;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.crypto.bcrypt.BCrypt;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.codec.Hex;
@@ -32,10 +36,27 @@ import org.springframework.security.oauth2.common.util.RandomValueStringGenerato
 /**
  * Wrapper around a slow password encoder that does a fast translation in memory only
  * This uses a hash to as a key to store a list of
+ * <p>
+ * The cache is a bounded LRU with an optional time to live per key. When it
+ * is full only the least recently used keys are evicted, so a burst of new
+ * passwords never forces every cached password to be checked with bcrypt
+ * again. Each thread hashes the cache keys with its own digest.
+ * <p>
+ * Also accumulates count data for exposure through JMX.
  */
+@ManagedResource
 public class CachingPasswordEncoder implements PasswordEncoder {
 
-    private final MessageDigest messageDigest;
+    private final ThreadLocal<MessageDigest> messageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     private final byte[] secret;
     private final byte[] salt;
     private final BytesKeyGenerator saltGenerator;
@@ -43,8 +64,12 @@ public class CachingPasswordEncoder implements PasswordEncoder {
 
     private int maxKeys = 1000;
     private int maxEncodedPasswords = 5;
+    private int timeToLiveSeconds = 3600;
     private boolean enabled = true;
 
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -53,12 +78,13 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.enabled = enabled;
     }
 
-    private final ConcurrentHashMap<CharSequence, Set<String>> cache = new ConcurrentHashMap<>();
+    private volatile ExpiringLruCache<String, Set<String>> cache = createCache();
 
     private BCryptPasswordEncoder passwordEncoder;
 
     public CachingPasswordEncoder() throws NoSuchAlgorithmException {
-        messageDigest = MessageDigest.getInstance("SHA-256");
+        // fail early if the algorithm is not available
+        MessageDigest.getInstance("SHA-256");
         this.secret = Utf8.encode(new RandomValueStringGenerator().generate());
         this.saltGenerator = KeyGenerators.secureRandom();
         this.salt = saltGenerator.generateKey();
@@ -90,40 +116,39 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private Set<String> getOrCreateHashList(String cacheKey) {
-        cache.putIfAbsent(cacheKey, Collections.synchronizedSet(new LinkedHashSet<String>()));
-        if (cache.size()>getMaxKeys()) {
-            //this should not happen if properly tuned.
-            cache.clear();
-        }
-        Set<String> result = cache.get(cacheKey);
-        return result;
+        Set<String> result = new LinkedHashSet<String>();
+        Set<String> existing = cache.putIfAbsent(cacheKey, result);
+        return existing != null ? existing : result;
     }
 
     private boolean internalMatches(String cacheKey, CharSequence rawPassword, String encodedPassword) {
         Set<String> cacheValue = cache.get(cacheKey);
-        boolean result = false;
-        for (String encoded : cacheValue!=null ? cacheValue : Collections.<String>emptyList()) {
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                break;
-            }
-        }
-        if (!result) {
-            String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
-            if (hashesEquals(encoded, encodedPassword)) {
-                result = true;
-                cacheValue = getOrCreateHashList(cacheKey);
-                if (cacheValue!=null) {
-                    cacheValue.add(encoded);
-                    //this list should never grow very long.
-                    //Only if you store multiple versions of the same password more than once
-                    if (cacheValue.size() > getMaxEncodedPasswords()) {
-                        cacheValue.clear();
+        if (cacheValue != null) {
+            synchronized (cacheValue) {
+                for (String encoded : cacheValue) {
+                    if (hashesEquals(encoded, encodedPassword)) {
+                        hitCount.incrementAndGet();
+                        return true;
                     }
                 }
             }
         }
-        return result;
+        missCount.incrementAndGet();
+        String encoded = BCrypt.hashpw(rawPassword.toString(), encodedPassword);
+        if (!hashesEquals(encoded, encodedPassword)) {
+            return false;
+        }
+        cacheValue = getOrCreateHashList(cacheKey);
+        synchronized (cacheValue) {
+            //this list should never grow very long.
+            //Only if you store multiple versions of the same password more than once
+            if (cacheValue.add(encoded) && cacheValue.size() > getMaxEncodedPasswords()) {
+                Iterator<String> oldest = cacheValue.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return true;
     }
 
 
@@ -138,12 +163,11 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private byte[] digest(byte[] value) {
-        synchronized (messageDigest) {
-            for (int i = 0; i < iterations; i++) {
-                value = messageDigest.digest(value);
-            }
-            return value;
+        MessageDigest digest = messageDigest.get();
+        for (int i = 0; i < iterations; i++) {
+            value = digest.digest(value);
         }
+        return value;
     }
 
     private boolean hashesEquals(String a, String b) {
@@ -161,12 +185,20 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         return ret == 0;
     }
 
+    private ExpiringLruCache<String, Set<String>> createCache() {
+        return new ExpiringLruCache<String, Set<String>>(maxKeys, timeToLiveSeconds * 1000L);
+    }
+
     public int getMaxKeys() {
         return maxKeys;
     }
 
+    /**
+     * Replaces the cache, so this is meant to be called during configuration.
+     */
     public void setMaxKeys(int maxKeys) {
         this.maxKeys = maxKeys;
+        this.cache = createCache();
     }
 
     public int getMaxEncodedPasswords() {
@@ -177,7 +209,43 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         this.maxEncodedPasswords = maxEncodedPasswords;
     }
 
+    public int getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    /**
+     * Replaces the cache, so this is meant to be called during configuration.
+     *
+     * @param timeToLiveSeconds how long a password stays cached after it was
+     *            first checked, 0 for no limit (default 3600)
+     */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.cache = createCache();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Cache Size")
     public int getNumberOfKeys() {
         return cache.size();
     }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Hit Count")
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Miss Count")
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Cache Eviction Count")
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @ManagedOperation(description = "Remove all passwords from the cache")
+    public void clear() {
+        cache.clear();
+    }
 }
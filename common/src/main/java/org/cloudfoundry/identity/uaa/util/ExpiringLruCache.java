@@ -0,0 +1,269 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe cache with least recently used eviction and an
+ * optional time to live per entry.
+ * <p>
+ * The keys are spread over a number of independently locked segments, each
+ * holding an equal share of the maximum size, so that concurrent readers of
+ * different keys do not contend on a single lock and an overflow only ever
+ * evicts the oldest entries of one segment.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringLruCache<K, V> {
+
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * Small caches use fewer segments, so that an unlucky spread of keys
+     * does not evict entries long before the cache is full.
+     */
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    private final Segment<K, V>[] segments;
+
+    private final long timeToLiveMillis;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of entries
+     * @param timeToLiveMillis how long an entry stays valid after it was
+     *            added, 0 or less for no limit
+     */
+    public ExpiringLruCache(int maxSize, long timeToLiveMillis) {
+        this(maxSize, timeToLiveMillis, DEFAULT_SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ExpiringLruCache(int maxSize, long timeToLiveMillis, int segmentCount) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        int count = Math.max(1, Math.min(segmentCount, maxSize / MIN_SEGMENT_SIZE));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // spread the remainder so the segment sizes add up to maxSize
+            segments[i] = new Segment<K, V>(maxSize / count + (i < maxSize % count ? 1 : 0));
+        }
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * @param key the key
+     * @return the value or null if there is no live entry for the key
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V result = null;
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null) {
+                if (entry.isExpired(System.currentTimeMillis())) {
+                    segment.remove(key);
+                    evictionCount.incrementAndGet();
+                }
+                else {
+                    result = entry.value;
+                }
+            }
+        }
+        if (result == null) {
+            missCount.incrementAndGet();
+        }
+        else {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Add or replace an entry that expires after the default time to live.
+     */
+    public void put(K key, V value) {
+        put(key, value, timeToLiveMillis > 0 ? System.currentTimeMillis() + timeToLiveMillis : Long.MAX_VALUE);
+    }
+
+    /**
+     * Add or replace an entry that expires at the given time, or after the
+     * default time to live if that is sooner.
+     *
+     * @param expiresAt the expiry time in milliseconds
+     */
+    public void put(K key, V value, long expiresAt) {
+        if (timeToLiveMillis > 0) {
+            expiresAt = Math.min(expiresAt, System.currentTimeMillis() + timeToLiveMillis);
+        }
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry<V>(value, expiresAt));
+            evictionCount.addAndGet(segment.drainEvicted());
+        }
+    }
+
+    /**
+     * Add an entry that expires after the default time to live unless there
+     * is already a live entry for the key.
+     *
+     * @return the existing value or null if the value was added
+     */
+    public V putIfAbsent(K key, V value) {
+        long now = System.currentTimeMillis();
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null && !entry.isExpired(now)) {
+                return entry.value;
+            }
+            segment.put(key, new Entry<V>(value, timeToLiveMillis > 0 ? now + timeToLiveMillis : Long.MAX_VALUE));
+            evictionCount.addAndGet(segment.drainEvicted());
+        }
+        return null;
+    }
+
+    /**
+     * @return the value that was removed or null
+     */
+    public V remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.remove(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Remove all entries whose value matches the filter.
+     *
+     * @return the number of entries removed
+     */
+    public int removeValues(Filter<? super V> filter) {
+        int removed = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Iterator<Entry<V>> iterator = segment.values().iterator(); iterator.hasNext();) {
+                    if (filter.matches(iterator.next().value)) {
+                        iterator.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        // spread the higher bits, as in HashMap
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Selects cache values, e.g. for {@link ExpiringLruCache#removeValues}.
+     */
+    public interface Filter<V> {
+        boolean matches(V value);
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long expiresAt;
+
+        public Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+
+        private final int maxSize;
+
+        private int evicted = 0;
+
+        public Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > maxSize) {
+                evicted++;
+                return true;
+            }
+            return false;
+        }
+
+        public int drainEvicted() {
+            int result = evicted;
+            evicted = 0;
+            return result;
+        }
+
+    }
+
+}
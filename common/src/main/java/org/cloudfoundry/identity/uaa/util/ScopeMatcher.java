@@ -0,0 +1,175 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches scopes against a set of scope wildcards, with the same rules as
+ * {@link UaaStringUtils#constructWildcards(Set)}: a <code>*</code> stands for
+ * one or more characters other than a dot, everything else matches itself.
+ * <p>
+ * Scopes without a wildcard are looked up in a hash set. The others are held
+ * in a tree with one level per dot separated segment, so a scope is only
+ * compared with the wildcards that share its leading segments, and only
+ * segments like <code>a*b</code> need a regular expression. Matchers are
+ * immutable and the ones built by {@link #of(Collection)} are cached by their
+ * scopes, so the matcher of a client is built again only when its scopes
+ * change.
+ */
+public final class ScopeMatcher {
+
+    private static final ExpiringLruCache<Set<String>, ScopeMatcher> cache = new ExpiringLruCache<Set<String>, ScopeMatcher>(
+                    1024, 0);
+
+    private final Set<String> exact = new HashSet<String>();
+
+    private final Node wildcards = new Node();
+
+    private ScopeMatcher(Set<String> scopes) {
+        for (String scope : scopes) {
+            if (scope.contains("*")) {
+                wildcards.add(split(scope), 0);
+            }
+            else {
+                exact.add(scope);
+            }
+        }
+    }
+
+    /**
+     * @param scopes the scopes, some of which may contain wildcards
+     * @return a matcher for the scopes
+     */
+    public static ScopeMatcher of(Collection<String> scopes) {
+        Set<String> key = Collections.unmodifiableSet(new HashSet<String>(scopes));
+        ScopeMatcher matcher = cache.get(key);
+        if (matcher == null) {
+            matcher = new ScopeMatcher(key);
+            cache.put(key, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * @param scope a scope
+     * @return true if the scope is one of the scopes of this matcher or
+     *         matches one of its wildcards
+     */
+    public boolean matches(String scope) {
+        return exact.contains(scope) || (!wildcards.isEmpty() && wildcards.matches(split(scope), 0));
+    }
+
+    private static String[] split(String scope) {
+        // like String.split("\\.", -1) but without a regular expression
+        List<String> segments = new ArrayList<String>(4);
+        int start = 0;
+        int dot;
+        while ((dot = scope.indexOf('.', start)) >= 0) {
+            segments.add(scope.substring(start, dot));
+            start = dot + 1;
+        }
+        segments.add(scope.substring(start));
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static class Node {
+
+        /**
+         * Matches the segment leading to this node if it contains a wildcard
+         * among other characters.
+         */
+        private final Pattern pattern;
+
+        private boolean terminal;
+
+        private final Map<String, Node> literals = new HashMap<String, Node>();
+
+        /**
+         * The child for a segment that is a single wildcard.
+         */
+        private Node any;
+
+        private final Map<String, Node> globs = new HashMap<String, Node>();
+
+        public Node() {
+            this(null);
+        }
+
+        private Node(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        public boolean isEmpty() {
+            return !terminal && literals.isEmpty() && any == null && globs.isEmpty();
+        }
+
+        public void add(String[] segments, int index) {
+            if (index == segments.length) {
+                terminal = true;
+                return;
+            }
+            child(segments[index]).add(segments, index + 1);
+        }
+
+        public boolean matches(String[] segments, int index) {
+            if (index == segments.length) {
+                return terminal;
+            }
+            String segment = segments[index];
+            Node child = literals.get(segment);
+            if (child != null && child.matches(segments, index + 1)) {
+                return true;
+            }
+            if (segment.length() == 0) {
+                return false;
+            }
+            if (any != null && any.matches(segments, index + 1)) {
+                return true;
+            }
+            for (Node glob : globs.values()) {
+                if (glob.pattern.matcher(segment).matches() && glob.matches(segments, index + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Node child(String segment) {
+            if ("*".equals(segment)) {
+                if (any == null) {
+                    any = new Node();
+                }
+                return any;
+            }
+            Map<String, Node> children = segment.contains("*") ? globs : literals;
+            Node child = children.get(segment);
+            if (child == null) {
+                child = children == globs ? new Node(Pattern.compile(UaaStringUtils
+                                .constructSimpleWildcardPattern(segment))) : new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.AuthenticationThrottledException;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.util.Assert;
+
+/**
+ * Wrapper around a slow password encoder that limits how many passwords are
+ * hashed at the same time, so that a burst of logins cannot keep every
+ * request thread busy hashing.
+ * <p>
+ * A caller waits up to {@link #setQueueTimeoutMillis(long) queueTimeoutMillis}
+ * for its turn and then fails with an {@link AuthenticationThrottledException}
+ * without checking the password. Callers are admitted in arrival order. The
+ * hashing itself stays on the calling thread, because that thread has to wait
+ * for the result anyway.
+ * <p>
+ * Also accumulates count and timing data for exposure through JMX.
+ */
+@ManagedResource
+public class ThrottledPasswordEncoder implements PasswordEncoder {
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final PasswordEncoder passwordEncoder;
+
+    private volatile Semaphore permits;
+
+    private int maxConcurrent = 0;
+
+    private long queueTimeoutMillis = 1000;
+
+    private AtomicLong hashCount = new AtomicLong();
+
+    private AtomicLong hashNanos = new AtomicLong();
+
+    private AtomicLong waitCount = new AtomicLong();
+
+    private AtomicLong waitNanos = new AtomicLong();
+
+    private AtomicLong rejectedCount = new AtomicLong();
+
+    public ThrottledPasswordEncoder(PasswordEncoder passwordEncoder) {
+        Assert.notNull(passwordEncoder);
+        this.passwordEncoder = passwordEncoder;
+    }
+
+    public PasswordEncoder getPasswordEncoder() {
+        return passwordEncoder;
+    }
+
+    /**
+     * @param maxConcurrent the maximum number of passwords hashed at the
+     *            same time, 0 or less for no limit (the default)
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @param queueTimeoutMillis how long to wait for a turn before giving up
+     *            (default 1000)
+     */
+    public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Hash Count")
+    public long getHashCount() {
+        return hashCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Hash Average Latency (ms)")
+    public double getAverageHashMillis() {
+        long count = hashCount.get();
+        return count == 0 ? 0 : hashNanos.get() / 1000000.0 / count;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Hash Average Wait Time (ms)")
+    public double getAverageWaitMillis() {
+        long count = waitCount.get();
+        return count == 0 ? 0 : waitNanos.get() / 1000000.0 / count;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Hash Rejected Count")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Hash Available Slots")
+    public int getAvailableSlots() {
+        Semaphore permits = this.permits;
+        return permits == null ? -1 : permits.availablePermits();
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        Semaphore permits = acquire();
+        long start = System.nanoTime();
+        try {
+            return passwordEncoder.encode(rawPassword);
+        } finally {
+            release(permits, start);
+        }
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        Semaphore permits = acquire();
+        long start = System.nanoTime();
+        try {
+            return passwordEncoder.matches(rawPassword, encodedPassword);
+        } finally {
+            release(permits, start);
+        }
+    }
+
+    /**
+     * @return the semaphore to release the permit to, null if there is no
+     *         limit
+     */
+    private Semaphore acquire() {
+        Semaphore permits = this.permits;
+        if (permits == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+        waitCount.incrementAndGet();
+        if (!acquired) {
+            rejectedCount.incrementAndGet();
+            logger.warn("Rejecting password check, " + maxConcurrent + " checks already in progress");
+            throw new AuthenticationThrottledException("Too many concurrent password checks, try again later");
+        }
+        return permits;
+    }
+
+    private void release(Semaphore permits, long start) {
+        hashNanos.addAndGet(System.nanoTime() - start);
+        hashCount.incrementAndGet();
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+--
+-- Cloud Foundry 
+-- Copyright (c) [2014] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+-- authorization codes live for minutes, so codes issued before the upgrade
+-- are dropped rather than migrated
+DROP TABLE oauth_code;
+
+CREATE TABLE oauth_code (
+  code VARCHAR(255) NOT NULL PRIMARY KEY,
+  expiresat BIGINT NOT NULL,
+  authentication LONGVARBINARY NOT NULL
+);
+
+CREATE INDEX oauth_code_expiresat ON oauth_code (expiresat);
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.cloudfoundry.identity.uaa.audit.BatchingAuditService.OverflowPolicy;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchingAuditServiceTests extends JdbcTestBase {
+
+    private BatchingAuditService auditService;
+
+    @Before
+    public void createService() throws Exception {
+        jdbcTemplate.execute("DELETE FROM sec_audit WHERE principal_id='1' or principal_id='2'");
+        auditService = new BatchingAuditService(new JdbcFailedLoginCountingAuditService(dataSource));
+        // Only write when the tests ask for it
+        auditService.setFlushIntervalMillis(60000);
+    }
+
+    @After
+    public void stopService() throws Exception {
+        auditService.destroy();
+    }
+
+    @Test
+    public void queuedEventsAreFound() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "2"));
+        assertEquals(0, countRows("1"));
+        assertEquals(3, auditService.getQueueDepth());
+        assertEquals(2, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void flushWritesQueuedEventsInOneBatch() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(2, auditService.flush());
+        assertEquals(2, countRows("1"));
+        assertEquals(0, auditService.getQueueDepth());
+        assertEquals(2, auditService.find("1", 0).size());
+        assertEquals(2, auditService.getWrittenCount());
+        assertEquals(1, auditService.getBatchCount());
+    }
+
+    @Test
+    public void queuedSuccessComesBeforeStoredFailures() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.flush();
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1"));
+        List<AuditEvent> events = auditService.find("1", 0);
+        assertEquals(2, events.size());
+        assertEquals(UserAuthenticationSuccess, events.get(0).getType());
+        auditService.flush();
+        assertEquals(0, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void findDoesNotWaitForBatchBeingWritten() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        auditService = new BatchingAuditService(new JdbcFailedLoginCountingAuditService(dataSource) {
+            @Override
+            public void logBatch(List<AuditEvent> auditEvents) {
+                entered.countDown();
+                await(proceed);
+                super.logBatch(auditEvents);
+                written.countDown();
+                await(release);
+            }
+        });
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                auditService.flush();
+            }
+        });
+        flusher.start();
+        try {
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            // in flight, not stored yet
+            assertEquals(2, auditService.find("1", 0).size());
+            proceed.countDown();
+            assertTrue(written.await(10, TimeUnit.SECONDS));
+            // stored and still in flight, but only found once
+            assertEquals(2, auditService.find("1", 0).size());
+        } finally {
+            proceed.countDown();
+            release.countDown();
+            flusher.join(10000);
+        }
+        assertEquals(2, auditService.find("1", 0).size());
+        assertEquals(2, countRows("1"));
+    }
+
+    @Test
+    public void findMatchesBatchBeingWrittenToRoundedStoredTimes() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // like a database that rounds to whole seconds
+        auditService = new BatchingAuditService(new JdbcFailedLoginCountingAuditService(dataSource) {
+            @Override
+            public void logBatch(List<AuditEvent> auditEvents) {
+                super.logBatch(auditEvents);
+                written.countDown();
+                await(release);
+            }
+
+            @Override
+            public List<AuditEvent> find(String principal, long after) {
+                List<AuditEvent> result = new ArrayList<AuditEvent>();
+                for (AuditEvent event : super.find(principal, after)) {
+                    result.add(new AuditEvent(event.getType(), event.getPrincipalId(), event.getOrigin(), event
+                                    .getData(), (event.getTime() + 500) / 1000 * 1000));
+                }
+                return result;
+            }
+        });
+        auditService.setFlushIntervalMillis(60000);
+        auditService.afterPropertiesSet();
+        long time = System.currentTimeMillis() / 1000 * 1000 - 2000;
+        auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", time + 600));
+        auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", time + 700));
+        Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                auditService.flush();
+            }
+        });
+        flusher.start();
+        try {
+            assertTrue(written.await(10, TimeUnit.SECONDS));
+            // stored and still in flight, but only found once
+            assertEquals(2, auditService.find("1", 0).size());
+        } finally {
+            release.countDown();
+            flusher.join(10000);
+        }
+        assertEquals(2, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void queuedEventIsNotMistakenForStoredEventWithSameTime() throws Exception {
+        auditService.afterPropertiesSet();
+        long time = System.currentTimeMillis();
+        auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", time));
+        auditService.flush();
+        auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", time));
+        assertEquals(2, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void findOnlyReturnsQueuedEventsWithinRequestedPeriod() throws Exception {
+        auditService.afterPropertiesSet();
+        long now = System.currentTimeMillis();
+        auditService.log(new AuditEvent(UserAuthenticationFailure, "1", "1.1.1.1", "joe", now - 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, auditService.find("1", now - 120 * 1000).size());
+    }
+
+    @Test
+    public void destroyWritesQueuedEvents() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.destroy();
+        assertEquals(1, countRows("1"));
+    }
+
+    @Test
+    public void eventsAreWrittenDirectlyWhenNotStarted() throws Exception {
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, countRows("1"));
+    }
+
+    @Test
+    public void overflowDropsEvents() throws Exception {
+        auditService.setQueueCapacity(1);
+        auditService.setOverflowPolicy(OverflowPolicy.DROP);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(2, auditService.getDroppedCount());
+        assertEquals(1, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void overflowLogsEvents() throws Exception {
+        auditService.setQueueCapacity(1);
+        auditService.setOverflowPolicy(OverflowPolicy.LOG);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, auditService.getLoggedCount());
+        assertEquals(0, auditService.getDroppedCount());
+    }
+
+    @Test
+    public void overflowBlocksUntilWritten() throws Exception {
+        auditService.setQueueCapacity(1);
+        auditService.setFlushIntervalMillis(10);
+        auditService.afterPropertiesSet();
+        for (int i = 0; i < 5; i++) {
+            auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        }
+        assertEquals(0, auditService.getDroppedCount());
+        assertEquals(5, auditService.find("1", 0).size());
+    }
+
+    @Test
+    public void overflowLogsEventsWhenBlockedTooLong() throws Exception {
+        auditService.setQueueCapacity(1);
+        auditService.setBlockTimeoutMillis(50);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, auditService.getLoggedCount());
+        assertEquals(1, auditService.getQueueDepth());
+    }
+
+    @Test
+    public void writerKeepsRunningAfterError() throws Exception {
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        auditService = new BatchingAuditService(new JdbcFailedLoginCountingAuditService(dataSource) {
+            @Override
+            public void logBatch(List<AuditEvent> auditEvents) {
+                if (fail.getAndSet(false)) {
+                    throw new AssertionError("Planned");
+                }
+                super.logBatch(auditEvents);
+            }
+        });
+        auditService.setFlushIntervalMillis(10);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        for (int i = 0; i < 50 && fail.get(); i++) {
+            Thread.sleep(100);
+        }
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        for (int i = 0; i < 50 && countRows("1") == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, countRows("1"));
+    }
+
+    @Test
+    public void eventsAreWrittenDirectlyWhenDestroyed() throws Exception {
+        auditService.afterPropertiesSet();
+        auditService.destroy();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        assertEquals(1, countRows("1"));
+        assertEquals(0, auditService.getQueueDepth());
+    }
+
+    @Test
+    public void writerPurgesExpiredData() throws Exception {
+        jdbcTemplate.update("insert into sec_audit (principal_id, event_type, origin, event_data, created) values (?,?,?,?,?)",
+                        "2", UserAuthenticationFailure.getCode(), "", "",
+                        new Timestamp(System.currentTimeMillis() - 3 * 3600 * 1000));
+        auditService.setFlushIntervalMillis(10);
+        auditService.setPurgeIntervalSeconds(1);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1"));
+        for (int i = 0; i < 50 && countRows("2") > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, countRows("2"));
+        assertEquals(1, countRows("1"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int countRows(String principal) {
+        return jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id=?", principal);
+    }
+
+    private AuditEvent getAuditEvent(AuditEventType type, String principal) {
+        return new AuditEvent(type, principal, "1.1.1.1", "joe", System.currentTimeMillis());
+    }
+
+}
@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PrincipalAuthenticationFailure;
@@ -68,6 +69,18 @@ public class JdbcAuditServiceTests extends JdbcTestBase {
         assertEquals(1, events.size());
     }
 
+    @Test
+    public void logBatchKeepsTheTimeOfEachEvent() throws Exception {
+        long now = System.currentTimeMillis();
+        auditService.logBatch(Arrays.asList(
+                        new AuditEvent(PrincipalAuthenticationFailure, "clientA", authDetails, null, now - 3600 * 1000),
+                        getAuditEvent(PrincipalAuthenticationFailure, "clientA", "second")));
+        List<AuditEvent> events = auditService.find("clientA", 0);
+        assertEquals(2, events.size());
+        assertEquals("second", events.get(0).getData());
+        assertEquals(1, auditService.find("clientA", now - 120 * 1000).size());
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal) {
         return getAuditEvent(type, principal, null);
     }
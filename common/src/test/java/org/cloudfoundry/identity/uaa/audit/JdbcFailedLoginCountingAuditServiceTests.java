@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
@@ -88,6 +89,27 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
         assertEquals(1, events.size());
     }
 
+    @Test
+    public void logBatchKeepsTheOrderOfSuccessesAndFailures() throws Exception {
+        auditService.logBatch(Arrays.asList(getAuditEvent(UserAuthenticationFailure, "1", "joe"),
+                        getAuditEvent(UserAuthenticationSuccess, "1", "joe"),
+                        getAuditEvent(UserAuthenticationFailure, "1", "joe"),
+                        getAuditEvent(UserAuthenticationFailure, "2", "joe")));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='2'"));
+    }
+
+    @Test
+    public void logBatchDoesNotDeleteOldData() throws Exception {
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        jdbcTemplate.update("update sec_audit set created=?", new Timestamp(now - 3 * 3600 * 1000));
+        auditService.logBatch(Arrays.asList(getAuditEvent(UserAuthenticationFailure, "1", "joe")));
+        assertEquals(2, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+        assertEquals(1, auditService.purgeExpiredData());
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from sec_audit where principal_id='1'"));
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal, String data) {
         return new AuditEvent(type, principal, authDetails, data, System.currentTimeMillis());
     }
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.audit.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+public class AsyncUaaEventMulticasterTests {
+
+    private AsyncUaaEventMulticaster multicaster = new AsyncUaaEventMulticaster();
+
+    private List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+
+    private List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    @After
+    public void cleanUp() throws Exception {
+        multicaster.destroy();
+    }
+
+    @Test
+    public void testEventsAreDeliveredOnPublishingThreadByDefault() throws Exception {
+        multicaster.afterPropertiesSet();
+        multicaster.addApplicationListener(new RecordingListener());
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        assertEquals(Collections.singletonList("1"), delivered);
+        assertEquals(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void testEventsAreDeliveredInBackground() throws Exception {
+        start(2, 10);
+        multicaster.addApplicationListener(new RecordingListener());
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        multicaster.destroy();
+        assertEquals(Collections.singletonList("1"), delivered);
+        assertFalse(Thread.currentThread().equals(threads.get(0)));
+        assertEquals(1, multicaster.getAsyncCount());
+    }
+
+    @Test
+    public void testSynchronousListenersAreCalledOnPublishingThread() throws Exception {
+        start(2, 10);
+        multicaster.addApplicationListener(new SynchronousRecordingListener());
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        assertEquals(Collections.singletonList("1"), delivered);
+        assertEquals(Thread.currentThread(), threads.get(0));
+        assertEquals(1, multicaster.getSyncCount());
+        assertEquals(0, multicaster.getAsyncCount());
+    }
+
+    @Test
+    public void testOtherEventsAreDeliveredOnPublishingThread() throws Exception {
+        start(2, 10);
+        final List<Thread> called = new ArrayList<Thread>();
+        multicaster.addApplicationListener(new ApplicationListener<OtherEvent>() {
+            @Override
+            public void onApplicationEvent(OtherEvent event) {
+                called.add(Thread.currentThread());
+            }
+        });
+        multicaster.multicastEvent(new OtherEvent());
+        assertEquals(Collections.singletonList(Thread.currentThread()), called);
+    }
+
+    @Test
+    public void testEventsOfOnePrincipalAreDeliveredInOrder() throws Exception {
+        start(4, 1000);
+        multicaster.addApplicationListener(new RecordingListener());
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            multicaster.multicastEvent(new TestEvent("joe", "joe" + i));
+            multicaster.multicastEvent(new TestEvent("marissa", "marissa" + i));
+            expected.add("joe" + i);
+        }
+        multicaster.destroy();
+        List<String> joe = new ArrayList<String>();
+        for (String value : delivered) {
+            if (value.startsWith("joe")) {
+                joe.add(value);
+            }
+        }
+        assertEquals(expected, joe);
+        assertEquals(1000, delivered.size());
+    }
+
+    @Test
+    public void testEventsAboutOnePrincipalFromDifferentCallersAreDeliveredInOrder() throws Exception {
+        start(4, 1000);
+        multicaster.addApplicationListener(new RecordingListener());
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            multicaster.multicastEvent(new TestEvent("admin" + (i % 7), "joe", "joe" + i));
+            expected.add("joe" + i);
+        }
+        multicaster.destroy();
+        assertEquals(expected, delivered);
+        Thread thread = threads.get(0);
+        for (Thread other : threads) {
+            assertEquals(thread, other);
+        }
+    }
+
+    @Test
+    public void testBlockedPublisherDeliversEventItselfWhenStopped() throws Exception {
+        start(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        multicaster.addApplicationListener(new ApplicationListener<TestEvent>() {
+            @Override
+            public void onApplicationEvent(TestEvent event) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add(event.value);
+            }
+        });
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        multicaster.multicastEvent(new TestEvent("joe", "2"));
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                multicaster.multicastEvent(new TestEvent("joe", "3"));
+            }
+        };
+        publisher.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (multicaster.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    multicaster.destroy();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        stopper.start();
+        Thread.sleep(200);
+        release.countDown();
+        publisher.join(5000);
+        stopper.join(15000);
+        assertFalse(publisher.isAlive());
+        assertEquals(3, delivered.size());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotFailPublisher() throws Exception {
+        start(1, 10);
+        multicaster.addApplicationListener(new ApplicationListener<TestEvent>() {
+            @Override
+            public void onApplicationEvent(TestEvent event) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        multicaster.addApplicationListener(new RecordingListener());
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        multicaster.destroy();
+        assertEquals(1, multicaster.getFailedCount());
+        assertEquals(Collections.singletonList("1"), delivered);
+    }
+
+    @Test
+    public void testPublisherWaitsWhenQueueIsFull() throws Exception {
+        start(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        multicaster.addApplicationListener(new ApplicationListener<TestEvent>() {
+            @Override
+            public void onApplicationEvent(TestEvent event) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add(event.value);
+            }
+        });
+        multicaster.multicastEvent(new TestEvent("joe", "1"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        multicaster.multicastEvent(new TestEvent("joe", "2"));
+        assertEquals(1, multicaster.getQueueDepth());
+        Thread publisher = new Thread() {
+            @Override
+            public void run() {
+                multicaster.multicastEvent(new TestEvent("joe", "3"));
+            }
+        };
+        publisher.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (multicaster.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, multicaster.getBlockedCount());
+        assertTrue(publisher.isAlive());
+        release.countDown();
+        publisher.join(5000);
+        multicaster.destroy();
+        assertEquals(3, delivered.size());
+        assertEquals("3", delivered.get(2));
+    }
+
+    private void start(int threadCount, int queueCapacity) {
+        multicaster.setThreads(threadCount);
+        multicaster.setQueueCapacity(queueCapacity);
+        multicaster.afterPropertiesSet();
+    }
+
+    @SuppressWarnings("serial")
+    private static class TestEvent extends AbstractUaaEvent {
+
+        private final String value;
+
+        private final String principal;
+
+        public TestEvent(String principal, String value) {
+            this(principal, principal, value);
+        }
+
+        public TestEvent(String caller, String principal, String value) {
+            super(value, new UsernamePasswordAuthenticationToken(caller, null));
+            this.principal = principal;
+            this.value = value;
+        }
+
+        @Override
+        public AuditEvent getAuditEvent() {
+            return createAuditRecord(principal, AuditEventType.UserModifiedEvent, "caller");
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    private static class OtherEvent extends ApplicationEvent {
+
+        public OtherEvent() {
+            super("other");
+        }
+
+    }
+
+    private class RecordingListener implements ApplicationListener<TestEvent> {
+
+        @Override
+        public void onApplicationEvent(TestEvent event) {
+            threads.add(Thread.currentThread());
+            delivered.add(event.value);
+        }
+
+    }
+
+    private class SynchronousRecordingListener extends RecordingListener implements SynchronousListener {
+
+        @Override
+        public boolean isSynchronous() {
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.audit.event.AuditListener;
+import org.cloudfoundry.identity.uaa.authentication.event.UserAuthenticationFailureEvent;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+public class AccountLoginPolicyListenerRegistrarTests {
+
+    private ConfigurableApplicationContext context = mock(ConfigurableApplicationContext.class);
+
+    @Test
+    public void testPolicyCountingFailuresGetsEvents() {
+        SlidingWindowLockoutPolicy policy = new SlidingWindowLockoutPolicy();
+        policy.setLockoutAfterFailures(1);
+        policy.afterPropertiesSet();
+        AccountLoginPolicyListenerRegistrar registrar = new AccountLoginPolicyListenerRegistrar(policy);
+        registrar.setApplicationContext(context);
+        registrar.afterPropertiesSet();
+
+        ArgumentCaptor<AuditListener> listener = ArgumentCaptor.forClass(AuditListener.class);
+        verify(context).addApplicationListener(listener.capture());
+        assertTrue(listener.getValue().isSynchronous());
+
+        UaaUser joe = mock(UaaUser.class);
+        when(joe.getId()).thenReturn("1");
+        when(joe.getUsername()).thenReturn("joe");
+        Authentication authentication = new UsernamePasswordAuthenticationToken("joe", "password");
+        assertTrue(policy.isAllowed(joe, authentication));
+        listener.getValue().onApplicationEvent(new UserAuthenticationFailureEvent(joe, authentication));
+        assertFalse(policy.isAllowed(joe, authentication));
+    }
+
+    @Test
+    public void testPolicyReadingAuditDataGetsNoListener() {
+        AccountLoginPolicy policy = new PeriodLockoutPolicy(mock(UaaAuditService.class));
+        AccountLoginPolicyListenerRegistrar registrar = new AccountLoginPolicyListenerRegistrar(policy);
+        registrar.setApplicationContext(context);
+        registrar.afterPropertiesSet();
+        verify(context, never()).addApplicationListener(any(ApplicationListener.class));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+
+public class SlidingWindowLockoutPolicyTests {
+
+    private static final int ONE_HOUR = 60 * 60;
+
+    private UaaAuditService as;
+
+    private UaaUser joe;
+
+    private long now;
+
+    private SlidingWindowLockoutPolicy policy;
+
+    @Before
+    public void setUp() throws Exception {
+        now = System.currentTimeMillis();
+        as = mock(UaaAuditService.class);
+        joe = mock(UaaUser.class);
+        when(joe.getId()).thenReturn("1");
+        policy = new SlidingWindowLockoutPolicy(as);
+        policy.setCountFailuresWithin(ONE_HOUR);
+        policy.setLockoutPeriodSeconds(ONE_HOUR);
+        policy.setLockoutAfterFailures(2);
+        policy.afterPropertiesSet();
+    }
+
+    @Test
+    public void loginIsDeniedIfAllowedFailuresIsExceeded() {
+        policy.log(event(UserAuthenticationFailure, now - 2));
+        policy.log(event(UserAuthenticationFailure, now - 1));
+        assertFalse(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginIsAllowedIfAllowedFailuresIsNotExceeded() {
+        policy.log(event(UserAuthenticationFailure, now - 1));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginIsAllowedIfSuccessfulLoginIntercedesExcessiveFailures() {
+        policy.log(event(UserAuthenticationFailure, now - 3));
+        policy.log(event(UserAuthenticationSuccess, now - 2));
+        policy.log(event(UserAuthenticationFailure, now - 1));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void passwordChangeResetsFailures() {
+        policy.log(event(UserAuthenticationFailure, now - 2));
+        policy.log(event(UserAuthenticationFailure, now - 1));
+        policy.log(event(PasswordChangeSuccess, now));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void loginIsAllowedWithExcessiveFailuresIfLockoutPeriodHasElapsed() {
+        policy.setLockoutPeriodSeconds(5);
+        policy.log(event(UserAuthenticationFailure, now - 5002));
+        policy.log(event(UserAuthenticationFailure, now - 5001));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void failuresOutsideTheWindowAreNotCounted() {
+        policy.log(event(UserAuthenticationFailure, now - 2 * ONE_HOUR * 1000L));
+        policy.log(event(UserAuthenticationFailure, now - 1));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    @Test
+    public void failuresAreLoadedOnceFromTheAuditService() {
+        when(as.find(eq("1"), anyLong())).thenReturn(Arrays.asList(
+                        new AuditEvent(UserAuthenticationFailure, "1", "", "", now - 1),
+                        new AuditEvent(UserAuthenticationFailure, "1", "", "", now - 2),
+                        new AuditEvent(UserAuthenticationSuccess, "1", "", "", now - 3),
+                        new AuditEvent(UserAuthenticationFailure, "1", "", "", now - 4)
+                        ));
+        policy.setLockoutAfterFailures(3);
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+        policy.log(event(UserAuthenticationFailure, System.currentTimeMillis()));
+        assertFalse(policy.isAllowed(joe, mock(Authentication.class)));
+        verify(as, times(1)).find(anyString(), anyLong());
+        assertEquals(1, policy.getTrackedUsers());
+    }
+
+    @Test
+    public void eventBeingLoggedIsNotLoadedTwice() {
+        long time = now - 1;
+        when(as.find(eq("1"), anyLong())).thenReturn(Arrays.asList(
+                        new AuditEvent(UserAuthenticationFailure, "1", "", "", time),
+                        new AuditEvent(UserAuthenticationFailure, "1", "", "", time - 1)
+                        ));
+        policy.setLockoutAfterFailures(3);
+        policy.log(event(UserAuthenticationFailure, time));
+        assertTrue(policy.isAllowed(joe, mock(Authentication.class)));
+    }
+
+    private AuditEvent event(AuditEventType type, long time) {
+        return new AuditEvent(type, "1", "", "joe", time);
+    }
+
+}
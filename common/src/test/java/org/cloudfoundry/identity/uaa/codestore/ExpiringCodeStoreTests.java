@@ -16,6 +16,8 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -195,4 +197,70 @@ public class ExpiringCodeStoreTests extends JdbcTestBase {
         }
 
     }
+
+    @Test
+    public void testExpirationCleanerDeletesInChunks() throws Exception {
+        if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
+            JdbcExpiringCodeStore store = (JdbcExpiringCodeStore) expiringCodeStore;
+            store.setSweepBatchSize(10);
+            for (int i = 0; i < 25; i++) {
+                jdbcTemplate.update(JdbcExpiringCodeStore.insert, "test" + i, System.currentTimeMillis() - 1000, "{}");
+            }
+            ExpiringCode live = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+            assertEquals(25, store.cleanExpiredEntries());
+            assertEquals(1, jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName));
+            assertEquals(live, store.retrieveCode(live.getCode()));
+        }
+    }
+
+    @Test
+    public void testExpirationSweeperRunsInBackground() throws Exception {
+        if (JdbcExpiringCodeStore.class == expiringCodeStoreClass) {
+            JdbcExpiringCodeStore store = (JdbcExpiringCodeStore) expiringCodeStore;
+            jdbcTemplate.update(JdbcExpiringCodeStore.insert, "test", System.currentTimeMillis() - 1000, "{}");
+            store.setExpirationInterval(10);
+            store.afterPropertiesSet();
+            try {
+                long deadline = System.currentTimeMillis() + 5000;
+                int count;
+                do {
+                    Thread.sleep(10);
+                    count = jdbcTemplate.queryForInt("select count(*) from " + JdbcExpiringCodeStore.tableName);
+                } while (count > 0 && System.currentTimeMillis() < deadline);
+                assertEquals(0, count);
+            } finally {
+                store.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void testCodeIsConsumedOnceByConcurrentCallers() throws Exception {
+        final ExpiringCode generatedCode = expiringCodeStore.generateCode("{}",
+                        new Timestamp(System.currentTimeMillis() + 60000));
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger retrieved = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (expiringCodeStore.retrieveCode(generatedCode.getCode()) != null) {
+                        retrieved.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, retrieved.get());
+    }
 }
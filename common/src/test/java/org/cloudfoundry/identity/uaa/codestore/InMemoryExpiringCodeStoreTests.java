@@ -0,0 +1,155 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.codestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InMemoryExpiringCodeStoreTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryExpiringCodeStore store = new InMemoryExpiringCodeStore();
+
+    @Before
+    public void setUp() {
+        store.setTickMillis(10);
+        store.setWheelSize(8);
+    }
+
+    @Test
+    public void testExpiredCodesAreRemovedWithoutBeingRetrieved() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 20));
+        }
+        assertEquals(100, store.getSize());
+        Thread.sleep(50);
+        store.retrieveCode("unknown");
+        assertEquals(0, store.getSize());
+        assertEquals(100, store.getExpiredCount());
+    }
+
+    @Test
+    public void testCodesExpiringInLaterTurnsOfTheWheelAreKept() throws Exception {
+        ExpiringCode code = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(50);
+            store.retrieveCode("unknown");
+        }
+        assertEquals(1, store.getSize());
+        assertEquals(0, store.getExpiredCount());
+        assertNotNull(store.retrieveCode(code.getCode()));
+    }
+
+    @Test
+    public void testRetrievedCodeIsNotCountedAsExpired() throws Exception {
+        ExpiringCode code = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 20));
+        assertNotNull(store.retrieveCode(code.getCode()));
+        Thread.sleep(50);
+        store.retrieveCode("unknown");
+        assertEquals(0, store.getSize());
+        assertEquals(0, store.getExpiredCount());
+    }
+
+    @Test
+    public void testGeneratedAndRetrievedCodesAreReplicated() throws Exception {
+        final List<String> replicated = new ArrayList<String>();
+        store.setReplicator(new ExpiringCodeReplicator() {
+            @Override
+            public void generated(ExpiringCode expiringCode) {
+                replicated.add("+" + expiringCode.getCode());
+            }
+
+            @Override
+            public void retrieved(String code) {
+                replicated.add("-" + code);
+            }
+        });
+        ExpiringCode code = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        store.retrieveCode(code.getCode());
+        store.retrieveCode("unknown");
+        assertEquals(Arrays.asList("+" + code.getCode(), "-" + code.getCode()), replicated);
+    }
+
+    @Test
+    public void testCodeIsDiscardedWhenReplicationFails() throws Exception {
+        store.setReplicator(new ExpiringCodeReplicator() {
+            @Override
+            public void generated(ExpiringCode expiringCode) {
+                throw new IllegalStateException("Planned");
+            }
+
+            @Override
+            public void retrieved(String code) {
+            }
+        });
+        try {
+            store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, store.getSize());
+    }
+
+    @Test
+    public void testReplicasCanBeRetrieved() throws Exception {
+        InMemoryExpiringCodeStore other = new InMemoryExpiringCodeStore();
+        ExpiringCode code = store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        other.putReplica(code);
+        assertEquals(code, other.retrieveCode(code.getCode()));
+        store.removeReplica(code.getCode());
+        assertNull(store.retrieveCode(code.getCode()));
+    }
+
+    @Test
+    public void testCodesSurviveRestartInSnapshot() throws Exception {
+        File snapshot = new File(folder.getRoot(), "codes.json");
+        store.setSnapshotPath(snapshot.getPath());
+        store.afterPropertiesSet();
+        ExpiringCode code = store.generateCode("{\"user\":\"joe\"}", new Timestamp(
+                        System.currentTimeMillis() + 60000));
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 20));
+        Thread.sleep(50);
+        store.destroy();
+
+        InMemoryExpiringCodeStore restarted = new InMemoryExpiringCodeStore();
+        restarted.setSnapshotPath(snapshot.getPath());
+        restarted.afterPropertiesSet();
+        assertEquals(1, restarted.getSize());
+        assertEquals(code, restarted.retrieveCode(code.getCode()));
+        assertEquals("{\"user\":\"joe\"}", code.getData());
+    }
+
+    @Test
+    public void testNoSnapshotByDefault() throws Exception {
+        store.afterPropertiesSet();
+        store.generateCode("{}", new Timestamp(System.currentTimeMillis() + 60000));
+        store.destroy();
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.cloudfoundry.identity.uaa.oauth.event.ClientUpdateEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.provider.ClientDetailsService;
+import org.springframework.security.oauth2.provider.NoSuchClientException;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+public class CachingClientDetailsServiceTests {
+
+    private ClientDetailsService delegate = mock(ClientDetailsService.class);
+
+    private CachingClientDetailsService service = new CachingClientDetailsService(delegate);
+
+    private BaseClientDetails client = new BaseClientDetails("foo", null, "uaa.none", "client_credentials", "uaa.none");
+
+    @Before
+    public void setUp() throws Exception {
+        service.afterPropertiesSet();
+        when(delegate.loadClientByClientId("foo")).thenReturn(client);
+    }
+
+    @Test
+    public void testClientIsLoadedOnce() {
+        assertSame(client, service.loadClientByClientId("foo"));
+        assertSame(client, service.loadClientByClientId("foo"));
+        verify(delegate, times(1)).loadClientByClientId("foo");
+        assertEquals(1, service.getHitCount());
+        assertEquals(1, service.getMissCount());
+    }
+
+    @Test
+    public void testClientEventEvictsClient() {
+        ClientDetailsCacheInvalidator invalidator = mock(ClientDetailsCacheInvalidator.class);
+        service.setInvalidator(invalidator);
+        service.loadClientByClientId("foo");
+        service.onApplicationEvent(new ClientUpdateEvent(client, new UsernamePasswordAuthenticationToken("admin",
+                        null)));
+        service.loadClientByClientId("foo");
+        verify(delegate, times(2)).loadClientByClientId("foo");
+        verify(invalidator).invalidate("foo");
+    }
+
+    @Test(expected = NoSuchClientException.class)
+    public void testUnknownClientIsNotCached() {
+        when(delegate.loadClientByClientId("bar")).thenThrow(new NoSuchClientException("bar"));
+        service.loadClientByClientId("bar");
+    }
+
+}
@@ -31,6 +31,7 @@ import org.cloudfoundry.identity.uaa.error.UaaException;
 import org.cloudfoundry.identity.uaa.ldap.extension.ExtendedLdapUserImpl;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.rest.QueryableResourceManager;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
@@ -283,6 +284,18 @@ public class ClientAdminEndpointsTests {
         assertEquals(1, result.getResources().size());
     }
 
+    @Test
+    public void testFindClientDetailsByCursorStreamedKeepsNextCursor() throws Exception {
+        BaseClientDetails other = new BaseClientDetails(detail);
+        other.setClientId("other");
+        Mockito.when(clientDetailsService.query("filter", "sortBy", true, "", 2)).thenReturn(
+                        new KeysetPage<ClientDetails>(Arrays.<ClientDetails> asList(detail, other), "next"));
+        endpoints.setStreamingThreshold(1);
+        SearchResults<?> result = endpoints.listClientDetails("client_id", "filter", "sortBy", "ascending", 1, 2, "");
+        assertEquals(2, result.getResources().size());
+        assertEquals("next", result.getNextCursor());
+    }
+
     @Test(expected = UaaException.class)
     public void testFindClientDetailsInvalidFilter() throws Exception {
         Mockito.when(clientDetailsService.query("filter", "sortBy", true)).thenThrow(new IllegalArgumentException());
@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -21,11 +23,16 @@ import java.util.Map;
 
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
+import org.springframework.beans.DirectFieldAccessor;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -44,6 +51,14 @@ public class RemoteTokenServicesTests {
 
     private HttpStatus status = HttpStatus.OK;
 
+    private Map<String, Object> key = new HashMap<String, Object>();
+
+    private int checkTokenCount = 0;
+
+    private int tokenKeyCount = 0;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
     public RemoteTokenServicesTests() {
         services.setClientId("client");
         services.setClientSecret("secret");
@@ -56,7 +71,12 @@ public class RemoteTokenServicesTests {
             @Override
             public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
                             Class<T> responseType, Object... uriVariables) throws RestClientException {
-                return new ResponseEntity<T>((T) body, headers, status);
+                if (method == HttpMethod.GET) {
+                    tokenKeyCount++;
+                    return new ResponseEntity<T>((T) key, headers, status);
+                }
+                checkTokenCount++;
+                return new ResponseEntity<T>((T) new HashMap<String, Object>(body), headers, status);
             }
         });
     }
@@ -98,4 +118,123 @@ public class RemoteTokenServicesTests {
         assertEquals(mapper.writeValueAsString(additionalAuthorizationAttributesMap), result.getOAuth2Request()
                         .getRequestParameters().get(Claims.ADDITIONAL_AZ_ATTR));
     }
+
+    @Test
+    public void testCheckTokenCalledEveryTimeByDefault() throws Exception {
+        services.afterPropertiesSet();
+        services.loadAuthentication("FOO");
+        services.loadAuthentication("FOO");
+        assertEquals(2, checkTokenCount);
+    }
+
+    @Test
+    public void testCachedTokenIsNotCheckedAgain() throws Exception {
+        services.setCacheTimeToLiveSeconds(60);
+        services.afterPropertiesSet();
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+        services.loadAuthentication("FOO");
+        OAuth2Authentication result = services.loadAuthentication("FOO");
+        assertEquals(1, checkTokenCount);
+        assertEquals("olds", result.getUserAuthentication().getName());
+        services.loadAuthentication("BAR");
+        assertEquals(2, checkTokenCount);
+        assertEquals(2, services.getCacheSize());
+    }
+
+    @Test
+    public void testCachedTokenIsNotUsedAfterItExpires() throws Exception {
+        services.setCacheTimeToLiveSeconds(60);
+        services.afterPropertiesSet();
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 - 1);
+        services.loadAuthentication("FOO");
+        services.loadAuthentication("FOO");
+        assertEquals(2, checkTokenCount);
+    }
+
+    @Test
+    public void testInvalidTokenIsNotCached() throws Exception {
+        services.setCacheTimeToLiveSeconds(60);
+        services.afterPropertiesSet();
+        body.put("error", "invalid_token");
+        for (int i = 0; i < 2; i++) {
+            try {
+                services.loadAuthentication("FOO");
+                fail("Expected InvalidTokenException");
+            } catch (InvalidTokenException e) {
+                // expected
+            }
+        }
+        assertEquals(2, checkTokenCount);
+        assertEquals(0, services.getCacheSize());
+    }
+
+    @Test
+    public void testTokenVerifiedLocallyWithTokenKey() throws Exception {
+        services.setTokenKeyEndpointUrl("http://localhost/token_key");
+        services.afterPropertiesSet();
+        key.put("value", "tokenKey");
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+        String token = JwtHelper.encode(mapper.writeValueAsString(body), new MacSigner("tokenKey")).getEncoded();
+        OAuth2Authentication result = services.loadAuthentication(token);
+        services.loadAuthentication(token);
+        assertEquals("remote", result.getOAuth2Request().getClientId());
+        assertEquals("olds", result.getUserAuthentication().getName());
+        assertEquals(0, checkTokenCount);
+        assertEquals(1, tokenKeyCount);
+    }
+
+    @Test
+    public void testTokenWithWrongSignatureIsRejectedLocally() throws Exception {
+        services.setTokenKeyEndpointUrl("http://localhost/token_key");
+        services.afterPropertiesSet();
+        key.put("value", "tokenKey");
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+        String token = JwtHelper.encode(mapper.writeValueAsString(body), new MacSigner("otherKey")).getEncoded();
+        try {
+            services.loadAuthentication(token);
+            fail("Expected InvalidTokenException");
+        } catch (InvalidTokenException e) {
+            // expected
+        }
+        // the key was just fetched, so it is not fetched again
+        assertEquals(1, tokenKeyCount);
+        assertEquals(0, checkTokenCount);
+    }
+
+    @Test
+    public void testRotatedKeyIsFetchedAgain() throws Exception {
+        services.setTokenKeyEndpointUrl("http://localhost/token_key");
+        services.afterPropertiesSet();
+        key.put("value", "oldKey");
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 + 60);
+        services.loadAuthentication(JwtHelper.encode(mapper.writeValueAsString(body), new MacSigner("oldKey"))
+                        .getEncoded());
+        new DirectFieldAccessor(services).setPropertyValue("verifierFetchedAt", 0L);
+        key.put("value", "newKey");
+        OAuth2Authentication result = services.loadAuthentication(JwtHelper.encode(mapper.writeValueAsString(body),
+                        new MacSigner("newKey")).getEncoded());
+        assertNotNull(result);
+        assertEquals(2, tokenKeyCount);
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testExpiredTokenIsRejectedLocally() throws Exception {
+        services.setTokenKeyEndpointUrl("http://localhost/token_key");
+        services.afterPropertiesSet();
+        key.put("value", "tokenKey");
+        body.put(Claims.EXP, System.currentTimeMillis() / 1000 - 1);
+        services.loadAuthentication(JwtHelper.encode(mapper.writeValueAsString(body), new MacSigner("tokenKey"))
+                        .getEncoded());
+    }
+
+    @Test
+    public void testPooledTransport() throws Exception {
+        RemoteTokenServices pooled = new RemoteTokenServices();
+        pooled.setMaxConnections(10);
+        pooled.afterPropertiesSet();
+        RestTemplate template = (RestTemplate) new DirectFieldAccessor(pooled).getPropertyValue("restTemplate");
+        assertTrue(template.getRequestFactory() instanceof HttpComponentsClientHttpRequestFactory);
+        pooled.destroy();
+    }
+
 }
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+public class UaaAuthorizationCodeServicesTests extends JdbcTestBase {
+
+    private UaaAuthorizationCodeServices services;
+
+    private OAuth2Authentication authentication;
+
+    @Before
+    public void createServices() throws Exception {
+        services = new UaaAuthorizationCodeServices(dataSource);
+        OAuth2Request request = new OAuth2Request(Collections.singletonMap("client_id", "app"), "app",
+                        AuthorityUtils.createAuthorityList("uaa.none"), true, Collections.singleton("openid"),
+                        Collections.singleton("app"), "http://localhost/app", Collections.singleton("code"),
+                        Collections.<String, Serializable> emptyMap());
+        authentication = new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken("marissa", null,
+                        AuthorityUtils.createAuthorityList("openid")));
+    }
+
+    @After
+    public void stopServices() throws Exception {
+        services.destroy();
+    }
+
+    @Test
+    public void testCodeIsConsumedOnce() {
+        String code = services.createAuthorizationCode(authentication);
+        assertEquals(authentication, services.consumeAuthorizationCode(code));
+        try {
+            services.consumeAuthorizationCode(code);
+            fail("Code was consumed twice");
+        } catch (InvalidGrantException expected) {
+        }
+    }
+
+    @Test(expected = InvalidGrantException.class)
+    public void testUnknownCodeIsRejected() {
+        services.consumeAuthorizationCode("unknown");
+    }
+
+    @Test
+    public void testExpiredCodeIsRejectedAndRemoved() {
+        services.setCodeValiditySeconds(-1);
+        String code = services.createAuthorizationCode(authentication);
+        try {
+            services.consumeAuthorizationCode(code);
+            fail("Expired code was accepted");
+        } catch (InvalidGrantException expected) {
+        }
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void testExpiredCodesAreDeletedInChunks() {
+        services.setSweepBatchSize(10);
+        services.setCodeValiditySeconds(-1);
+        for (int i = 0; i < 25; i++) {
+            services.createAuthorizationCode(authentication);
+        }
+        services.setCodeValiditySeconds(300);
+        String code = services.createAuthorizationCode(authentication);
+        assertEquals(25, services.cleanExpiredEntries());
+        assertEquals(1, count());
+        assertEquals(authentication, services.consumeAuthorizationCode(code));
+    }
+
+    @Test
+    public void testCodeIsConsumedOnceByConcurrentCallers() throws Exception {
+        final String code = services.createAuthorizationCode(authentication);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger consumed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        services.consumeAuthorizationCode(code);
+                        consumed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (InvalidGrantException e) {
+                        // someone else was first
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, consumed.get());
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForInt("select count(*) from " + UaaAuthorizationCodeServices.tableName);
+    }
+
+}
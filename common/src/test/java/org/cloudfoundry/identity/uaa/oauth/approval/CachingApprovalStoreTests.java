@@ -0,0 +1,105 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import static org.cloudfoundry.identity.uaa.oauth.approval.Approval.ApprovalStatus.APPROVED;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+public class CachingApprovalStoreTests {
+
+    private ApprovalStore delegate = mock(ApprovalStore.class);
+
+    private CachingApprovalStore store = new CachingApprovalStore(delegate);
+
+    private Approval approval = new Approval("u1", "c1", "openid", 6000, APPROVED);
+
+    @Before
+    public void setUp() throws Exception {
+        store.afterPropertiesSet();
+        when(delegate.getApprovals("u1", "c1")).thenReturn(new ArrayList<Approval>(Arrays.asList(approval)));
+        when(delegate.getApprovals("u1", "c2")).thenReturn(new ArrayList<Approval>());
+    }
+
+    @Test
+    public void testApprovalsAreCached() throws Exception {
+        assertEquals(1, store.getApprovals("u1", "c1").size());
+        assertEquals(1, store.getApprovals("u1", "c1").size());
+        assertEquals(0, store.getApprovals("u1", "c2").size());
+        assertEquals(0, store.getApprovals("u1", "c2").size());
+        verify(delegate, times(1)).getApprovals("u1", "c1");
+        verify(delegate, times(1)).getApprovals("u1", "c2");
+        assertEquals(1, store.getSize());
+    }
+
+    @Test
+    public void testCallersCannotModifyTheCache() throws Exception {
+        store.getApprovals("u1", "c1").clear();
+        assertEquals(1, store.getApprovals("u1", "c1").size());
+    }
+
+    @Test
+    public void testApprovalModifiedEventEvictsUser() throws Exception {
+        store.getApprovals("u1", "c1");
+        store.onApplicationEvent(new ApprovalModifiedEvent(approval, new UsernamePasswordAuthenticationToken("u1", null)));
+        store.getApprovals("u1", "c1");
+        verify(delegate, times(2)).getApprovals("u1", "c1");
+    }
+
+    @Test
+    public void testAddApprovalEvictsUser() throws Exception {
+        store.getApprovals("u1", "c1");
+        store.addApproval(approval);
+        store.getApprovals("u1", "c1");
+        verify(delegate).addApproval(approval);
+        verify(delegate, times(2)).getApprovals("u1", "c1");
+    }
+
+    @Test
+    public void testRevokeApprovalsClearsCache() throws Exception {
+        store.getApprovals("u1", "c1");
+        store.revokeApprovals("client_id eq \"c1\"");
+        store.getApprovals("u1", "c1");
+        verify(delegate).revokeApprovals("client_id eq \"c1\"");
+        verify(delegate, times(2)).getApprovals("u1", "c1");
+    }
+
+    @Test
+    public void testFilteredQueriesAreNotCached() throws Exception {
+        store.getApprovals("user_id pr");
+        store.getApprovals("user_id pr");
+        verify(delegate, times(2)).getApprovals("user_id pr");
+    }
+
+    @Test
+    public void testCacheCanBeTurnedOff() throws Exception {
+        store.setMaxSize(0);
+        store.afterPropertiesSet();
+        store.getApprovals("u1", "c1");
+        store.getApprovals("u1", "c1");
+        verify(delegate, times(2)).getApprovals("u1", "c1");
+        assertEquals(0, store.getSize());
+    }
+
+}
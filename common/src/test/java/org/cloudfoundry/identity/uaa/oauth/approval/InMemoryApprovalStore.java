@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -62,4 +63,16 @@ public class InMemoryApprovalStore implements ApprovalStore {
         return returnList;
     }
 
+    @Override
+    public List<Approval> getApprovalsForUsers(Collection<String> userIds) {
+        ArrayList<Approval> returnList = new ArrayList<Approval>();
+
+        for (Approval a : store) {
+            if (userIds.contains(a.getUserId())) {
+                returnList.add(a);
+            }
+        }
+        return returnList;
+    }
+
 }
@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.oauth.approval;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -99,6 +100,20 @@ public class JdbcApprovalStoreTests extends JdbcTestBase {
         assertEquals(1, dao.getApprovals("u1", "c1").size());
     }
 
+    @Test
+    public void canGetApprovalsForUsers() {
+        assertEquals(3, dao.getApprovalsForUsers(Arrays.asList("u1", "u2", "u3")).size());
+        assertEquals(2, dao.getApprovalsForUsers(Arrays.asList("u1")).size());
+        assertEquals(0, dao.getApprovalsForUsers(Arrays.<String> asList()).size());
+    }
+
+    @Test
+    public void canGetApprovalsForIdsThatAreNotValidInAFilter() {
+        addApproval("u\"3", "c1", "openid", 6000, APPROVED);
+        assertEquals(1, dao.getApprovals("u\"3", "c1").size());
+        assertEquals(0, dao.getApprovals("u1\" or user_id pr or user_id eq \"", "c1").size());
+    }
+
     @Test
     public void canAddApproval() {
         assertTrue(dao.addApproval(new Approval("u2", "c2", "dash.user", 12000, APPROVED)));
@@ -65,6 +65,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
 /**
@@ -1047,6 +1048,44 @@ public class UaaTokenServicesTests {
         assertEquals(accessToken, tokenServices.readAccessToken(accessToken.getValue()));
     }
 
+    @Test
+    public void testValidateToken() {
+        AuthorizationRequest authorizationRequest =new AuthorizationRequest(CLIENT_ID, requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, AUTHORIZATION_CODE);
+        authorizationRequest.setRequestParameters(azParameters);
+        Authentication userAuthentication = defaultUserAuthentication;
+
+        Calendar expiresAt = Calendar.getInstance();
+        expiresAt.add(Calendar.MILLISECOND, 3000);
+        Calendar updatedAt = Calendar.getInstance();
+        updatedAt.add(Calendar.MILLISECOND, -1000);
+
+        approvalStore.addApproval(new Approval(userId, CLIENT_ID, readScope.get(0), expiresAt.getTime(), ApprovalStatus.APPROVED,updatedAt.getTime()));
+        approvalStore.addApproval(new Approval(userId, CLIENT_ID, writeScope.get(0), expiresAt.getTime(), ApprovalStatus.APPROVED,updatedAt.getTime()));
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), userAuthentication);
+        OAuth2AccessToken accessToken = testCreateAccessTokenForAUser(authentication, false);
+        Map<String, Object> claims = tokenServices.validateToken(accessToken.getValue());
+        assertEquals(CLIENT_ID, claims.get(Claims.CID));
+        assertEquals(userId, claims.get(Claims.USER_ID));
+        assertEquals(accessToken.getAdditionalInformation().get(Claims.JTI), claims.get(Claims.JTI));
+    }
+
+    @Test(expected = InvalidTokenException.class)
+    public void testValidateTokenWithoutApprovals() {
+        AuthorizationRequest authorizationRequest =new AuthorizationRequest(CLIENT_ID, requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, AUTHORIZATION_CODE);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), defaultUserAuthentication);
+        OAuth2AccessToken accessToken = testCreateAccessTokenForAUser(authentication, false);
+        tokenServices.validateToken(accessToken.getValue());
+    }
+
     @Test
     public void testLoadAuthenticationForAUser() {
         AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
@@ -1093,6 +1132,35 @@ public class UaaTokenServicesTests {
         assertNull(loadedAuthentication.getUserAuthentication());
     }
 
+    @Test
+    public void testLoadAuthenticationFromCache() {
+        VerifiedTokenCache tokenCache = new VerifiedTokenCache();
+        tokenCache.afterPropertiesSet();
+        tokenServices.setTokenCache(tokenCache);
+        AuthorizationRequest authorizationRequest = new AuthorizationRequest(CLIENT_ID,requestedAuthScopes);
+        authorizationRequest.setResourceIds(new HashSet<>(resourceIds));
+        Map<String, String> azParameters = new HashMap<>(authorizationRequest.getRequestParameters());
+        azParameters.put(GRANT_TYPE, CLIENT_CREDENTIALS);
+        authorizationRequest.setRequestParameters(azParameters);
+
+        OAuth2Authentication authentication = new OAuth2Authentication(authorizationRequest.createOAuth2Request(), null);
+
+        OAuth2AccessToken accessToken = tokenServices.createAccessToken(authentication);
+        tokenServices.loadAuthentication(accessToken.getValue());
+        OAuth2Authentication loadedAuthentication = tokenServices.loadAuthentication(accessToken.getValue());
+
+        assertEquals(1, tokenCache.getHitCount());
+        assertEquals(CLIENT_ID, loadedAuthentication.getName());
+        assertTrue(loadedAuthentication.isAuthenticated());
+
+        signerProvider.setSigningKey("newkey");
+        try {
+            tokenServices.loadAuthentication(accessToken.getValue());
+            fail();
+        } catch (InvalidTokenException expected) {
+        }
+    }
+
     @Test(expected = InvalidTokenException.class)
     public void testLoadAuthenticationWithAnExpiredToken() throws InterruptedException {
         BaseClientDetails shortExpiryClient = defaultClient;
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.cloudfoundry.identity.uaa.oauth.event.ClientDeleteEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.provider.AuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+public class VerifiedTokenCacheTests {
+
+    private VerifiedTokenCache cache = new VerifiedTokenCache();
+
+    private Object verifier = new Object();
+
+    private OAuth2Authentication authentication;
+
+    @Before
+    public void setUp() {
+        AuthorizationRequest request = new AuthorizationRequest("client", Collections.singleton("read"));
+        authentication = new OAuth2Authentication(request.createOAuth2Request(), null);
+        authentication.setAuthenticated(true);
+        cache.afterPropertiesSet();
+    }
+
+    @Test
+    public void testCachedCopyIsReturned() {
+        cache.put("token", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        OAuth2Authentication result = cache.get("token", verifier);
+        assertNotNull(result);
+        assertNotSame(authentication, result);
+        assertEquals("client", result.getOAuth2Request().getClientId());
+        assertEquals(1, cache.getHitCount());
+        assertNull(cache.get("other", verifier));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredTokenIsNotReturned() throws Exception {
+        cache.put("token", verifier, System.currentTimeMillis() + 100, authentication, "client");
+        Thread.sleep(200);
+        assertNull(cache.get("token", verifier));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testTokenIsNotReturnedAfterKeyRotation() {
+        cache.put("token", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        assertNull(cache.get("token", new Object()));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testClientDeleteEvictsTokens() {
+        cache.put("token", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        cache.put("other", verifier, System.currentTimeMillis() + 60000, authentication, "other");
+        cache.onApplicationEvent(new ClientDeleteEvent(new BaseClientDetails("client", null, null, null, null),
+                        new UsernamePasswordAuthenticationToken("admin", null)));
+        assertNull(cache.get("token", verifier));
+        assertNotNull(cache.get("other", verifier));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        cache.setMaxSize(2);
+        cache.afterPropertiesSet();
+        for (int i = 0; i < 10; i++) {
+            cache.put("token" + i, verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        }
+        assertEquals(2, cache.getSize());
+        assertEquals(8, cache.getEvictionCount());
+        assertNotNull(cache.get("token9", verifier));
+    }
+
+    @Test
+    public void testDisabled() {
+        cache.setMaxSize(0);
+        cache.afterPropertiesSet();
+        cache.put("token", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        assertNull(cache.get("token", verifier));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTokenIsDropped() {
+        cache.setMaxSize(2);
+        cache.afterPropertiesSet();
+        cache.put("token1", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        cache.put("token2", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        assertNotNull(cache.get("token1", verifier));
+        cache.put("token3", verifier, System.currentTimeMillis() + 60000, authentication, "client");
+        assertNotNull(cache.get("token1", verifier));
+        assertNull(cache.get("token2", verifier));
+        assertNotNull(cache.get("token3", verifier));
+    }
+
+}
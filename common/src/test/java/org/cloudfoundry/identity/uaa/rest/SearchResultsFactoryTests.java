@@ -0,0 +1,162 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory.Projection;
+import org.junit.Test;
+import org.springframework.expression.spel.SpelEvaluationException;
+
+public class SearchResultsFactoryTests {
+
+    private final AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.singletonMap(
+                    "emails\\.(.*)", "emails.![$1]"));
+
+    @Test
+    public void testProjectionOfProperties() {
+        Projection projection = SearchResultsFactory.buildProjection(new String[] { "id", "userName", "origin" },
+                        mapper);
+        List<Map<String, Object>> results = projection.project(Arrays.asList(new Resource("1", "joe"),
+                        new Resource("2", "marissa")));
+        assertEquals(2, results.size());
+        assertEquals(Arrays.asList("id", "userName", "origin"), new ArrayList<String>(results.get(0).keySet()));
+        assertEquals("marissa", results.get(1).get("userName"));
+        assertEquals("uaa", results.get(1).get("origin"));
+    }
+
+    @Test
+    public void testProjectionOfExpressions() {
+        Projection projection = SearchResultsFactory.buildProjection(new String[] { "emails.value", "id" }, mapper);
+        Map<String, Object> result = projection.project(Arrays.asList(new Resource("1", "joe"))).get(0);
+        assertEquals(Arrays.asList("joe@test.org"), result.get("emails.value"));
+        assertEquals("1", result.get("id"));
+    }
+
+    @Test
+    public void testProjectionOfNullValue() {
+        Resource resource = new Resource("1", null);
+        Map<String, Object> result = SearchResultsFactory.buildProjection(new String[] { "userName" }, mapper)
+                        .project(Arrays.asList(resource)).get(0);
+        assertNull(result.get("userName"));
+    }
+
+    @Test
+    public void testProjectionIsCached() {
+        Projection projection = SearchResultsFactory.buildProjection(new String[] { "id", "userName" }, mapper);
+        assertSame(projection, SearchResultsFactory.buildProjection(new String[] { "id", "userName" }, mapper));
+    }
+
+    @Test
+    public void testProjectionOfDifferentTypes() {
+        Projection projection = SearchResultsFactory.buildProjection(new String[] { "id" }, null);
+        List<Map<String, Object>> results = projection.project(Arrays.<Object> asList(new Resource("1", "joe"),
+                        new OtherResource("2")));
+        assertEquals("1", results.get(0).get("id"));
+        assertEquals("2", results.get(1).get("id"));
+    }
+
+    @Test(expected = SpelEvaluationException.class)
+    public void testUnknownPropertyFails() {
+        SearchResultsFactory.buildProjection(new String[] { "display" }, null).project(
+                        Arrays.asList(new Resource("1", "joe")));
+    }
+
+    @Test(expected = SpelEvaluationException.class)
+    public void testFailingGetter() {
+        SearchResultsFactory.buildProjection(new String[] { "broken" }, null).project(
+                        Arrays.asList(new Resource("1", "joe")));
+    }
+
+    @Test
+    public void testProjectionOfManyResources() {
+        List<Resource> resources = new ArrayList<Resource>();
+        for (int i = 0; i < 10000; i++) {
+            resources.add(new Resource("" + i, "user" + i));
+        }
+        List<Map<String, Object>> results = SearchResultsFactory.buildProjection(
+                        new String[] { "id", "userName", "origin" }, mapper).project(resources);
+        assertEquals(10000, results.size());
+        assertEquals("user9999", results.get(9999).get("userName"));
+    }
+
+    public static class Resource {
+
+        private final String id;
+
+        private final String userName;
+
+        public Resource(String id, String userName) {
+            this.id = id;
+            this.userName = userName;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getOrigin() {
+            return "uaa";
+        }
+
+        public List<Email> getEmails() {
+            return Arrays.asList(new Email(userName + "@test.org"));
+        }
+
+        public String getBroken() {
+            throw new IllegalStateException("broken");
+        }
+
+    }
+
+    public static class Email {
+
+        private final String value;
+
+        public Email(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+    }
+
+    public static class OtherResource {
+
+        private final String id;
+
+        public OtherResource(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.rest.StreamingResources.ChunkConverter;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamingResourcesTests {
+
+    private List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+
+    private ChunkConverter<Integer, String> converter;
+
+    @Before
+    public void setUp() {
+        converter = new ChunkConverter<Integer, String>() {
+            @Override
+            public List<String> convert(List<Integer> chunk) {
+                chunks.add(new ArrayList<Integer>(chunk));
+                List<String> result = new ArrayList<String>();
+                for (Integer value : chunk) {
+                    result.add("r" + value);
+                }
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void testFirstChunkIsConvertedEagerly() {
+        StreamingResources<Integer, String> resources = new StreamingResources<Integer, String>(Arrays.asList(1, 2,
+                        3, 4, 5), 2, converter);
+        assertEquals(1, chunks.size());
+        assertEquals(5, resources.size());
+        assertEquals(1, chunks.size());
+    }
+
+    @Test
+    public void testChunksAreConvertedWhileIterating() {
+        StreamingResources<Integer, String> resources = new StreamingResources<Integer, String>(Arrays.asList(1, 2,
+                        3, 4, 5), 2, converter);
+        List<String> result = new ArrayList<String>(resources);
+        assertEquals(Arrays.asList("r1", "r2", "r3", "r4", "r5"), result);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5)), chunks);
+    }
+
+    @Test
+    public void testIterateTwice() {
+        StreamingResources<Integer, String> resources = new StreamingResources<Integer, String>(Arrays.asList(1, 2,
+                        3), 2, converter);
+        assertEquals(Arrays.asList("r1", "r2", "r3"), new ArrayList<String>(resources));
+        assertEquals(Arrays.asList("r1", "r2", "r3"), new ArrayList<String>(resources));
+        // the first chunk is only converted once
+        assertEquals(3, chunks.size());
+    }
+
+    @Test
+    public void testEmptySource() {
+        StreamingResources<Integer, String> resources = new StreamingResources<Integer, String>(
+                        Collections.<Integer> emptyList(), 2, converter);
+        assertTrue(resources.isEmpty());
+        assertEquals(0, new ArrayList<String>(resources).size());
+    }
+
+    @Test
+    public void testSerializedAsSearchResults() throws Exception {
+        StreamingResources<Integer, String> resources = new StreamingResources<Integer, String>(Arrays.asList(1, 2,
+                        3), 1, converter);
+        SearchResults<String> results = new SearchResults<String>(Arrays.asList("schema"), resources, 1, 3, 3);
+        StringWriter writer = new StringWriter();
+        new ObjectMapper().writeValue(writer, results);
+        assertTrue(writer.toString(), writer.toString().contains("\"resources\":[\"r1\",\"r2\",\"r3\"]"));
+        assertEquals(3, chunks.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChunkSizeMustBePositive() {
+        new StreamingResources<Integer, String>(Arrays.asList(1), 0, converter);
+    }
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiredRowSweeperTests extends JdbcTestBase {
+
+    private static final String TABLE = "expiring_code_store";
+
+    private ExpiredRowSweeper sweeper;
+
+    @Before
+    public void createSweeper() {
+        sweeper = new ExpiredRowSweeper(TABLE, "code", "expiresat");
+        sweeper.setDataSource(dataSource);
+    }
+
+    @After
+    public void stopSweeper() throws Exception {
+        sweeper.destroy();
+        jdbcTemplate.update("delete from " + TABLE);
+    }
+
+    @Test
+    public void testOnlyExpiredRowsAreDeleted() {
+        insert("expired", System.currentTimeMillis() - 1000);
+        insert("live", System.currentTimeMillis() + 60000);
+        assertEquals(1, sweeper.deleteExpiredRows());
+        assertEquals(1, count());
+        assertEquals(1, jdbcTemplate.queryForInt("select count(*) from " + TABLE + " where code = 'live'"));
+    }
+
+    @Test
+    public void testExpiredRowsAreDeletedInBatches() {
+        sweeper.setSweepBatchSize(10);
+        for (int i = 0; i < 25; i++) {
+            insert("expired" + i, System.currentTimeMillis() - 1000);
+        }
+        assertEquals(25, sweeper.deleteExpiredRows());
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void testSweeperRunsInBackground() throws Exception {
+        insert("expired", System.currentTimeMillis() - 1000);
+        sweeper.setExpirationInterval(10);
+        sweeper.afterPropertiesSet();
+        long deadline = System.currentTimeMillis() + 5000;
+        int count;
+        do {
+            Thread.sleep(10);
+            count = count();
+        } while (count > 0 && System.currentTimeMillis() < deadline);
+        assertEquals(0, count);
+    }
+
+    @Test
+    public void testNoSweeperWithoutInterval() throws Exception {
+        insert("expired", System.currentTimeMillis() - 1000);
+        sweeper.setExpirationInterval(0);
+        sweeper.afterPropertiesSet();
+        Thread.sleep(100);
+        assertEquals(1, count());
+    }
+
+    private void insert(String code, long expiresAt) {
+        jdbcTemplate.update("insert into " + TABLE + " (code, expiresat, data) values (?,?,?)", code, expiresAt, "{}");
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForInt("select count(*) from " + TABLE);
+    }
+
+}
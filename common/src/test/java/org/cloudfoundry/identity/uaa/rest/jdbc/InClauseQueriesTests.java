@@ -0,0 +1,88 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+@SuppressWarnings("unchecked")
+public class InClauseQueriesTests {
+
+    private static final String SQL = "select id from users where id in (:ids)";
+
+    private NamedParameterJdbcTemplate template = mock(NamedParameterJdbcTemplate.class);
+
+    private List<Integer> chunkSizes = new ArrayList<Integer>();
+
+    private RowMapper<String> rowMapper = mock(RowMapper.class);
+
+    @Test
+    public void testIdsAreQueriedInChunks() {
+        when(template.query(eq(SQL), anyMap(), eq(rowMapper))).thenAnswer(
+                        new Answer<List<String>>() {
+                            @Override
+                            public List<String> answer(InvocationOnMock invocation) {
+                                List<String> ids = (List<String>) ((Map<String, ?>) invocation.getArguments()[1])
+                                                .get("ids");
+                                chunkSizes.add(ids.size());
+                                return new ArrayList<String>(ids);
+                            }
+                        });
+        List<String> result = InClauseQueries.queryInChunks(template, SQL, ids(250), rowMapper);
+        assertEquals(250, result.size());
+        assertEquals("id0", result.get(0));
+        assertEquals("id249", result.get(249));
+        assertEquals("[100, 100, 50]", chunkSizes.toString());
+    }
+
+    @Test
+    public void testExactMultipleHasNoEmptyChunk() {
+        InClauseQueries.queryInChunks(template, SQL, ids(200), mock(RowCallbackHandler.class));
+        verify(template, times(2)).query(eq(SQL), anyMap(), any(RowCallbackHandler.class));
+    }
+
+    @Test
+    public void testNoIdsRunNoQuery() {
+        assertEquals(0, InClauseQueries.queryInChunks(template, SQL, Collections.<String> emptyList(), rowMapper)
+                        .size());
+        verify(template, never()).query(eq(SQL), anyMap(), eq(rowMapper));
+    }
+
+    private List<String> ids(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add("id" + i);
+        }
+        return ids;
+    }
+
+}
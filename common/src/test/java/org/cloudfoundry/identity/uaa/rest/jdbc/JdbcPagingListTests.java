@@ -12,6 +12,8 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.rest.jdbc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -20,6 +22,8 @@ import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.junit.After;
 import org.junit.Before;
@@ -157,4 +161,51 @@ public class JdbcPagingListTests extends JdbcTestBase {
         assertEquals(3, count); // count is less than original size estimate
     }
 
+    @Test
+    public void testKeysetPagesByKey() throws Exception {
+        JdbcPagingListFactory factory = new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter);
+        List<Object> ids = new ArrayList<Object>();
+        KeysetCursor after = null;
+        int pages = 0;
+        do {
+            KeysetPage<Map<String, Object>> page = factory.createKeysetPage("SELECT * from foo where id>=:id",
+                            Collections.<String, Object> singletonMap("id", 0), null, "id", true, after,
+                            new ColumnMapRowMapper(), 2);
+            for (Map<String, Object> map : page.getResources()) {
+                ids.add(map.get("id"));
+            }
+            after = page.getNextCursor() == null ? null : KeysetCursor.decode(page.getNextCursor());
+            pages++;
+        } while (after != null);
+        assertEquals(3, pages);
+        assertEquals(Arrays.<Object> asList(0, 1, 2, 3, 4), ids);
+    }
+
+    @Test
+    public void testKeysetPagesBySortColumnWithTies() throws Exception {
+        jdbcTemplate.execute("insert into foo (id, name) values (5, 'bar')");
+        JdbcPagingListFactory factory = new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter);
+        List<Object> ids = new ArrayList<Object>();
+        String cursor = null;
+        do {
+            KeysetPage<Map<String, Object>> page = factory.createKeysetPage("SELECT * from foo",
+                            Collections.<String, Object> emptyMap(), "name", "id", false,
+                            cursor == null ? null : KeysetCursor.decode(cursor), new ColumnMapRowMapper(), 2);
+            for (Map<String, Object> map : page.getResources()) {
+                ids.add(map.get("id"));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(Arrays.<Object> asList(3, 4, 0, 2, 5, 1), ids);
+    }
+
+    @Test
+    public void testKeysetLastPageHasNoCursor() throws Exception {
+        JdbcPagingListFactory factory = new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter);
+        KeysetPage<Map<String, Object>> page = factory.createKeysetPage("SELECT * from foo",
+                        Collections.<String, Object> emptyMap(), null, "id", true, null, new ColumnMapRowMapper(), 5);
+        assertEquals(5, page.getResources().size());
+        assertNull(page.getNextCursor());
+    }
+
 }
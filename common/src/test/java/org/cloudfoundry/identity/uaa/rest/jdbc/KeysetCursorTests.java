@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+public class KeysetCursorTests {
+
+    @Test
+    public void testStringValuesSurviveEncoding() {
+        KeysetCursor cursor = KeysetCursor.decode(new KeysetCursor("userName", true, "joe:12\n", "abc").encode());
+        assertEquals("userName", cursor.getSortColumn());
+        assertTrue(cursor.isAscending());
+        assertEquals("joe:12\n", cursor.getSortValue());
+        assertEquals("abc", cursor.getKey());
+    }
+
+    @Test
+    public void testTimestampKeepsNanos() {
+        Timestamp created = new Timestamp(1400000000123L);
+        created.setNanos(123456789);
+        KeysetCursor cursor = KeysetCursor.decode(new KeysetCursor("created", false, created, "abc").encode());
+        assertEquals(created, cursor.getSortValue());
+        assertFalse(cursor.isAscending());
+    }
+
+    @Test
+    public void testKeyOnly() {
+        KeysetCursor cursor = KeysetCursor.decode(new KeysetCursor(null, true, null, 42).encode());
+        assertNull(cursor.getSortColumn());
+        assertNull(cursor.getSortValue());
+        assertEquals(new BigDecimal(42), cursor.getKey());
+    }
+
+    @Test
+    public void testMatchesSameSortOnly() {
+        KeysetCursor cursor = new KeysetCursor("userName", true, "joe", "abc");
+        assertTrue(cursor.matches("username", true));
+        assertFalse(cursor.matches("username", false));
+        assertFalse(cursor.matches("email", true));
+        assertFalse(cursor.matches(null, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCursor() {
+        KeysetCursor.decode("not-a-cursor");
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.rest.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.jdbc.SearchQueryConverter.ProcessedFilter;
+import org.junit.Test;
+
+public class SimpleSearchQueryConverterTests {
+
+    private SimpleSearchQueryConverter converter = new SimpleSearchQueryConverter();
+
+    @Test
+    public void testSameShapeBindsNewValues() throws Exception {
+        ProcessedFilter first = converter.convert("userName eq \"joe\" and origin co \"uaa\"", null, false);
+        ProcessedFilter second = converter.convert("userName eq \"marissa\" and origin co \"ldap\"", null, false);
+        assertEquals(first.getSql(), second.getSql());
+        assertEquals("(LOWER(userName) = LOWER(:__value_0) AND LOWER(origin) LIKE LOWER(:__value_1))", second.getSql());
+        assertEquals("marissa", second.getParams().get("__value_0"));
+        assertEquals("%ldap%", second.getParams().get("__value_1"));
+        assertEquals("joe", first.getParams().get("__value_0"));
+    }
+
+    @Test
+    public void testDatesAndStringsAreDifferentShapes() throws Exception {
+        ProcessedFilter string = converter.convert("meta.created gt \"yesterday\"", null, false);
+        ProcessedFilter date = converter.convert("meta.created gt \"1970-01-01T00:00:00.000Z\"", null, false);
+        assertEquals("LOWER(created) > LOWER(:__value_0)", string.getSql());
+        assertEquals("created > :__value_0", date.getSql());
+        assertTrue(date.getParams().get("__value_0") instanceof Date);
+    }
+
+    @Test
+    public void testUnquotedValuesAreBound() throws Exception {
+        converter.convert("meta.version eq 0", null, false);
+        ProcessedFilter filter = converter.convert("meta.version eq 1", null, false);
+        assertEquals("version = :__value_0", filter.getSql());
+        assertEquals(1.0, filter.getParams().get("__value_0"));
+    }
+
+    @Test
+    public void testSortOrderIsPartOfTheShape() throws Exception {
+        assertEquals("LOWER(userName) = LOWER(:__value_0) ORDER BY userName ASC",
+                        converter.convert("userName eq \"joe\"", "userName", true).getSql());
+        assertEquals("LOWER(userName) = LOWER(:__value_0) ORDER BY userName DESC",
+                        converter.convert("userName eq \"joe\"", "userName", false).getSql());
+        assertEquals("LOWER(userName) = LOWER(:__value_0) ORDER BY id DESC",
+                        converter.convert("userName eq \"joe\"", "id", false).getSql());
+        assertEquals("LOWER(userName) = LOWER(:__value_0)",
+                        converter.convert("userName eq \"joe\"", null, false).getSql());
+    }
+
+    @Test
+    public void testEscapedValuesAreUnescaped() throws Exception {
+        converter.convert("userName eq \"joe\"", null, false);
+        ProcessedFilter filter = converter.convert("userName eq \"jo\\\"e\"", null, false);
+        assertEquals("jo\"e", filter.getParams().get("__value_0"));
+        filter = converter.convert("userName eq \"jo\\\"e\"", null, false);
+        assertEquals("jo\"e", filter.getParams().get("__value_0"));
+    }
+
+    @Test
+    public void testLegacyFiltersAreConverted() throws Exception {
+        converter.convert("userName eq 'joe'", null, false);
+        ProcessedFilter filter = converter.convert("userName eq 'marissa'", null, false);
+        assertEquals("LOWER(userName) = LOWER(:__value_0)", filter.getSql());
+        assertEquals("marissa", filter.getParams().get("__value_0"));
+    }
+
+    @Test
+    public void testValuesContainingTheParameterPrefix() throws Exception {
+        ProcessedFilter filter = converter.convert("userName eq \"__value_0\"", null, false);
+        assertNotEquals("__value_", filter.getParamPrefix());
+        assertEquals("__value_0", filter.getParams().get(filter.getParamPrefix() + "0"));
+    }
+
+    @Test
+    public void testMapperChangeIsApplied() throws Exception {
+        converter.convert("emails.value eq \"joe@test.org\"", null, false);
+        converter.setAttributeNameMapper(new SimpleAttributeNameMapper(Collections.singletonMap("emails\\.value", "email")));
+        assertEquals("LOWER(email) = LOWER(:__value_0)",
+                        converter.convert("emails.value eq \"marissa@test.org\"", null, false).getSql());
+    }
+
+    @Test
+    public void testCacheCanBeTurnedOff() throws Exception {
+        converter.setMaxCachedFilters(0);
+        converter.convert("userName eq \"joe\"", null, false);
+        ProcessedFilter filter = converter.convert("userName eq \"marissa\"", null, false);
+        assertEquals("LOWER(userName) = LOWER(:__value_0)", filter.getSql());
+        assertEquals("marissa", filter.getParams().get("__value_0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFilterIsRejectedEveryTime() throws Exception {
+        try {
+            converter.convert("userName eq joe", null, false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        converter.convert("userName eq joe", null, false);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.user;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.GroupModifiedEvent;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserModifiedEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+public class CachingUaaUserDatabaseTests {
+
+    private UaaUserDatabase delegate = mock(UaaUserDatabase.class);
+
+    private CachingUaaUserDatabase database = new CachingUaaUserDatabase(delegate);
+
+    private UaaUser joe = user("1", "joe");
+
+    @Before
+    public void setUp() throws Exception {
+        database.afterPropertiesSet();
+        when(delegate.retrieveUserById("1")).thenReturn(joe);
+        when(delegate.retrieveUserByName("joe", "uaa")).thenReturn(joe);
+        when(delegate.retrieveUserByName("Joe", "uaa")).thenReturn(joe);
+    }
+
+    @Test
+    public void testUsersAreCachedById() throws Exception {
+        assertEquals("joe", database.retrieveUserById("1").getUsername());
+        assertEquals("joe", database.retrieveUserById("1").getUsername());
+        verify(delegate, times(1)).retrieveUserById("1");
+        assertEquals(1, database.getHitCount());
+        assertEquals(1, database.getMissCount());
+        assertEquals(0.5, database.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testUsersAreCachedByName() throws Exception {
+        database.retrieveUserByName("joe", "uaa");
+        database.retrieveUserByName("joe", "uaa");
+        database.retrieveUserById("1");
+        verify(delegate, times(1)).retrieveUserByName("joe", "uaa");
+        verify(delegate, times(0)).retrieveUserById("1");
+    }
+
+    @Test
+    public void testUserNameIsNotCaseSensitive() throws Exception {
+        database.retrieveUserByName("joe", "uaa");
+        assertEquals("1", database.retrieveUserByName("Joe", "uaa").getId());
+        verify(delegate, times(0)).retrieveUserByName("Joe", "uaa");
+    }
+
+    @Test
+    public void testUsersAreCachedPerOrigin() throws Exception {
+        when(delegate.retrieveUserByName("joe", "ldap")).thenThrow(new UsernameNotFoundException("joe"));
+        database.retrieveUserByName("joe", "uaa");
+        try {
+            database.retrieveUserByName("joe", "ldap");
+            fail("Expected UsernameNotFoundException");
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingUsersAreNotCached() throws Exception {
+        when(delegate.retrieveUserById("2")).thenThrow(new UsernameNotFoundException("2"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                database.retrieveUserById("2");
+                fail("Expected UsernameNotFoundException");
+            } catch (UsernameNotFoundException e) {
+                // expected
+            }
+        }
+        verify(delegate, times(2)).retrieveUserById("2");
+    }
+
+    @Test
+    public void testCallersCannotModifyTheCache() throws Exception {
+        UaaUser user = database.retrieveUserById("1");
+        assertNotSame(joe, user);
+        user.setVerified(false);
+        assertTrue(database.retrieveUserById("1").isVerified());
+    }
+
+    @Test
+    public void testUserModifiedEventEvictsUser() throws Exception {
+        database.retrieveUserByName("joe", "uaa");
+        database.log(event(UserModifiedEvent, "1"));
+        database.retrieveUserByName("joe", "uaa");
+        verify(delegate, times(2)).retrieveUserByName("joe", "uaa");
+    }
+
+    @Test
+    public void testPasswordChangeEvictsUser() throws Exception {
+        database.retrieveUserById("1");
+        database.log(event(PasswordChangeSuccess, "1"));
+        database.retrieveUserById("1");
+        verify(delegate, times(2)).retrieveUserById("1");
+    }
+
+    @Test
+    public void testRenamedUserIsNotFoundByOldName() throws Exception {
+        database.retrieveUserByName("joe", "uaa");
+        UaaUser renamed = user("1", "joseph");
+        when(delegate.retrieveUserById("1")).thenReturn(renamed);
+        database.log(event(UserModifiedEvent, "1"));
+        assertEquals("joseph", database.retrieveUserById("1").getUsername());
+        when(delegate.retrieveUserByName("joe", "uaa")).thenThrow(new UsernameNotFoundException("joe"));
+        try {
+            database.retrieveUserByName("joe", "uaa");
+            fail("Expected UsernameNotFoundException");
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGroupChangeClearsCache() throws Exception {
+        database.retrieveUserById("1");
+        database.log(event(GroupModifiedEvent, "g1"));
+        assertEquals(0, database.getSize());
+    }
+
+    @Test
+    public void testOtherEventsAreIgnored() throws Exception {
+        database.retrieveUserById("1");
+        database.log(event(UserAuthenticationSuccess, "1"));
+        assertEquals(1, database.getSize());
+    }
+
+    @Test
+    public void testCacheCanBeTurnedOff() throws Exception {
+        database.setMaxSize(0);
+        database.afterPropertiesSet();
+        database.retrieveUserById("1");
+        database.retrieveUserById("1");
+        verify(delegate, times(2)).retrieveUserById("1");
+        assertEquals(0, database.getSize());
+    }
+
+    private AuditEvent event(AuditEventType type, String principalId) {
+        return new AuditEvent(type, principalId, "", "", System.currentTimeMillis());
+    }
+
+    private static UaaUser user(String id, String username) {
+        Date now = new Date();
+        return new UaaUser(id, username, "password", username + "@test.org",
+                        AuthorityUtils.commaSeparatedStringToAuthorityList("uaa.user"), username, username, now, now,
+                        "uaa", null, true);
+    }
+
+}
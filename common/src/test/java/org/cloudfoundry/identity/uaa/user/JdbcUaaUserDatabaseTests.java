@@ -12,11 +12,15 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.user;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
@@ -24,6 +28,7 @@ import org.cloudfoundry.identity.uaa.test.TestUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
@@ -39,6 +44,8 @@ public class JdbcUaaUserDatabaseTests extends JdbcTestBase {
 
     private static final String addAuthoritySql = "update users set authorities=? where id=?";
 
+    private static final String AUTHORITIES_QUERY = "select g.displayName from groups g, group_membership m where g.id = m.group_id and m.member_id = ?";
+
     private static final String MABEL_ID = UUID.randomUUID().toString();
 
     private JdbcTemplate template;
@@ -110,4 +117,74 @@ public class JdbcUaaUserDatabaseTests extends JdbcTestBase {
                         joe.getAuthorities().contains(new SimpleGrantedAuthority("dash.admin")));
     }
 
+    @Test
+    public void getUserWithGroupsInOneQuery() {
+        addGroupMember("g1", "openid", JOE_ID, "USER");
+        addGroupMember("g2", "cloud_controller.read", JOE_ID, "USER");
+        db.setUserAuthoritiesQuery(AUTHORITIES_QUERY);
+        Set<String> separate = names(db.retrieveUserByName("joe", Origin.UAA));
+        db.setLoadGroupsWithUser(true);
+        UaaUser joe = db.retrieveUserByName("joe", Origin.UAA);
+        assertEquals(JOE_ID, joe.getId());
+        assertEquals("joe@test.org", joe.getEmail());
+        assertEquals(separate, names(joe));
+        assertEquals(new HashSet<String>(Arrays.asList("uaa.user", "openid", "cloud_controller.read")), names(joe));
+        assertEquals(names(joe), names(db.retrieveUserById(JOE_ID)));
+    }
+
+    @Test
+    public void getUserWithoutGroupsInOneQuery() {
+        db.setLoadGroupsWithUser(true);
+        assertEquals(Collections.singleton("uaa.user"), names(db.retrieveUserByName("mabel", Origin.UAA)));
+    }
+
+    @Test(expected = UsernameNotFoundException.class)
+    public void getNonExistentUserInOneQueryRaisesNotFoundException() {
+        db.setLoadGroupsWithUser(true);
+        db.retrieveUserByName("jo", Origin.UAA);
+    }
+
+    @Test
+    public void nestedGroupsAreOnlyIncludedWhenRequested() {
+        addGroupMember("g1", "openid", JOE_ID, "USER");
+        addGroupMember("g2", "scim.read", "g1", "GROUP");
+        addGroupMember("g3", "scim.write", "g2", "GROUP");
+        // a cycle must not stop the resolution
+        addGroupMember("g1", "openid", "g3", "GROUP");
+        db.setLoadGroupsWithUser(true);
+        assertEquals(new HashSet<String>(Arrays.asList("uaa.user", "openid")),
+                        names(db.retrieveUserByName("joe", Origin.UAA)));
+        db.setIncludeNestedGroups(true);
+        assertEquals(new HashSet<String>(Arrays.asList("uaa.user", "openid", "scim.read", "scim.write")),
+                        names(db.retrieveUserByName("joe", Origin.UAA)));
+    }
+
+    @Test
+    public void authoritiesAreSharedBetweenUsers() {
+        addGroupMember("g1", "openid", JOE_ID, "USER");
+        addGroupMember("g1", "openid", MABEL_ID, "USER");
+        db.setLoadGroupsWithUser(true);
+        UaaUser joe = db.retrieveUserByName("joe", Origin.UAA);
+        UaaUser mabel = db.retrieveUserByName("mabel", Origin.UAA);
+        for (GrantedAuthority authority : joe.getAuthorities()) {
+            assertSame(authority, mabel.getAuthorities().get(mabel.getAuthorities().indexOf(authority)));
+        }
+    }
+
+    private void addGroupMember(String groupId, String displayName, String memberId, String type) {
+        if (template.queryForInt("select count(*) from groups where id=?", groupId) == 0) {
+            template.update("insert into groups (id, displayName) values (?,?)", groupId, displayName);
+        }
+        template.update("insert into group_membership (group_id, member_id, member_type, authorities, origin) values (?,?,?,?,?)",
+                        groupId, memberId, type, "READ", Origin.UAA);
+    }
+
+    private Set<String> names(UaaUser user) {
+        Set<String> names = new HashSet<String>();
+        for (GrantedAuthority authority : user.getAuthorities()) {
+            names.add(authority.getAuthority());
+        }
+        return names;
+    }
+
 }
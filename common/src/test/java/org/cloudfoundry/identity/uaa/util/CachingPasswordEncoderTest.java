@@ -14,7 +14,7 @@ package org.cloudfoundry.identity.uaa.util;
 
 import java.lang.reflect.Field;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -131,17 +131,19 @@ public class CachingPasswordEncoderTest  {
         String password = new RandomValueStringGenerator().generate();
         String encoded = cachingPasswordEncoder.encode(password);
         assertTrue(cachingPasswordEncoder.matches(password, encoded));
-        //overflow happened
-        assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
+        //overflow only evicted the least recently used key
+        assertEquals(maxkeys, cachingPasswordEncoder.getNumberOfKeys());
+        assertEquals(1, cachingPasswordEncoder.getEvictionCount());
 
-        for (int j=0; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
+        String oldest = encoded;
+        for (int j=1; j<cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
             encoded = cachingPasswordEncoder.encode(password);
             assertTrue(cachingPasswordEncoder.matches(password, encoded));
         }
 
         Field field = ReflectionUtils.findField(cachingPasswordEncoder.getClass(), "cache");
         field.setAccessible(true);
-        ConcurrentHashMap<CharSequence, Set<String>> cache = (ConcurrentHashMap<CharSequence, Set<String>>)ReflectionUtils.getField(
+        ExpiringLruCache<String, Set<String>> cache = (ExpiringLruCache<String, Set<String>>)ReflectionUtils.getField(
             field,
             cachingPasswordEncoder
         );
@@ -149,8 +151,78 @@ public class CachingPasswordEncoderTest  {
         Set<String> passwords = cache.get(cachingPasswordEncoder.cacheEncode(password));
         assertNotNull(passwords);
         assertEquals(maxpasswords, passwords.size());
-        cachingPasswordEncoder.matches(password, cachingPasswordEncoder.encode(password));
-        assertEquals(0, passwords.size());
+        String newest = cachingPasswordEncoder.encode(password);
+        cachingPasswordEncoder.matches(password, newest);
+        //only the oldest encoded password was dropped
+        assertEquals(maxpasswords, passwords.size());
+        assertTrue(passwords.contains(newest));
+        assertFalse(passwords.contains(oldest));
+    }
+
+    @Test
+    public void testHitAndMissCounts() throws Exception {
+        String password = new RandomValueStringGenerator().generate();
+        String encoded = cachingPasswordEncoder.encode(password);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertFalse(cachingPasswordEncoder.matches("wrong", encoded));
+        assertEquals(1, cachingPasswordEncoder.getHitCount());
+        assertEquals(2, cachingPasswordEncoder.getMissCount());
+        cachingPasswordEncoder.clear();
+        assertEquals(0, cachingPasswordEncoder.getNumberOfKeys());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        cachingPasswordEncoder.setTimeToLiveSeconds(1);
+        String password = new RandomValueStringGenerator().generate();
+        String encoded = cachingPasswordEncoder.encode(password);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        Thread.sleep(1100);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertEquals(0, cachingPasswordEncoder.getHitCount());
+        assertEquals(2, cachingPasswordEncoder.getMissCount());
+    }
+
+    @Test
+    public void testConcurrentMatches() throws Exception {
+        final int threads = 4;
+        final int iterations = 100;
+        final String[] passwords = new String[4];
+        final String[] encoded = new String[passwords.length];
+        for (int i = 0; i < passwords.length; i++) {
+            passwords[i] = new RandomValueStringGenerator().generate();
+            encoded[i] = cachingPasswordEncoder.encode(passwords[i]);
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        int index = (offset + i) % passwords.length;
+                        if (!cachingPasswordEncoder.matches(passwords[index], encoded[index])) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long time = System.nanoTime() - start;
+        assertEquals(0, failures.get());
+        assertEquals(passwords.length, cachingPasswordEncoder.getNumberOfKeys());
+        assertEquals(threads * iterations, cachingPasswordEncoder.getHitCount() + cachingPasswordEncoder.getMissCount());
+        System.out.println("CachingPasswordEncoder - " + threads + " threads, " + (threads * iterations)
+            + " concurrent matches: " + ((double)time / 1000000000.0) + " sec.");
     }
 
 
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ExpiringLruCacheTests {
+
+    @Test
+    public void testPutAndGet() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 0);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals("1", cache.remove("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 0);
+        assertNull(cache.putIfAbsent("a", "1"));
+        assertEquals("1", cache.putIfAbsent("a", "2"));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<Integer, String>(2, 0, 1);
+        cache.put(1, "1");
+        cache.put(2, "2");
+        cache.get(1);
+        cache.put(3, "3");
+        assertEquals("1", cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<Integer, String>(100, 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "value");
+        }
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 100);
+        cache.put("a", "1");
+        cache.put("b", "2", System.currentTimeMillis() + 10000);
+        Thread.sleep(200);
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testRemoveValues() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 0);
+        cache.put("a", "x");
+        cache.put("b", "y");
+        cache.put("c", "x");
+        int removed = cache.removeValues(new ExpiringLruCache.Filter<String>() {
+            @Override
+            public boolean matches(String value) {
+                return "x".equals(value);
+            }
+        });
+        assertEquals(2, removed);
+        assertEquals("y", cache.get("b"));
+    }
+
+}
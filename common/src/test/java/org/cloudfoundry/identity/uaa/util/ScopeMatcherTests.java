@@ -0,0 +1,112 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.springframework.util.StringUtils;
+
+public class ScopeMatcherTests {
+
+    @Test
+    public void testExactScopes() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("openid", "uaa.admin"));
+        assertTrue(matcher.matches("openid"));
+        assertTrue(matcher.matches("uaa.admin"));
+        assertFalse(matcher.matches("uaa"));
+        assertFalse(matcher.matches("uaa.admin.x"));
+        assertFalse(matcher.matches("uaaXadmin"));
+    }
+
+    @Test
+    public void testWildcardMatchesOneSegment() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("space.*.developer"));
+        assertTrue(matcher.matches("space.123.developer"));
+        assertFalse(matcher.matches("space..developer"));
+        assertFalse(matcher.matches("space.1.2.developer"));
+        assertFalse(matcher.matches("space.123.manager"));
+    }
+
+    @Test
+    public void testTrailingWildcard() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("uaa.*"));
+        assertTrue(matcher.matches("uaa.user"));
+        assertFalse(matcher.matches("uaa."));
+        assertFalse(matcher.matches("uaa"));
+        assertFalse(matcher.matches("uaa.user.x"));
+    }
+
+    @Test
+    public void testWildcardWithinSegment() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("app*.read", "cloud_controller.*"));
+        assertTrue(matcher.matches("app1.read"));
+        assertFalse(matcher.matches("app.read"));
+        assertFalse(matcher.matches("other.read"));
+        assertTrue(matcher.matches("cloud_controller.write"));
+    }
+
+    @Test
+    public void testRegexCharactersAreLiteral() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("a+b.*", "c?"));
+        assertTrue(matcher.matches("a+b.x"));
+        assertFalse(matcher.matches("aab.x"));
+        assertTrue(matcher.matches("c?"));
+        assertFalse(matcher.matches("c"));
+    }
+
+    @Test
+    public void testMatchersAreCachedByScopes() {
+        ScopeMatcher matcher = ScopeMatcher.of(Arrays.asList("uaa.*", "openid"));
+        assertSame(matcher, ScopeMatcher.of(new HashSet<String>(Arrays.asList("openid", "uaa.*"))));
+    }
+
+    @Test
+    public void testSameResultsAsRegularExpressions() {
+        Random random = new Random(42);
+        String[] segments = { "uaa", "admin", "*", "a*", "*b", "ab", "", "x.y" };
+        for (int round = 0; round < 200; round++) {
+            Set<String> scopes = new HashSet<String>();
+            for (int i = 0; i < 10; i++) {
+                scopes.add(scope(random, segments));
+            }
+            ScopeMatcher matcher = ScopeMatcher.of(scopes);
+            Set<Pattern> patterns = UaaStringUtils.constructWildcards(scopes);
+            for (int i = 0; i < 50; i++) {
+                String scope = scope(random, segments).replace("*", "q");
+                assertEquals(scopes + " " + scope, UaaStringUtils.matches(patterns, scope), matcher.matches(scope));
+            }
+        }
+    }
+
+    private String scope(Random random, String[] segments) {
+        List<String> parts = new ArrayList<String>();
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            parts.add(segments[random.nextInt(segments.length)]);
+        }
+        return StringUtils.collectionToDelimitedString(parts, ".");
+    }
+
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.cloudfoundry.identity.uaa.authentication.AuthenticationThrottledException;
+import org.junit.Test;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+public class ThrottledPasswordEncoderTests {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch finish = new CountDownLatch(1);
+
+    /**
+     * Blocks in matches() until the test lets it finish.
+     */
+    private final PasswordEncoder slowEncoder = new PasswordEncoder() {
+        @Override
+        public String encode(CharSequence rawPassword) {
+            return rawPassword.toString();
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return rawPassword.toString().equals(encodedPassword);
+        }
+    };
+
+    @Test
+    public void testUnlimitedByDefault() throws Exception {
+        ThrottledPasswordEncoder encoder = new ThrottledPasswordEncoder(slowEncoder);
+        finish.countDown();
+        assertTrue(encoder.matches("secret", "secret"));
+        assertFalse(encoder.matches("secret", "other"));
+        assertEquals(2, encoder.getHashCount());
+        assertEquals(-1, encoder.getAvailableSlots());
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        final ThrottledPasswordEncoder encoder = new ThrottledPasswordEncoder(slowEncoder);
+        encoder.setMaxConcurrent(1);
+        encoder.setQueueTimeoutMillis(50);
+        Thread busy = new Thread() {
+            @Override
+            public void run() {
+                encoder.matches("secret", "secret");
+            }
+        };
+        busy.start();
+        started.await();
+        assertEquals(0, encoder.getAvailableSlots());
+        try {
+            encoder.matches("secret", "secret");
+            fail("Expected AuthenticationThrottledException");
+        } catch (AuthenticationThrottledException e) {
+            // expected
+        }
+        assertEquals(1, encoder.getRejectedCount());
+        assertTrue(encoder.getAverageWaitMillis() > 0);
+        finish.countDown();
+        busy.join();
+        assertEquals(1, encoder.getAvailableSlots());
+        assertTrue(encoder.matches("secret", "secret"));
+        assertEquals(2, encoder.getHashCount());
+    }
+
+    @Test
+    public void testWaitsForATurn() throws Exception {
+        final ThrottledPasswordEncoder encoder = new ThrottledPasswordEncoder(slowEncoder);
+        encoder.setMaxConcurrent(1);
+        encoder.setQueueTimeoutMillis(5000);
+        Thread busy = new Thread() {
+            @Override
+            public void run() {
+                encoder.matches("secret", "secret");
+            }
+        };
+        busy.start();
+        started.await();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finish.countDown();
+            }
+        }.start();
+        assertTrue(encoder.matches("secret", "secret"));
+        busy.join();
+        assertEquals(0, encoder.getRejectedCount());
+        assertEquals(2, encoder.getHashCount());
+    }
+
+}
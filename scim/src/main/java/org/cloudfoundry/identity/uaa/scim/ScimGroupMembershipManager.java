@@ -12,7 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.cloudfoundry.identity.uaa.rest.Queryable;
@@ -66,6 +68,27 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> getGroupsWithMember(String memberId, boolean transitive) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve all groups that the given member belongs to, directly or
+     * through nested groups, in one call
+     * 
+     * @param memberId
+     * @return the groups, each with whether the member belongs to it directly
+     * @throws ScimResourceNotFoundException
+     */
+    Map<ScimGroup, ScimUser.Group.Type> getGroupsWithMemberByType(String memberId) throws ScimResourceNotFoundException;
+
+    /**
+     * Retrieve all groups that each of the given users belongs to, directly
+     * or through nested groups, in a few queries however many users there
+     * are. The default user groups are included for every id.
+     * 
+     * @param userIds ids of existing users
+     * @return the groups of each user, each with whether the user belongs to
+     *         it directly
+     */
+    Map<String, Map<ScimGroup, ScimUser.Group.Type>> getGroupsWithUsersByType(Collection<String> userIds);
+
     /**
      * Retrieve a particular member's membership details
      * 
@@ -12,8 +12,20 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.cloudfoundry.identity.uaa.rest.Queryable;
 import org.cloudfoundry.identity.uaa.rest.ResourceManager;
 
 public interface ScimGroupProvisioning extends ResourceManager<ScimGroup>, Queryable<ScimGroup> {
+
+    /**
+     * Retrieve several groups at once
+     * 
+     * @param ids the group ids
+     * @return the groups that exist, in no particular order
+     */
+    List<ScimGroup> retrieve(Collection<String> ids);
+
 }
@@ -16,8 +16,13 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.error.ConvertingExceptionView;
 import org.cloudfoundry.identity.uaa.error.ExceptionReport;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory.Projection;
+import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources.ChunkConverter;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupExternalMember;
@@ -55,6 +60,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -75,6 +82,8 @@ public class ScimGroupEndpoints {
     private HttpMessageConverter<?>[] messageConverters = new RestTemplate().getMessageConverters().toArray(
                     new HttpMessageConverter<?>[0]);
 
+    private int streamingThreshold = 0;
+
     private final Log logger = LogFactory.getLog(getClass());
 
     private SecurityContextAccessor securityContextAccessor = new DefaultSecurityContextAccessor();
@@ -91,6 +100,16 @@ public class ScimGroupEndpoints {
         this.messageConverters = messageConverters;
     }
 
+    /**
+     * @param streamingThreshold pages with more groups than this are
+     *            converted and written out in chunks of this size, 0 to always
+     *            build the whole page in memory (the default). Only applies to
+     *            clients, the groups of a user are filtered by membership.
+     */
+    public void setStreamingThreshold(int streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
     public JdbcScimGroupExternalMembershipManager getExternalMembershipManager() {
         return externalMembershipManager;
     }
@@ -136,6 +155,18 @@ public class ScimGroupEndpoints {
         return response;
     }
 
+    public SearchResults<?> listGroups(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) {
+        return listGroups(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * @param cursor if present, page by cursor instead of by start index: the
+     *            results do not include a total and include a next cursor to
+     *            send back for the next page, unless this is the last page. A
+     *            user only gets the groups they can read, so a page may hold
+     *            fewer than count groups even if it is not the last one.
+     */
     @RequestMapping(value = { "/Groups" }, method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listGroups(
@@ -144,33 +175,87 @@ public class ScimGroupEndpoints {
                     @RequestParam(required = false, defaultValue = "created") String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
-
-        List<ScimGroup> result;
-        try {
-            result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
-        } catch (IllegalArgumentException e) {
-            throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
+
+        String userId = securityContextAccessor.isUser() ? securityContextAccessor.getUserId() : null;
+        List<ScimGroup> input;
+        int total;
+        String nextCursor = null;
+        if (cursor != null) {
+            startIndex = 1;
+            KeysetPage<ScimGroup> page;
+            try {
+                page = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder), cursor, count);
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter, sortBy or cursor: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+            input = filterForCurrentUser(page.getResources(), 1, count, userId);
+            nextCursor = page.getNextCursor();
+            total = SearchResults.UNKNOWN_TOTAL;
+        }
+        else {
+            List<ScimGroup> result;
+            try {
+                result = dao.query(filter, sortBy, "ascending".equalsIgnoreCase(sortOrder));
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+            }
+            total = result.size();
+            // the groups of a user are filtered, so only the groups of a
+            // client can be counted before they are read
+            List<ScimGroup> page = UaaPagingUtils.subList(result, startIndex, count);
+            if (userId == null && streamingThreshold > 0 && page.size() > streamingThreshold) {
+                return streamGroups(page, attributesCommaSeparated, startIndex, count, total, nextCursor);
+            }
+            input = filterForCurrentUser(result, startIndex, count, userId);
         }
-
-        List<ScimGroup> input = securityContextAccessor.isUser() ?
-                        filterForCurrentUser(result, startIndex, count, securityContextAccessor.getUserId())
-                        : filterForCurrentUser(result, startIndex, count, null);
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             return new SearchResults<ScimGroup>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
-                            result.size());
+                            total, nextCursor);
         }
 
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
+            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, total, nextCursor,
+                            attributes, new SimpleAttributeNameMapper(Collections.<String, String> emptyMap()),
                             Arrays.asList(ScimCore.SCHEMAS));
         } catch (ExpressionException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
     }
 
+    /**
+     * Convert and write out a large page of groups one chunk at a time, so
+     * that only one chunk of groups with their members is in memory at once.
+     */
+    private SearchResults<?> streamGroups(List<ScimGroup> page, String attributesCommaSeparated, int startIndex,
+                    int count, int total, String nextCursor) {
+        try {
+            final Projection projection = StringUtils.hasLength(attributesCommaSeparated) ? SearchResultsFactory
+                            .buildProjection(attributesCommaSeparated.split(","), new SimpleAttributeNameMapper(
+                                            Collections.<String, String> emptyMap())) : null;
+            Collection<Object> resources = new StreamingResources<ScimGroup, Object>(page, streamingThreshold,
+                            new ChunkConverter<ScimGroup, Object>() {
+                                @Override
+                                public List<Object> convert(List<ScimGroup> chunk) {
+                                    for (ScimGroup group : chunk) {
+                                        group.setMembers(membershipManager.getMembers(group.getId()));
+                                    }
+                                    if (projection == null) {
+                                        return Collections.<Object> unmodifiableList(chunk);
+                                    }
+                                    return Collections.<Object> unmodifiableList(projection.project(chunk));
+                                }
+                            });
+            return new SearchResults<Object>(Arrays.asList(ScimCore.SCHEMAS), resources, startIndex, count, total,
+                            nextCursor);
+        } catch (ExpressionException e) {
+            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+        }
+    }
+
     @RequestMapping(value = { "/Groups/External/list" }, method = RequestMethod.GET)
     @ResponseBody
     @Deprecated
@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,9 +34,13 @@ import org.cloudfoundry.identity.uaa.error.ExceptionReport;
 import org.cloudfoundry.identity.uaa.oauth.approval.Approval;
 import org.cloudfoundry.identity.uaa.oauth.approval.ApprovalStore;
 import org.cloudfoundry.identity.uaa.rest.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory;
+import org.cloudfoundry.identity.uaa.rest.SearchResultsFactory.Projection;
 import org.cloudfoundry.identity.uaa.rest.SimpleAttributeNameMapper;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources;
+import org.cloudfoundry.identity.uaa.rest.StreamingResources.ChunkConverter;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
@@ -85,7 +90,6 @@ import org.springframework.web.servlet.View;
 @Controller
 @ManagedResource
 public class ScimUserEndpoints implements InitializingBean {
-    private static final String USER_APPROVALS_FILTER_TEMPLATE = "user_id eq \"%s\"";
     public static final String E_TAG = "ETag";
 
     private ScimUserProvisioning dao;
@@ -96,6 +100,9 @@ public class ScimUserEndpoints implements InitializingBean {
 
     private static final Random passwordGenerator = new SecureRandom();
 
+    private static final AttributeNameMapper ATTRIBUTE_MAPPER = new SimpleAttributeNameMapper(
+                    Collections.<String, String> singletonMap("emails\\.(.*)", "emails.![$1]"));
+
     private final Map<String, AtomicInteger> errorCounts = new ConcurrentHashMap<String, AtomicInteger>();
 
     private AtomicInteger scimUpdates = new AtomicInteger();
@@ -104,6 +111,8 @@ public class ScimUserEndpoints implements InitializingBean {
 
     private Map<Class<? extends Exception>, HttpStatus> statuses = new HashMap<Class<? extends Exception>, HttpStatus>();
 
+    private int streamingThreshold = 0;
+
     private HttpMessageConverter<?>[] messageConverters = new RestTemplate().getMessageConverters().toArray(
                     new HttpMessageConverter<?>[0]);
 
@@ -117,6 +126,15 @@ public class ScimUserEndpoints implements InitializingBean {
         this.messageConverters = messageConverters;
     }
 
+    /**
+     * @param streamingThreshold pages with more users than this are converted
+     *            and written out in chunks of this size, 0 to always build the
+     *            whole page in memory (the default)
+     */
+    public void setStreamingThreshold(int streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
     /**
      * Map from exception type to Http status.
      * 
@@ -241,6 +259,16 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
+    public SearchResults<?> findUsers(String attributesCommaSeparated, String filter, String sortBy,
+                    String sortOrder, int startIndex, int count) {
+        return findUsers(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
+    /**
+     * @param cursor if present, page by cursor instead of by start index: the
+     *            results do not include a total and include a next cursor to
+     *            send back for the next page, unless this is the last page
+     */
     @RequestMapping(value = "/Users", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -249,40 +277,53 @@ public class ScimUserEndpoints implements InitializingBean {
                     @RequestParam(required = false) String sortBy,
                     @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
                     @RequestParam(required = false, defaultValue = "1") int startIndex,
-                    @RequestParam(required = false, defaultValue = "100") int count) {
+                    @RequestParam(required = false, defaultValue = "100") int count,
+                    @RequestParam(required = false) String cursor) {
 
-        if (startIndex < 1) {
+        if (startIndex < 1 || cursor != null) {
             startIndex = 1;
         }
 
         List<ScimUser> input = new ArrayList<ScimUser>();
-        List<ScimUser> result;
-        try {
-            result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
-            for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
-                    syncGroups(user);
-                }
-                if(attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
-                    syncApprovals(user);
-                }
-                input.add(user);
+        int total;
+        String nextCursor = null;
+        if (cursor != null) {
+            try {
+                KeysetPage<ScimUser> page = dao.query(filter, sortBy, sortOrder.equals("ascending"), cursor, count);
+                input.addAll(page.getResources());
+                nextCursor = page.getNextCursor();
+                total = SearchResults.UNKNOWN_TOTAL;
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter, sortBy or cursor: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+            }
+        }
+        else {
+            List<ScimUser> page;
+            try {
+                List<ScimUser> result = dao.query(filter, sortBy, sortOrder.equals("ascending"));
+                page = UaaPagingUtils.subList(result, startIndex, count);
+                total = result.size();
+            } catch (IllegalArgumentException e) {
+                throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+            }
+            if (streamingThreshold > 0 && page.size() > streamingThreshold) {
+                return streamUsers(page, attributesCommaSeparated, startIndex, count, total, nextCursor);
             }
-        } catch (IllegalArgumentException e) {
-            throw new ScimException("Invalid filter expression: [" + filter + "]", HttpStatus.BAD_REQUEST);
+            input.addAll(page);
         }
+        // the groups and approvals of the whole page are loaded at once
+        syncRelated(input, attributesCommaSeparated);
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             // Return all user data
-            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, result.size());
+            return new SearchResults<ScimUser>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, total,
+                            nextCursor);
         }
 
-        AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> singletonMap(
-                        "emails\\.(.*)", "emails.![$1]"));
         String[] attributes = attributesCommaSeparated.split(",");
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
-                            mapper, Arrays.asList(ScimCore.SCHEMAS));
+            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, total, nextCursor,
+                            attributes, ATTRIBUTE_MAPPER, Arrays.asList(ScimCore.SCHEMAS));
         } catch (SpelParseException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         } catch (SpelEvaluationException e) {
@@ -290,42 +331,105 @@ public class ScimUserEndpoints implements InitializingBean {
         }
     }
 
-    private ScimUser syncGroups(ScimUser user) {
-        if (user == null) {
-            return user;
+    /**
+     * Convert and write out a large page of users one chunk at a time, so
+     * that only one chunk of users with their groups and approvals is in
+     * memory at once.
+     */
+    private SearchResults<?> streamUsers(List<ScimUser> page, final String attributesCommaSeparated,
+                    int startIndex, int count, int total, String nextCursor) {
+        try {
+            final Projection projection = StringUtils.hasLength(attributesCommaSeparated) ? SearchResultsFactory
+                            .buildProjection(attributesCommaSeparated.split(","), ATTRIBUTE_MAPPER) : null;
+            Collection<Object> resources = new StreamingResources<ScimUser, Object>(page, streamingThreshold,
+                            new ChunkConverter<ScimUser, Object>() {
+                                @Override
+                                public List<Object> convert(List<ScimUser> chunk) {
+                                    syncRelated(chunk, attributesCommaSeparated);
+                                    if (projection == null) {
+                                        return Collections.<Object> unmodifiableList(chunk);
+                                    }
+                                    return Collections.<Object> unmodifiableList(projection.project(chunk));
+                                }
+                            });
+            return new SearchResults<Object>(Arrays.asList(ScimCore.SCHEMAS), resources, startIndex, count, total,
+                            nextCursor);
+        } catch (SpelParseException e) {
+            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
+        } catch (SpelEvaluationException e) {
+            throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
+    }
 
-        Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false);
-        Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(), true);
-        indirectGroups.removeAll(directGroups);
-        Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
-        for (ScimGroup group : directGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
+    private void syncRelated(List<ScimUser> users, String attributesCommaSeparated) {
+        if (attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)groups") || attributesCommaSeparated.isEmpty()) {
+            syncGroups(users);
         }
-        for (ScimGroup group : indirectGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+        if (attributesCommaSeparated == null || attributesCommaSeparated.matches("(?i)approvals") || attributesCommaSeparated.isEmpty()) {
+            syncApprovals(users);
         }
+    }
 
-        user.setGroups(groups);
+    private ScimUser syncGroups(ScimUser user) {
+        if (user != null) {
+            syncGroups(Collections.singletonList(user));
+        }
         return user;
     }
 
-    private ScimUser syncApprovals(ScimUser user) {
-        if (user == null || approvalStore == null) {
-            return user;
+    private void syncGroups(List<ScimUser> users) {
+        if (users.isEmpty()) {
+            return;
         }
-        Set<Approval> approvals = new HashSet<Approval>(
-            approvalStore.getApprovals(String.format(USER_APPROVALS_FILTER_TEMPLATE, user.getId())));
-        Set<Approval> active = new HashSet<Approval>(approvals);
-        for (Approval approval : approvals) {
-            if (!approval.isCurrentlyActive()) {
-                active.remove(approval);
+        Map<String, Map<ScimGroup, ScimUser.Group.Type>> memberships = membershipManager
+                        .getGroupsWithUsersByType(getIds(users));
+        for (ScimUser user : users) {
+            Set<ScimUser.Group> groups = new HashSet<ScimUser.Group>();
+            Map<ScimGroup, ScimUser.Group.Type> userGroups = memberships.get(user.getId());
+            if (userGroups != null) {
+                for (Map.Entry<ScimGroup, ScimUser.Group.Type> entry : userGroups.entrySet()) {
+                    ScimGroup group = entry.getKey();
+                    groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), entry.getValue()));
+                }
             }
+            user.setGroups(groups);
+        }
+    }
+
+    private ScimUser syncApprovals(ScimUser user) {
+        if (user != null) {
+            syncApprovals(Collections.singletonList(user));
         }
-        user.setApprovals(active);
         return user;
     }
 
+    private void syncApprovals(List<ScimUser> users) {
+        if (users.isEmpty() || approvalStore == null) {
+            return;
+        }
+        Map<String, Set<Approval>> active = new HashMap<String, Set<Approval>>();
+        for (ScimUser user : users) {
+            active.put(user.getId(), new HashSet<Approval>());
+        }
+        for (Approval approval : approvalStore.getApprovalsForUsers(active.keySet())) {
+            Set<Approval> approvals = active.get(approval.getUserId());
+            if (approvals != null && approval.isCurrentlyActive()) {
+                approvals.add(approval);
+            }
+        }
+        for (ScimUser user : users) {
+            user.setApprovals(active.get(user.getId()));
+        }
+    }
+
+    private List<String> getIds(List<ScimUser> users) {
+        List<String> ids = new ArrayList<String>(users.size());
+        for (ScimUser user : users) {
+            ids.add(user.getId());
+        }
+        return ids;
+    }
+
     @ExceptionHandler
     public View handleException(Exception t, HttpServletRequest request) throws ScimException {
         ScimException e = new ScimException("Unexpected error", t, HttpStatus.INTERNAL_SERVER_ERROR);
@@ -17,20 +17,26 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.rest.jdbc.AbstractQueryable;
+import org.cloudfoundry.identity.uaa.rest.jdbc.InClauseQueries;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupProvisioning;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
@@ -41,8 +47,9 @@ import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -65,8 +72,8 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     public static final String GET_MEMBERS_SQL = String.format("select %s from %s where group_id=?", MEMBERSHIP_FIELDS,
                     MEMBERSHIP_TABLE);
 
-    public static final String GET_GROUPS_BY_MEMBER_SQL = String.format(
-                    "select distinct(group_id) from %s where member_id=?", MEMBERSHIP_TABLE);
+    public static final String GET_MEMBERSHIPS_BY_MEMBERS_SQL = String.format(
+                    "select group_id,member_id from %s where member_id in (:ids)", MEMBERSHIP_TABLE);
 
     public static final String GET_MEMBERS_WITH_AUTHORITY_SQL = String.format(
                     "select %s from %s where group_id=? and lower(authorities) like ?", MEMBERSHIP_FIELDS,
@@ -86,6 +93,8 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     private final RowMapper<ScimGroupMember> rowMapper = new ScimGroupMemberRowMapper();
 
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
     private ScimUserProvisioning userProvisioning;
 
     private ScimGroupProvisioning groupProvisioning;
@@ -118,6 +127,7 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         super(jdbcTemplate,pagingListFactory,new ScimGroupMemberRowMapper());
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
     }
 
     @Override
@@ -168,45 +178,143 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
     @Override
     public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive)
                     throws ScimResourceNotFoundException {
-        List<ScimGroup> results = new ArrayList<ScimGroup>();
-        getGroupsWithMember(results, memberId, transitive);
+        Memberships memberships = loadMemberships(Collections.singleton(memberId), transitive);
+        Set<ScimGroup> results = new HashSet<ScimGroup>(memberships.getGroups(memberId, transitive).keySet());
         if (isUser(memberId)) {
             results.addAll(defaultUserGroups);
         }
-        return new HashSet<ScimGroup>(results);
+        return results;
     }
 
-    private void getGroupsWithMember(List<ScimGroup> results, final String memberId, boolean transitive) {
-        if (results == null) {
-            return;
+    @Override
+    public Map<ScimGroup, ScimUser.Group.Type> getGroupsWithMemberByType(String memberId)
+                    throws ScimResourceNotFoundException {
+        Map<ScimGroup, ScimUser.Group.Type> results = loadMemberships(Collections.singleton(memberId), true).getGroups(
+                        memberId, true);
+        if (isUser(memberId)) {
+            addDefaultUserGroups(results);
         }
-        List<String> groupIds;
-        try {
-            groupIds = jdbcTemplate.query(GET_GROUPS_BY_MEMBER_SQL, new PreparedStatementSetter() {
-                @Override
-                public void setValues(PreparedStatement ps) throws SQLException {
-                    ps.setString(1, memberId);
+        return results;
+    }
+
+    @Override
+    public Map<String, Map<ScimGroup, ScimUser.Group.Type>> getGroupsWithUsersByType(Collection<String> userIds) {
+        Memberships memberships = loadMemberships(userIds, true);
+        Map<String, Map<ScimGroup, ScimUser.Group.Type>> results = new HashMap<String, Map<ScimGroup, ScimUser.Group.Type>>();
+        for (String userId : userIds) {
+            Map<ScimGroup, ScimUser.Group.Type> groups = memberships.getGroups(userId, true);
+            addDefaultUserGroups(groups);
+            results.put(userId, groups);
+        }
+        return results;
+    }
+
+    private void addDefaultUserGroups(Map<ScimGroup, ScimUser.Group.Type> groups) {
+        for (ScimGroup group : defaultUserGroups) {
+            groups.put(group, ScimUser.Group.Type.DIRECT);
+        }
+    }
+
+    /**
+     * Loads the memberships of the given members and, if transitive, of the
+     * groups they belong to, one level of nesting at a time. Each level costs
+     * two queries (memberships and groups) however many members and groups it
+     * contains, and the memberships of a group are only loaded once.
+     */
+    private Memberships loadMemberships(Collection<String> memberIds, boolean transitive) {
+        Memberships memberships = new Memberships();
+        // to ensure we don't loop forever on nested group cycles
+        Set<String> retrieved = new HashSet<String>();
+        Collection<String> members = memberIds;
+        while (!members.isEmpty()) {
+            Map<String, Set<String>> level = getMemberships(members);
+            memberships.groupIds.putAll(level);
+            List<String> groupIds = new ArrayList<String>();
+            for (Set<String> ids : level.values()) {
+                for (String groupId : ids) {
+                    if (retrieved.add(groupId)) {
+                        groupIds.add(groupId);
+                    }
+                }
+            }
+            List<String> found = new ArrayList<String>();
+            if (!groupIds.isEmpty()) {
+                // groups that no longer exist are skipped
+                for (ScimGroup group : groupProvisioning.retrieve(groupIds)) {
+                    memberships.groups.put(group.getId(), group);
+                    found.add(group.getId());
                 }
-            }, new SingleColumnRowMapper<String>(String.class));
-        } catch (EmptyResultDataAccessException ex) {
-            groupIds = Collections.<String> emptyList();
+            }
+            if (!transitive) {
+                break;
+            }
+            members = found;
         }
+        return memberships;
+    }
 
-        for (String groupId : groupIds) {
-            ScimGroup group;
-            try {
-                group = groupProvisioning.retrieve(groupId);
-            } catch (ScimResourceNotFoundException ex) {
-                continue;
+    /**
+     * @return the ids of the groups each member belongs to directly, with an
+     *         entry for every member
+     */
+    private Map<String, Set<String>> getMemberships(Collection<String> memberIds) {
+        final Map<String, Set<String>> memberships = new HashMap<String, Set<String>>();
+        for (String memberId : memberIds) {
+            memberships.put(memberId, new HashSet<String>());
+        }
+        RowCallbackHandler handler = new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                Set<String> groupIds = memberships.get(rs.getString(2));
+                if (groupIds != null) {
+                    groupIds.add(rs.getString(1));
+                }
             }
-            if (!results.contains(group)) { // to ensure we don't go into
-                                            // infinite recursion caused by
-                                            // nested group cycles
-                results.add(group);
-                if (transitive) {
-                    getGroupsWithMember(results, groupId, transitive);
+        };
+        InClauseQueries.queryInChunks(namedJdbcTemplate, GET_MEMBERSHIPS_BY_MEMBERS_SQL, memberIds, handler);
+        return memberships;
+    }
+
+    /**
+     * The memberships loaded for a set of members, resolved in memory.
+     */
+    private static class Memberships {
+
+        private final Map<String, Set<String>> groupIds = new HashMap<String, Set<String>>();
+
+        private final Map<String, ScimGroup> groups = new HashMap<String, ScimGroup>();
+
+        /**
+         * @return the groups of the member, each with whether the member
+         *         belongs to it directly, which wins over an indirect
+         *         membership
+         */
+        public Map<ScimGroup, ScimUser.Group.Type> getGroups(String memberId, boolean transitive) {
+            Map<ScimGroup, ScimUser.Group.Type> results = new LinkedHashMap<ScimGroup, ScimUser.Group.Type>();
+            Collection<String> members = Collections.singleton(memberId);
+            ScimUser.Group.Type type = ScimUser.Group.Type.DIRECT;
+            while (!members.isEmpty()) {
+                List<String> next = new ArrayList<String>();
+                for (String member : members) {
+                    Set<String> ids = groupIds.get(member);
+                    if (ids == null) {
+                        continue;
+                    }
+                    for (String id : ids) {
+                        ScimGroup group = groups.get(id);
+                        if (group != null && !results.containsKey(group)) {
+                            results.put(group, type);
+                            next.add(id);
+                        }
+                    }
+                }
+                if (!transitive) {
+                    break;
                 }
+                members = next;
+                type = ScimUser.Group.Type.INDIRECT;
             }
+            return results;
         }
 
     }
@@ -13,14 +13,17 @@
 
 package org.cloudfoundry.identity.uaa.scim.remote;
 
+import java.util.Collections;
 import java.util.List;
 
 import org.cloudfoundry.identity.uaa.message.PasswordChangeRequest;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidPasswordException;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -80,6 +83,15 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
                         filter, sortBy);
     }
 
+    @Override
+    public KeysetPage<ScimUser> query(String filter, String sortBy, boolean ascending, String cursor, int count) {
+        UserPage page = restTemplate.getForObject(baseUrl
+                        + "/Users?filter={filter}&sortBy={sortBy}&sortOrder={sortOrder}&cursor={cursor}&count={count}",
+                        UserPage.class, filter, sortBy, ascending ? "ascending" : "descending",
+                        cursor == null ? "" : cursor, count);
+        return new KeysetPage<ScimUser>(page.getResources(), page.getNextCursor());
+    }
+
     @Override
     public ScimUser create(ScimUser user) {
         return restTemplate.postForObject(baseUrl + "/User", user, ScimUser.class);
@@ -128,4 +140,32 @@ public class RemoteScimUserProvisioning implements ScimUserProvisioning {
     public int delete(String filter) {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * The parts of a page of search results that a cursor query needs.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class UserPage {
+
+        private List<ScimUser> resources = Collections.emptyList();
+
+        private String nextCursor;
+
+        public List<ScimUser> getResources() {
+            return resources;
+        }
+
+        public void setResources(List<ScimUser> resources) {
+            this.resources = resources;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public void setNextCursor(String nextCursor) {
+            this.nextCursor = nextCursor;
+        }
+
+    }
 }
@@ -242,6 +242,39 @@ public class ScimGroupEndpointsTests extends JdbcTestBase {
         }
     }
 
+    @Test
+    public void testListGroupsStreamed() {
+        endpoints.setStreamingThreshold(3);
+        try {
+            SearchResults<?> results = endpoints.listGroups("id,displayName", "id pr", "created", "ascending", 1, 100);
+            assertEquals(11, results.getResources().size());
+            assertEquals(11, new ArrayList<Object>(results.getResources()).size());
+        } finally {
+            endpoints.setStreamingThreshold(0);
+        }
+    }
+
+    @Test
+    public void testListGroupsByCursorStreamedKeepsNextCursor() {
+        endpoints.setStreamingThreshold(3);
+        try {
+            SearchResults<?> results = endpoints.listGroups("id,displayName", "id pr", "created", "ascending", 1, 5,
+                            "");
+            assertEquals(5, results.getResources().size());
+            assertNotNull(results.getNextCursor());
+        } finally {
+            endpoints.setStreamingThreshold(0);
+        }
+    }
+
+    @Test
+    public void testListGroupsStreamedWithInvalidAttributesFails() {
+        endpoints.setStreamingThreshold(3);
+        expectedEx.expect(ScimException.class);
+        expectedEx.expectMessage("Invalid attributes");
+        endpoints.listGroups("id,display", "id pr", "created", "ascending", 1, 100);
+    }
+
     @Test
     public void testListGroupsWithNameEqFilter() {
         validateSearchResults(endpoints.listGroups("id,displayName", "displayName eq \"uaa.user\"", "created",
@@ -18,10 +18,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
-import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -264,6 +265,23 @@ public class ScimUserEndpointsTests {
         assertEquals(2, endpoints.getUser(joel.getId(), new MockHttpServletResponse()).getApprovals().size());
     }
 
+    @Test
+    public void approvalsAndGroupsAreSyncedCorrectlyOnFind() {
+        am.addApproval(new Approval(joel.getId(), "c1", "s1", 6000, Approval.ApprovalStatus.APPROVED));
+        am.addApproval(new Approval(joel.getId(), "c1", "s2", 6000, Approval.ApprovalStatus.DENIED));
+        am.addApproval(new Approval(dale.getId(), "c1", "s1", -6000, Approval.ApprovalStatus.APPROVED));
+
+        SearchResults<?> results = endpoints.findUsers(null, "id pr", null, "ascending", 1, 100);
+        assertEquals(2, results.getTotalResults());
+        for (Object resource : results.getResources()) {
+            ScimUser user = (ScimUser) resource;
+            // an expired approval is not active
+            assertEquals(user.getId().equals(joel.getId()) ? 2 : 0, user.getApprovals().size());
+            assertEquals(1, user.getGroups().size());
+            assertEquals("uaa.user", user.getGroups().iterator().next().getDisplay());
+        }
+    }
+
     @Test
     public void userGetsADefaultPassword() {
         ScimUser user = new ScimUser(null, "dave", "David", "Syer");
@@ -422,6 +440,29 @@ public class ScimUserEndpointsTests {
         assertEquals(0, results.getResources().size());
     }
 
+    @Test
+    public void testFindPagesOfIdsByCursor() {
+        SearchResults<?> results = endpoints.findUsers("userName", "id pr", "userName", "ascending", 1, 1, "");
+        assertEquals(SearchResults.UNKNOWN_TOTAL, results.getTotalResults());
+        assertEquals(1, results.getResources().size());
+        assertNotNull(results.getNextCursor());
+        Collection<Object> names = getSetFromMaps(results.getResources(), "userName");
+
+        results = endpoints.findUsers("userName", "id pr", "userName", "ascending", 1, 1, results.getNextCursor());
+        assertEquals(1, results.getResources().size());
+        names.addAll(getSetFromMaps(results.getResources(), "userName"));
+        assertEquals(Arrays.<Object> asList("jdsa", "olds"), names);
+        assertNull(results.getNextCursor());
+    }
+
+    @Test
+    public void testCursorForDifferentSortIsRejected() {
+        SearchResults<?> results = endpoints.findUsers("id", "id pr", "userName", "ascending", 1, 1, "");
+        expected.expect(ScimException.class);
+        expected.expectMessage(containsString("cursor"));
+        endpoints.findUsers("id", "id pr", "userName", "descending", 1, 1, results.getNextCursor());
+    }
+
     @Test
     public void testFindAllNames() {
         SearchResults<?> results = endpoints.findUsers("userName", "id pr", null, "ascending", 1, 100);
@@ -454,7 +495,7 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithUsersByType(anyCollectionOf(String.class));
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -465,7 +506,7 @@ public class ScimUserEndpointsTests {
         endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
 
         endpoints.findUsers("groups", "id pr", null, "ascending", 1, 100);
-        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithMember(anyString(), anyBoolean());
+        verify(mockgroupMembershipManager, atLeastOnce()).getGroupsWithUsersByType(anyCollectionOf(String.class));
 
         endpoints.setScimGroupMembershipManager(mm);
     }
@@ -487,7 +528,7 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollectionOf(String.class));
 
         endpoints.setApprovalStore(am);
     }
@@ -498,11 +539,71 @@ public class ScimUserEndpointsTests {
         endpoints.setApprovalStore(mockApprovalStore);
 
         endpoints.findUsers("approvals", "id pr", null, "ascending", 1, 100);
-        verify(mockApprovalStore, atLeastOnce()).getApprovals(anyString());
+        verify(mockApprovalStore, atLeastOnce()).getApprovalsForUsers(anyCollectionOf(String.class));
 
         endpoints.setApprovalStore(am);
     }
 
+    @Test
+    public void testFindUsersLoadsGroupsAndApprovalsOncePerPage() throws Exception {
+        ScimGroupMembershipManager mockgroupMembershipManager = mock(ScimGroupMembershipManager.class);
+        endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
+        ApprovalStore mockApprovalStore = mock(ApprovalStore.class);
+        endpoints.setApprovalStore(mockApprovalStore);
+
+        SearchResults<?> results = endpoints.findUsers("", "id pr", null, "ascending", 1, 100);
+        assertEquals(2, results.getTotalResults());
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithUsersByType(anyCollectionOf(String.class));
+        verify(mockApprovalStore, times(1)).getApprovalsForUsers(anyCollectionOf(String.class));
+
+        endpoints.setScimGroupMembershipManager(mm);
+        endpoints.setApprovalStore(am);
+    }
+
+    @Test
+    public void testFindUsersStreamsLargePagesInChunks() throws Exception {
+        ScimGroupMembershipManager mockgroupMembershipManager = mock(ScimGroupMembershipManager.class);
+        endpoints.setScimGroupMembershipManager(mockgroupMembershipManager);
+        endpoints.setStreamingThreshold(1);
+
+        SearchResults<?> results = endpoints.findUsers("", "id pr", "userName", "ascending", 1, 100);
+        assertEquals(2, results.getTotalResults());
+        assertEquals(2, results.getResources().size());
+        verify(mockgroupMembershipManager, times(1)).getGroupsWithUsersByType(anyCollectionOf(String.class));
+        List<String> names = new ArrayList<String>();
+        for (Object user : results.getResources()) {
+            names.add(((ScimUser) user).getUserName());
+        }
+        assertEquals(Arrays.asList("jdsa", "olds"), names);
+        verify(mockgroupMembershipManager, times(2)).getGroupsWithUsersByType(anyCollectionOf(String.class));
+
+        endpoints.setScimGroupMembershipManager(mm);
+        endpoints.setStreamingThreshold(0);
+    }
+
+    @Test
+    public void testFindUserNamesStreamed() throws Exception {
+        endpoints.setStreamingThreshold(1);
+        SearchResults<?> results = endpoints.findUsers("userName", "id pr", "userName", "ascending", 1, 100);
+        assertEquals(Arrays.<Object> asList("jdsa", "olds"), getSetFromMaps(results.getResources(), "userName"));
+        endpoints.setStreamingThreshold(0);
+    }
+
+    @Test
+    public void testFindUserNamesByCursorStreamedKeepsNextCursor() throws Exception {
+        ScimUser user = new ScimUser(null, "dave", "David", "Syer");
+        user.addEmail("dsyer@vmware.com");
+        dao.createUser(user, "password");
+        endpoints.setStreamingThreshold(1);
+        try {
+            SearchResults<?> results = endpoints.findUsers("userName", "id pr", "userName", "ascending", 1, 2, "");
+            assertEquals(2, results.getResources().size());
+            assertNotNull(results.getNextCursor());
+        } finally {
+            endpoints.setStreamingThreshold(0);
+        }
+    }
+
     @Test
     public void testFindUsersApprovalsNotSyncedIfNotIncluded() throws Exception {
         ApprovalStore mockApprovalStore = mock(ApprovalStore.class);
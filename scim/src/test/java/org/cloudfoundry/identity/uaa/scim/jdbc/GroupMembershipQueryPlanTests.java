@@ -0,0 +1,86 @@
+/*******************************************************************************
+ *     Cloud Foundry 
+ *     Copyright (c) [2009-2014] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ *******************************************************************************/
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.sql.Connection;
+import java.util.List;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Checks that the membership lookups made on every login use an index
+ * instead of scanning the whole table. Only runs against HSQLDB, whose
+ * planner picks indexes by rule, so the plan does not depend on the amount
+ * of data in the tables.
+ */
+public class GroupMembershipQueryPlanTests extends JdbcTestBase {
+
+    @Before
+    public void assumeHsqldb() throws Exception {
+        Connection connection = DataSourceUtils.getConnection(dataSource);
+        try {
+            assumeTrue(connection.getMetaData().getDatabaseProductName().toLowerCase().contains("hsql"));
+        } finally {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        }
+    }
+
+    @Test
+    public void testMembershipsOfMembersAreFoundByIndex() {
+        assertUsesIndex(JdbcScimGroupMembershipManager.GET_MEMBERSHIPS_BY_MEMBERS_SQL.replace(":ids", "?, ?"),
+                        "GROUP_MEMBERSHIP", "GROUP_MEMBERSHIP_MEMBER_IDX");
+    }
+
+    @Test
+    public void testMembershipsOfMemberAreDeletedByIndex() {
+        assertUsesIndex(JdbcScimGroupMembershipManager.DELETE_MEMBER_IN_GROUPS_SQL, "GROUP_MEMBERSHIP",
+                        "GROUP_MEMBERSHIP_MEMBER_IDX");
+    }
+
+    @Test
+    public void testUserAuthoritiesAreFoundByIndex() {
+        assertUsesIndex("select g.displayName from groups g, group_membership m where g.id = m.group_id and m.member_id = ?",
+                        "GROUP_MEMBERSHIP", "GROUP_MEMBERSHIP_MEMBER_IDX");
+    }
+
+    @Test
+    public void testApprovalsOfUserAndClientAreFoundByPrimaryKey() {
+        assertUsesIndex("select * from authz_approvals where user_id=? and client_id=?", "AUTHZ_APPROVALS", "SYS_IDX_");
+    }
+
+    /**
+     * @param index the name, or a prefix of the name, of the index that
+     *            should be used to access the table
+     */
+    private void assertUsesIndex(String sql, String table, String index) {
+        List<String> plan = jdbcTemplate.queryForList("explain plan for " + sql, String.class);
+        String text = StringUtils.collectionToDelimitedString(plan, "\n");
+        for (String range : text.toUpperCase().split("RANGE VARIABLE")) {
+            if (range.contains("TABLE=" + table + "\n")) {
+                assertTrue("Expected index " + index + " for " + table + " in plan:\n" + text,
+                                range.contains("ACCESS=INDEX PRED") && range.contains("INDEX=" + index));
+                return;
+            }
+        }
+        fail("No access to " + table + " in plan:\n" + text);
+    }
+
+}
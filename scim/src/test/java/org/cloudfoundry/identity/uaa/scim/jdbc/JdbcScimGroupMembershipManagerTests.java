@@ -15,8 +15,10 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -29,6 +31,7 @@ import org.cloudfoundry.identity.uaa.authentication.Origin;
 import org.cloudfoundry.identity.uaa.rest.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
+import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.test.TestUtils;
@@ -203,6 +206,57 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         assertEquals(4, groups.size());
     }
 
+    @Test
+    public void canGetDirectAndIndirectGroupsForMember() {
+        addMembers();
+        addMember("g3", "g1", "GROUP", "READER");
+
+        Map<ScimGroup, ScimUser.Group.Type> groups = dao.getGroupsWithMemberByType("m3");
+        Map<String, ScimUser.Group.Type> types = new HashMap<String, ScimUser.Group.Type>();
+        for (Map.Entry<ScimGroup, ScimUser.Group.Type> entry : groups.entrySet()) {
+            types.put(entry.getKey().getDisplayName(), entry.getValue());
+        }
+        assertEquals(4, types.size());
+        // g1 is also reachable through g2, but the direct membership wins
+        assertEquals(ScimUser.Group.Type.DIRECT, types.get("test1"));
+        assertEquals(ScimUser.Group.Type.DIRECT, types.get("test2"));
+        assertEquals(ScimUser.Group.Type.INDIRECT, types.get("test3"));
+        assertEquals(ScimUser.Group.Type.DIRECT, types.get("uaa.user"));
+    }
+
+    @Test
+    public void canGetGroupsForManyUsersAtOnce() {
+        addMembers();
+        addMember("g3", "g1", "GROUP", "READER");
+
+        Map<String, Map<ScimGroup, ScimUser.Group.Type>> groups = dao.getGroupsWithUsersByType(Arrays.asList("m1",
+                        "m2", "m3"));
+        assertEquals(3, groups.size());
+        assertEquals(1, groups.get("m1").size());
+        assertEquals(2, groups.get("m2").size());
+        assertEquals(ScimUser.Group.Type.DIRECT, groups.get("m2").get(new ScimGroup("g3", "test3")));
+        assertEquals(4, groups.get("m3").size());
+        assertEquals(ScimUser.Group.Type.INDIRECT, groups.get("m3").get(new ScimGroup("g3", "test3")));
+        assertEquals(dao.getGroupsWithMemberByType("m3"), groups.get("m3"));
+    }
+
+    @Test
+    public void canGetGroupsForMemberOfManyGroups() {
+        for (int i = 0; i < 150; i++) {
+            addGroup("many" + i, "many" + i);
+            addMember("many" + i, "m1", "USER", "READER");
+            addMember("g1", "many" + i, "GROUP", "READER");
+        }
+        // a membership of a group that no longer exists is ignored
+        addMember("missing", "m1", "USER", "READER");
+
+        assertEquals(151, dao.getGroupsWithMember("m1", false).size());
+        assertEquals(152, dao.getGroupsWithMember("m1", true).size());
+        Map<ScimGroup, ScimUser.Group.Type> groups = dao.getGroupsWithMemberByType("m1");
+        assertEquals(152, groups.size());
+        assertEquals(ScimUser.Group.Type.INDIRECT, groups.get(new ScimGroup("g1", "test1")));
+    }
+
     @Test
     public void canAddMember() throws Exception {
         validateCount(0);
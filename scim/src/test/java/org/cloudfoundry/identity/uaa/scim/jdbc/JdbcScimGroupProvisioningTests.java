@@ -70,6 +70,16 @@ public class JdbcScimGroupProvisioningTests extends JdbcTestBase {
         }
     }
 
+    @Test
+    public void canRetrieveGroupsById() throws Exception {
+        List<ScimGroup> groups = dao.retrieve(Arrays.asList("g1", "g3", "missing"));
+        assertEquals(2, groups.size());
+        for (ScimGroup g : groups) {
+            validateGroup(g, null);
+        }
+        assertEquals(0, dao.retrieve(Arrays.<String> asList()).size());
+    }
+
     @Test
     public void canRetrieveGroupsWithFilter() throws Exception {
         assertEquals(1, dao.query("displayName eq \"uaa.user\"").size());
@@ -15,10 +15,13 @@ package org.cloudfoundry.identity.uaa.scim.remote;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.cloudfoundry.identity.uaa.message.PasswordChangeRequest;
+import org.cloudfoundry.identity.uaa.rest.KeysetPage;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -74,6 +77,31 @@ public class RemoteScimUserProvisioningTests {
         Mockito.verify(restTemplate).getForObject("http://base/Users?filter={filter}", List.class, "name eq \"foo\"");
     }
 
+    @Test
+    public void testQueryUsersByCursor() {
+        RemoteScimUserProvisioning.UserPage page = new RemoteScimUserProvisioning.UserPage();
+        page.setResources(Arrays.asList(user));
+        page.setNextCursor("next");
+        Mockito.when(
+                        restTemplate.getForObject("http://base/Users?filter={filter}&sortBy={sortBy}"
+                                        + "&sortOrder={sortOrder}&cursor={cursor}&count={count}",
+                                        RemoteScimUserProvisioning.UserPage.class, "id pr", "userName", "descending",
+                                        "", 10)).thenReturn(page);
+        KeysetPage<ScimUser> result = service.query("id pr", "userName", false, null, 10);
+        assertEquals(Arrays.asList(user), result.getResources());
+        assertEquals("next", result.getNextCursor());
+    }
+
+    @Test
+    public void testUserPageIsReadFromSearchResults() throws Exception {
+        RemoteScimUserProvisioning.UserPage page = new ObjectMapper().readValue(
+                        "{\"schemas\":[\"urn:scim:schemas:core:1.0\"],\"startIndex\":1,\"itemsPerPage\":10,"
+                                        + "\"resources\":[{\"id\":\"1234\",\"userName\":\"foo\"}],"
+                                        + "\"nextCursor\":\"next\"}", RemoteScimUserProvisioning.UserPage.class);
+        assertEquals("foo", page.getResources().get(0).getUserName());
+        assertEquals("next", page.getNextCursor());
+    }
+
     @Test
     public void testCreateUser() {
         service.createUser(user, "password");
@@ -14,6 +14,8 @@ package org.cloudfoundry.identity.uaa.login;
 
 import org.apache.commons.httpclient.contrib.ssl.EasySSLProtocolSocketFactory;
 import org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory;
+import org.cloudfoundry.identity.uaa.codestore.InMemoryExpiringCodeStore;
+import org.cloudfoundry.identity.uaa.codestore.JdbcExpiringCodeStore;
 import org.cloudfoundry.identity.uaa.config.YamlPropertiesFactoryBean;
 import org.cloudfoundry.identity.uaa.config.YamlServletProfileInitializer;
 import org.cloudfoundry.identity.uaa.login.saml.IdentityProviderConfigurator;
@@ -218,6 +220,23 @@ public class BootstrapTests {
         assertEquals("spalias", context.getBean("extendedMetaData", org.springframework.security.saml.metadata.ExtendedMetadata.class).getAlias());
     }
 
+    @Test
+    public void testCodeStoreBackend() throws Exception {
+        context = getServletContext("default", "login.yml","uaa.yml", "file:./src/main/webapp/WEB-INF/spring-servlet.xml");
+        assertEquals(JdbcExpiringCodeStore.class, context.getBean("codeStore").getClass());
+        assertFalse(context.getBeanFactory().containsSingleton("inMemoryCodeStore"));
+        context.close();
+
+        System.setProperty("codeStore.backend", "inMemoryCodeStore");
+        try {
+            context = getServletContext("default", "login.yml","uaa.yml", "file:./src/main/webapp/WEB-INF/spring-servlet.xml");
+            assertEquals(InMemoryExpiringCodeStore.class, context.getBean("codeStore").getClass());
+            assertFalse(context.getBeanFactory().containsSingleton("jdbcCodeStore"));
+        } finally {
+            System.clearProperty("codeStore.backend");
+        }
+    }
+
     @Test
     public void testMessageService() throws Exception {
         context = getServletContext("default", "login.yml","uaa.yml", "file:./src/main/webapp/WEB-INF/spring-servlet.xml");
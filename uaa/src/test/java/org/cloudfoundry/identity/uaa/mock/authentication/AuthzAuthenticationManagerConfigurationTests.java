@@ -20,10 +20,12 @@ import java.util.List;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import org.cloudfoundry.identity.uaa.authentication.manager.AuthzAuthenticationManager;
 import org.cloudfoundry.identity.uaa.authentication.manager.ChainedAuthenticationManager;
 import org.cloudfoundry.identity.uaa.authentication.manager.PeriodLockoutPolicy;
+import org.cloudfoundry.identity.uaa.authentication.manager.SlidingWindowLockoutPolicy;
 import org.cloudfoundry.identity.uaa.test.YamlServletProfileInitializerContextInitializer;
 import org.junit.Before;
 import org.junit.Test;
@@ -69,6 +71,15 @@ public class AuthzAuthenticationManagerConfigurationTests {
         assertThat(periodLockoutPolicy.getLockoutAfterFailures(), equalTo(5));
         assertThat(periodLockoutPolicy.getCountFailuresWithin(), equalTo(3600));
         assertThat(periodLockoutPolicy.getLockoutPeriodSeconds(), equalTo(300));
+        assertFalse(webApplicationContext.getBeanFactory().containsSingleton("slidingWindowLockoutPolicy"));
+    }
+
+    @Test
+    public void testSlidingWindowAuthenticationPolicy() throws Exception {
+        environment.setProperty("authentication.policy.backend", "slidingWindowLockoutPolicy");
+        webApplicationContext.refresh();
+        assertEquals(SlidingWindowLockoutPolicy.class, webApplicationContext.getBean("accountLoginPolicy").getClass());
+        assertFalse(webApplicationContext.getBeanFactory().containsSingleton("periodLockoutPolicy"));
     }
 
     @Test
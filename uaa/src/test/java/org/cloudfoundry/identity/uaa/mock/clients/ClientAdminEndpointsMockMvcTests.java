@@ -1,9 +1,11 @@
 package org.cloudfoundry.identity.uaa.mock.clients;
 
 import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
@@ -164,6 +166,47 @@ public class ClientAdminEndpointsMockMvcTests {
         assertEquals(AuditEventType.ClientCreateSuccess, captor.getValue().getAuditEvent().getType());
     }
 
+    @Test
+    public void testListClientsByCursor() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            createClient(adminToken, new RandomValueStringGenerator().generate(), "client_credentials");
+        }
+        Map<String, Object> all = listClients("");
+        List<String> expected = new ArrayList<String>();
+        for (Map<String, Object> client : getResources(all)) {
+            expected.add((String) client.get("client_id"));
+        }
+        Collections.sort(expected);
+
+        List<String> ids = new ArrayList<String>();
+        String cursor = "";
+        while (cursor != null) {
+            Map<String, Object> page = listClients("&count=2&cursor=" + cursor);
+            assertFalse(page.containsKey("totalResults"));
+            assertTrue(getResources(page).size() <= 2);
+            for (Map<String, Object> client : getResources(page)) {
+                ids.add((String) client.get("client_id"));
+            }
+            cursor = (String) page.get("nextCursor");
+        }
+        assertEquals(expected, ids);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> listClients(String params) throws Exception {
+        MockHttpServletRequestBuilder listClients = get("/oauth/clients?attributes=client_id" + params)
+                .header("Authorization", "Bearer " + adminToken)
+                .accept(APPLICATION_JSON);
+        String body = mockMvc.perform(listClients).andExpect(status().isOk()).andReturn().getResponse()
+                .getContentAsString();
+        return new ObjectMapper().readValue(body, Map.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getResources(Map<String, Object> results) {
+        return (List<Map<String, Object>>) results.get("resources");
+    }
+
     @Test
     public void testCreateClientAsAdminUser() throws Exception {
         setupAdminUserToken();
@@ -30,6 +30,7 @@ import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import com.googlecode.flyway.core.Flyway;
+import org.cloudfoundry.identity.uaa.oauth.CachingClientDetailsService;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientDetailsModification;
 import org.cloudfoundry.identity.uaa.rest.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -127,6 +128,8 @@ public class ScimGroupEndpointsMockMvcTests {
         Method close = ds.getClass().getMethod("close");
         Assert.assertNotNull(close);
         close.invoke(ds);
+        // the token's client was cached while the database was still up
+        webApplicationContext.getBean(CachingClientDetailsService.class).clear();
         ResultActions result = createGroup(null, displayName, externalGroup);
         result.andExpect(status().isServiceUnavailable());
     }